@@ -0,0 +1,107 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client;
+
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes made to the key-value pairs since a client last read them, along with the token to read
+ * the changes after these. Pairs that were deleted (or expired) are in the changes marked missing.
+ *
+ * When a service no longer has the changes since the token, it resends every pair it holds instead;
+ * those changes are a snapshot, which replaces what the client had for that service's keys.
+ */
+public class KeyValueChanges {
+
+    private final List<KeyValue> changes;
+    private final String token;
+    private final KeyValueShardRing ring;
+    private final Set<Integer> resentShards;
+
+    /**
+     * @param changes Latest change of each changed key-value pair, removed pairs marked missing
+     * @param token Token to read the changes after these
+     * @param ring Ring the shards were read with, null for a single service
+     * @param resentShards Shards (0 for a single service) that resent every pair instead of their changes
+     */
+    public KeyValueChanges(List<KeyValue> changes, String token, KeyValueShardRing ring, Set<Integer> resentShards) {
+        this.changes = changes;
+        this.token = token;
+        this.ring = ring;
+        this.resentShards = resentShards;
+    }
+
+    /**
+     * @return Latest change of each changed key-value pair, those that were removed marked missing
+     */
+    public List<KeyValue> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return Token to pass to KeyValueService.getChangesSince to read the changes after these
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return True if any service resent every pair it holds rather than its changes
+     */
+    public boolean isSnapshot() {
+        return !resentShards.isEmpty();
+    }
+
+    /**
+     * Brings a client's copy of the key-value pairs up to date with these changes
+     *
+     * @param values Key-value pairs by key, as read so far
+     */
+    public void applyTo(Map<String, KeyValue> values) {
+
+        // Pairs of the resent shards that aren't in the snapshot were removed meanwhile
+        if (ring == null && isSnapshot()) {
+            values.clear();
+        } else if (isSnapshot()) {
+            for (Iterator<String> keys = values.keySet().iterator(); keys.hasNext(); ) {
+                if (resentShards.contains(ring.shardFor(keys.next()))) {
+                    keys.remove();
+                }
+            }
+        }
+
+        for (KeyValue change : changes) {
+            if (change.getMissing()) {
+                values.remove(change.getKey());
+            } else {
+                values.put(change.getKey(), change);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KeyValueChanges{changes=" + changes.size() + ", token=" + token + ", snapshot=" + isSnapshot() + "}";
+    }
+}
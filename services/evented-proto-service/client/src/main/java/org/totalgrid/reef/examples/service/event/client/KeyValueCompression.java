@@ -0,0 +1,177 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client;
+
+import com.google.protobuf.ByteString;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.Compression;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE compression of large values. A service configured to compress stores the values above its
+ * threshold compressed in binary_value, marked with their compression, and returns and publishes
+ * them that way, so they are only decompressed by the clients that read them:
+ *
+ * getValue and getBinaryValue return the value of any pair, decompressing it if it is compressed.
+ */
+public class KeyValueCompression {
+    private KeyValueCompression() {}
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * @param pair Key-value pair
+     * @return True if the pair's value is held compressed
+     */
+    public static boolean isCompressed(KeyValue pair) {
+        return pair.hasCompression();
+    }
+
+    /**
+     * @param pair Key-value pair
+     * @return String value of the pair, decompressed if needed
+     */
+    public static String getValue(KeyValue pair) {
+
+        // An unset compression reads as the enum's first value, so check it is set before trusting it
+        if (!pair.hasCompression() || pair.getCompression() != Compression.DEFLATED_TEXT) {
+            return pair.getValue();
+        }
+
+        return inflate(pair).toStringUtf8();
+    }
+
+    /**
+     * @param pair Key-value pair
+     * @return Binary value of the pair, or the UTF-8 bytes of its string value, decompressed if needed
+     */
+    public static ByteString getBinaryValue(KeyValue pair) {
+
+        if (pair.hasCompression()) {
+            return inflate(pair);
+        }
+
+        return pair.hasBinaryValue() ? pair.getBinaryValue() : ByteString.copyFromUtf8(pair.getValue());
+    }
+
+    /**
+     * @param pair Key-value pair
+     * @return The pair with its value decompressed, the pair itself if it isn't compressed
+     */
+    public static KeyValue decompress(KeyValue pair) {
+
+        if (!pair.hasCompression()) {
+            return pair;
+        }
+
+        KeyValue.Builder b = pair.toBuilder().clearCompression().clearBinaryValue();
+        if (pair.getCompression() == Compression.DEFLATED_TEXT) {
+            b.setValue(getValue(pair));
+        } else {
+            b.setBinaryValue(inflate(pair));
+        }
+        return b.build();
+    }
+
+    /**
+     * Compresses the value of a pair to write, if it is at least a threshold in size and compresses
+     * to fewer bytes.
+     *
+     * @param pair Key-value pair with either a string or a binary value
+     * @param thresholdBytes Smallest value compressed, in bytes (UTF-8 bytes for string values)
+     * @param level Deflater compression level, 1 (fastest) to 9 (smallest)
+     * @return The pair with its value compressed, the pair itself if it isn't worth compressing
+     */
+    public static KeyValue compress(KeyValue pair, int thresholdBytes, int level) {
+
+        // Already compressed, or not a single value to compress
+        if (pair.hasCompression() || pair.hasValue() == pair.hasBinaryValue()) {
+            return pair;
+        }
+
+        // A string has at most 3 UTF-8 bytes per character, skip encoding the ones that are too short anyway
+        if (pair.hasValue() && pair.getValue().length() * 3L < thresholdBytes) {
+            return pair;
+        }
+
+        byte[] bytes = pair.hasValue() ? pair.getValue().getBytes(UTF8) : pair.getBinaryValue().toByteArray();
+        if (bytes.length < thresholdBytes) {
+            return pair;
+        }
+
+        ByteString deflated = deflate(bytes, level);
+        if (deflated == null) {
+            return pair;
+        }
+
+        return pair.toBuilder().clearValue().setBinaryValue(deflated).setCompression(pair.hasValue() ? Compression.DEFLATED_TEXT : Compression.DEFLATED_BINARY).build();
+    }
+
+    /**
+     * @return Compressed bytes, null if they wouldn't be fewer than the input.
+     */
+    private static ByteString deflate(byte[] bytes, int level) {
+
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            // Give up once the output reaches the size of the input
+            byte[] out = new byte[bytes.length];
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+
+            return deflater.finished() && length < out.length ? ByteString.copyFrom(out, 0, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteString inflate(KeyValue pair) {
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(pair.getBinaryValue().toByteArray());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(pair.getBinaryValue().size() * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed value of key: " + pair.getKey() + " is truncated");
+                }
+                out.write(buffer, 0, length);
+            }
+
+            return ByteString.copyFrom(out.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed value of key: " + pair.getKey() + " is corrupt: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
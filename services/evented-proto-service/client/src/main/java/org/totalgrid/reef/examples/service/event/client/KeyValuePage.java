@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client;
+
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.List;
+
+/**
+ * One page of a paged key-value query, along with the token to request the page after it.
+ */
+public class KeyValuePage {
+
+    private final List<KeyValue> values;
+    private final String nextPageToken;
+
+    /**
+     * @param values Key-value pairs in the page, in key order
+     * @param nextPageToken Token for the next page, null if this is the last page
+     */
+    public KeyValuePage(List<KeyValue> values, String nextPageToken) {
+        this.values = values;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * @return Key-value pairs in the page, in key order
+     */
+    public List<KeyValue> getValues() {
+        return values;
+    }
+
+    /**
+     * @return Token to pass to KeyValueService.getValuesPage for the next page, null if this is the last page
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * @return True if there are more entries after this page
+     */
+    public boolean hasNextPage() {
+        return nextPageToken != null;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyValuePage{values=" + values + ", nextPageToken=" + nextPageToken + "}";
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client;
+
+/**
+ * Key patterns that can be subscribed to. Events are published with their key as the routing key, so a
+ * subscription has to be expressible as a broker topic binding, whose wildcards only match whole
+ * words between '.' separators:
+ *
+ * "*" matches every key, "site3.*" matches every key under "site3." at any depth (but not "site3"
+ * itself) and anything else is a single key. Prefixes that don't end on a '.' like "site3*" can be
+ * read with a GET but not subscribed to.
+ */
+public class KeyValuePattern {
+    private KeyValuePattern() {}
+
+    /**
+     * Key of the requests and subscriptions covering every key
+     */
+    public static final String ALL = "*";
+
+    /**
+     * @param key Key or pattern
+     * @return True if the key is a pattern matching many keys
+     */
+    public static boolean isPattern(String key) {
+        return key.endsWith("*");
+    }
+
+    /**
+     * @param key Key
+     * @return Pattern of the key and its siblings: the key up to its last '.' followed by "*", or "*"
+     *         for a key without a '.'. As a routing key it reaches the subscribers of every pattern
+     *         covering the key, but not those of single keys.
+     */
+    public static String parentPattern(String key) {
+        return key.substring(0, key.lastIndexOf('.') + 1) + ALL;
+    }
+
+    /**
+     * Translates a key or pattern into the topic binding that receives its events.
+     *
+     * @param pattern Key or pattern
+     * @return Binding key, or null if the pattern can't be subscribed to
+     */
+    public static String toBindingKey(String pattern) {
+
+        if (pattern.equals(ALL)) {
+            return "#";
+        }
+
+        String prefix = isPattern(pattern) ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+        // "*" and "#" words would be taken as wildcards, and a prefix has to end on a word boundary
+        for (String word : prefix.split("\\.", -1)) {
+            if (word.equals("*") || word.equals("#")) {
+                return null;
+            }
+        }
+
+        if (!isPattern(pattern)) {
+            return pattern;
+        }
+
+        if (!prefix.endsWith(".")) {
+            return null;
+        }
+
+        // One word or more after the prefix, so the prefix's own key isn't included
+        return prefix + "*.#";
+    }
+}
@@ -18,12 +18,15 @@
  */
 package org.totalgrid.reef.examples.service.event.client;
 
+import com.google.protobuf.ByteString;
 import org.totalgrid.reef.client.Promise;
 import org.totalgrid.reef.client.SubscriptionResult;
 import org.totalgrid.reef.client.exception.ReefServiceException;
 import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides an Java-idiom, RPC-like method for clients to make service calls.
@@ -31,7 +34,8 @@ import java.util.List;
 public interface KeyValueService {
 
     /**
-     * Get a single value by name
+     * Get a single value by name. If the service compresses large values, read the value with
+     * KeyValueCompression, which decompresses it if needed.
      *
      * @param key Key of the key-value pair
      * @return The key-value pair
@@ -40,7 +44,18 @@ public interface KeyValueService {
     Promise<KeyValue> getValue(String key) throws ReefServiceException;
 
     /**
-     * Get all key-value pairs
+     * Get the bytes of a single value by name, as put by putBinaryValue. A string value comes back as
+     * its UTF-8 bytes, and a compressed value decompressed.
+     *
+     * @param key Key of the key-value pair
+     * @return The bytes of the value
+     * @throws ReefServiceException
+     */
+    Promise<ByteString> getBinaryValue(String key) throws ReefServiceException;
+
+    /**
+     * Get all key-value pairs. The whole store comes back in a single response; for large stores
+     * use getValuesPage or iterateAllValues instead.
      *
      * @return The list of key-value pairs
      * @throws ReefServiceException
@@ -48,13 +63,75 @@ public interface KeyValueService {
     Promise<List<KeyValue>> getAllValues() throws ReefServiceException;
 
     /**
-     * Get a specific list of values
+     * Get the changes made to the key-value pairs since a previous call, for clients keeping a copy of
+     * the store. Only the latest change of each pair is returned. If a service no longer keeps the
+     * changes since the token (or restarted), every pair it holds is returned instead, as a snapshot.
      *
-     * @return The list of key-value pairs
+     * @param token Token of the previous changes, null to get every key-value pair
+     * @return The changes, along with the token to get the next ones
+     * @throws ReefServiceException
+     */
+    Promise<KeyValueChanges> getChangesSince(String token) throws ReefServiceException;
+
+    /**
+     * Get one page of all key-value pairs, in key order
+     *
+     * @param pageToken Token from the previous page, null for the first page
+     * @param pageSize Maximum number of key-value pairs in the page (the service may cap it)
+     * @return The page, along with the token for the next one
+     * @throws ReefServiceException
+     */
+    Promise<KeyValuePage> getValuesPage(String pageToken, int pageSize) throws ReefServiceException;
+
+    /**
+     * Iterate over all key-value pairs in key order, fetching one page at a time as the iterator
+     * advances, so only a single page is held in memory. Errors fetching a page are thrown from
+     * hasNext/next wrapped in an IllegalStateException.
+     *
+     * @param pageSize Maximum number of key-value pairs fetched per request
+     * @return Iterator over all key-value pairs
+     */
+    Iterator<KeyValue> iterateAllValues(int pageSize);
+
+    /**
+     * Get a specific list of values. The keys are sent in batches, so large lists take few requests
+     *
+     * @param keys Keys of the key-value pairs
+     * @return The list of key-value pairs, in the order of the keys. Fails with a BadRequestException
+     *         if any of the keys doesn't exist
      * @throws ReefServiceException
      */
     Promise<List<KeyValue>> getValues(List<String> keys) throws ReefServiceException;
 
+    /**
+     * Get the keys of all key-value pairs holding a string value, looked up in the service's value
+     * index. Fails with a BadRequestException if the service doesn't index values.
+     *
+     * @param value Value of the key-value pairs
+     * @return The keys, in key order
+     * @throws ReefServiceException
+     */
+    Promise<List<String>> getKeysWithValue(String value) throws ReefServiceException;
+
+    /**
+     * Get all key-value pairs whose keys start with a prefix, in key order
+     *
+     * @param prefix Prefix of the keys, i.e. "feeder12/"
+     * @return The list of key-value pairs
+     * @throws ReefServiceException
+     */
+    Promise<List<KeyValue>> getValuesWithPrefix(String prefix) throws ReefServiceException;
+
+    /**
+     * Get all key-value pairs with keys in a range, in key order
+     *
+     * @param startKey First key of the range (inclusive)
+     * @param endKey Last key of the range (exclusive)
+     * @return The list of key-value pairs
+     * @throws ReefServiceException
+     */
+    Promise<List<KeyValue>> getValuesInRange(String startKey, String endKey) throws ReefServiceException;
+
     /**
      * Put a key-value pair, adding if one doesn't exist already, modifying otherwise
      *
@@ -65,6 +142,53 @@ public interface KeyValueService {
      */
     Promise<KeyValue> putValue(String key, String value) throws ReefServiceException;
 
+    /**
+     * Put a key-value pair with a binary value, adding if one doesn't exist already, modifying
+     * otherwise. The bytes are stored and returned as they are, without being encoded as text.
+     *
+     * @param key Key of the key-value pair
+     * @param value Bytes of the value, ByteString.copyFrom wraps an array
+     * @return The key-value pair that was put by the service
+     * @throws ReefServiceException
+     */
+    Promise<KeyValue> putBinaryValue(String key, ByteString value) throws ReefServiceException;
+
+    /**
+     * Put a key-value pair that the service deletes (publishing a REMOVED event) unless it is put
+     * again before the TTL runs out
+     *
+     * @param key Key of the key-value pair
+     * @param value Value of the key-value pair
+     * @param ttlMs Time to live in milliseconds
+     * @return The key-value pair that was put by the service, with the time it expires at
+     * @throws ReefServiceException
+     */
+    Promise<KeyValue> putValueWithTtl(String key, String value, long ttlMs) throws ReefServiceException;
+
+    /**
+     * Put a key-value pair only if it is still at the revision it was read at. Fails with a
+     * BadRequestException if another writer changed it first, in which case read it again and retry.
+     *
+     * @param key Key of the key-value pair
+     * @param value Value of the key-value pair
+     * @param expectedRevision Revision the pair was read at, 0 to only create a pair that doesn't exist
+     * @return The key-value pair that was put by the service, with its new revision
+     * @throws ReefServiceException
+     */
+    Promise<KeyValue> putValueIfRevision(String key, String value, long expectedRevision) throws ReefServiceException;
+
+    /**
+     * Put many key-value pairs in a single request, adding those that don't exist already and
+     * modifying the others. In a sharded deployment each shard writes its part of the batch on its own,
+     * so a failure can leave the parts on the other shards written.
+     *
+     * @param values Key-value pairs to put, written in the map's iteration order
+     * @return The key-value pairs that were put, in the same order, each with a write_result of
+     *         CREATED or UPDATED
+     * @throws ReefServiceException
+     */
+    Promise<List<KeyValue>> putValues(Map<String, String> values) throws ReefServiceException;
+
     /**
      * Delete a specific key-value pair by specifying the key
      *
@@ -73,6 +197,16 @@ public interface KeyValueService {
      */
     Promise<KeyValue> deleteValue(String key) throws ReefServiceException;
 
+    /**
+     * Delete a specific key-value pair only if it is still at the revision it was read at. Fails with
+     * a BadRequestException if another writer changed it first.
+     *
+     * @param key Key of the key-value pair
+     * @param expectedRevision Revision the pair was read at
+     * @throws ReefServiceException
+     */
+    Promise<KeyValue> deleteValueIfRevision(String key, long expectedRevision) throws ReefServiceException;
+
     /**
      * Delete all entries in the system
      *
@@ -81,7 +215,15 @@ public interface KeyValueService {
     Promise<List<KeyValue>> deleteAllValues() throws ReefServiceException;
 
     /**
-     * Subscribe to all subscription events associated with all KeyValue service objects
+     * Subscribe to all subscription events associated with all KeyValue service objects.
+     *
+     * If the service batches bulk events, putValues and deleteAllValues produce events keyed by a
+     * pattern ("*", or the parent pattern such as "a.b.*" of hierarchical keys) whose entries list
+     * the changed key-value pairs. Pattern subscriptions receive these batches too; subscriptions to
+     * a single key get an event of their own.
+     *
+     * Only the events of changes made after the returned values were read are delivered, so applying
+     * the events to the values gives every change exactly once.
      *
      * @return Contains immediate results to the query as well as subscription management object
      * @throws ReefServiceException
@@ -89,7 +231,21 @@ public interface KeyValueService {
     Promise<SubscriptionResult<List<KeyValue>, KeyValue>> subscribeToAllKeyValues() throws ReefServiceException;
 
     /**
-     * Subscribe to subscription events associated with a specific KeyValue service object (by key)
+     * Subscribe to subscription events associated with the KeyValue service objects matching a
+     * pattern, such as "site3.*" for every key under "site3." (see KeyValuePattern). Only matching
+     * events are delivered, the broker filters the rest. As for subscribeToAllKeyValues, only the
+     * events of changes made after the returned values were read are delivered.
+     *
+     * @param pattern Pattern of the keys, or a single key
+     * @return Contains the key-value pairs currently matching as well as subscription management object
+     * @throws ReefServiceException
+     */
+    Promise<SubscriptionResult<List<KeyValue>, KeyValue>> subscribeToMatchingKeyValues(String pattern) throws ReefServiceException;
+
+    /**
+     * Subscribe to subscription events associated with a specific KeyValue service object (by key).
+     * Use subscribeToMatchingKeyValues to subscribe to a pattern. Only the events of changes made
+     * after the returned value was read are delivered.
      *
      * @param key Key of the key-value pair
      * @return Contains immediate results to the query as well as subscription management object
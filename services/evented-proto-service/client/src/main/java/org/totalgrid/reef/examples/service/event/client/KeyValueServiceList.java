@@ -37,6 +37,21 @@ import java.util.List;
 @SuppressWarnings("unchecked")
 public class KeyValueServiceList implements ServicesList {
 
+    // Number of shards the key-value service is deployed as, 1 for a single service
+    private final int shardCount;
+
+    public KeyValueServiceList() {
+        this(1);
+    }
+
+    /**
+     * @param shardCount Number of shards the key-value service is deployed as, KeyValueService
+     *                   implementations route each request to the shard owning its key
+     */
+    public KeyValueServiceList(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
     /**
      * Exposes ServiceTypeInformation for KeyValue service message
      *
@@ -63,7 +78,7 @@ public class KeyValueServiceList implements ServicesList {
         List<ServiceProviderInfo> list = new ArrayList<ServiceProviderInfo>();
 
         // Build provider info with KeyValueServiceFactory, specify that it builds the KeyValueService class
-        list.add(new BasicServiceProviderInfo(new KeyValueServiceFactory(), KeyValueService.class));
+        list.add(new BasicServiceProviderInfo(new KeyValueServiceFactory(shardCount), KeyValueService.class));
 
         return list;
     }
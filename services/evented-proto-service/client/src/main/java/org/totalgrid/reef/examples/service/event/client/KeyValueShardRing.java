@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Consistent hash ring that assigns every key to one of a fixed number of key-value service shards.
+ *
+ * Each shard is placed on the ring at a number of pseudo-random points, and a key belongs to the shard
+ * owning the first point at or after the key's hash. Clients use it to route requests and service
+ * instances use it to check they own the keys they are asked to store, so both sides must be built
+ * with the same shard count.
+ */
+public class KeyValueShardRing {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Points each shard gets on the ring; more points even out the shard sizes at the cost of a bigger ring
+     */
+    public static final int POINTS_PER_SHARD = 128;
+
+    private final int shardCount;
+
+    // Ring points in hash order, along with the shard owning each one
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param shardCount Number of shards the keys are spread over
+     */
+    public KeyValueShardRing(int shardCount) {
+
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1, not: " + shardCount);
+        }
+
+        this.shardCount = shardCount;
+
+        // Hash every shard's points, then sort them, carrying the owner along in the low bits
+        long[] tagged = new long[shardCount * POINTS_PER_SHARD];
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                tagged[shard * POINTS_PER_SHARD + i] = hash("shard-" + shard + "-" + i);
+            }
+        }
+
+        Integer[] order = new Integer[tagged.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] hashes = tagged;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return hashes[a] < hashes[b] ? -1 : (hashes[a] > hashes[b] ? 1 : a.compareTo(b));
+            }
+        });
+
+        points = new long[tagged.length];
+        owners = new int[tagged.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = tagged[order[i]];
+            owners[i] = order[i] / POINTS_PER_SHARD;
+        }
+    }
+
+    /**
+     * @return Number of shards the keys are spread over
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @param key Key of a key-value pair
+     * @return Index of the shard owning the key, from 0 to getShardCount() - 1
+     */
+    public int shardFor(String key) {
+
+        if (shardCount == 1) {
+            return 0;
+        }
+
+        // First point at or after the key's hash, wrapping around past the last one
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * @param shard Index of a shard
+     * @return Key of the AddressableDestination the shard's service instance binds to
+     */
+    public static String destination(int shard) {
+        return "key-value-shard-" + shard;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished with a 64 bit mix so that nearby keys land far apart.
+     * Unlike String.hashCode this is the same on every node and JVM.
+     */
+    private static long hash(String key) {
+
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client.impl;
+
+import org.totalgrid.reef.client.exception.ReefServiceException;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePage;
+import org.totalgrid.reef.examples.service.event.client.KeyValueService;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over all key-value pairs by requesting one page at a time from the service, blocking
+ * while a page is fetched. Only the current page is held in memory.
+ */
+public class KeyValuePageIterator implements Iterator<KeyValue> {
+
+    private final KeyValueService service;
+    private final int pageSize;
+
+    private KeyValuePage page = null;
+    private Iterator<KeyValue> current = null;
+
+    public KeyValuePageIterator(KeyValueService service, int pageSize) {
+        this.service = service;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        // Fetch pages until one has something left in it or there are no more pages
+        while (current == null || !current.hasNext()) {
+
+            if (page != null && !page.hasNextPage()) {
+                return false;
+            }
+
+            try {
+                page = service.getValuesPage(page == null ? null : page.getNextPageToken(), pageSize).await();
+            } catch (ReefServiceException rse) {
+                throw new IllegalStateException("Cannot get next page of values: " + rse.getMessage(), rse);
+            }
+
+            current = page.getValues().iterator();
+        }
+
+        return true;
+    }
+
+    @Override
+    public KeyValue next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Use KeyValueService.deleteValue");
+    }
+}
@@ -20,6 +20,7 @@ package org.totalgrid.reef.examples.service.event.client.impl;
 
 import org.totalgrid.reef.client.Client;
 import org.totalgrid.reef.client.ServiceProviderFactory;
+import org.totalgrid.reef.examples.service.event.client.KeyValueShardRing;
 
 /**
  * Implements a service provider factory, provides the implementation for the
@@ -27,6 +28,17 @@ import org.totalgrid.reef.client.ServiceProviderFactory;
  */
 public class KeyValueServiceFactory implements ServiceProviderFactory {
 
+    // Number of shards the key-value service is deployed as, 1 for a single service
+    private final int shardCount;
+
+    public KeyValueServiceFactory() {
+        this(1);
+    }
+
+    public KeyValueServiceFactory(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
     /**
      * The connection framework provides us with a client to implement our
      * KeyValueService implementation
@@ -36,6 +48,6 @@ public class KeyValueServiceFactory implements ServiceProviderFactory {
      */
     @Override
     public Object createRpcProvider(Client client) {
-        return new KeyValueServiceImpl(client);
+        return new KeyValueServiceImpl(client, shardCount > 1 ? new KeyValueShardRing(shardCount) : null);
     }
 }
@@ -18,21 +18,40 @@
  */
 package org.totalgrid.reef.examples.service.event.client.impl;
 
+import com.google.protobuf.ByteString;
+import org.totalgrid.reef.client.AddressableDestination;
 import org.totalgrid.reef.client.Client;
 import org.totalgrid.reef.client.Promise;
+import org.totalgrid.reef.client.PromiseTransform;
+import org.totalgrid.reef.client.Subscription;
 import org.totalgrid.reef.client.SubscriptionBinding;
 import org.totalgrid.reef.client.SubscriptionResult;
+import org.totalgrid.reef.client.exception.BadRequestException;
 import org.totalgrid.reef.client.exception.ReefServiceException;
 import org.totalgrid.reef.client.operations.BasicRequest;
 import org.totalgrid.reef.client.operations.CommonResponseTransformations;
 import org.totalgrid.reef.client.operations.RestOperations;
 import org.totalgrid.reef.client.operations.SubscriptionBindingRequest;
+import org.totalgrid.reef.examples.service.event.client.KeyValueChanges;
+import org.totalgrid.reef.examples.service.event.client.KeyValueCompression;
 import org.totalgrid.reef.examples.service.event.client.KeyValueDescriptor;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePage;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePattern;
 import org.totalgrid.reef.examples.service.event.client.KeyValueService;
+import org.totalgrid.reef.examples.service.event.client.KeyValueShardRing;
 import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Implementation of the KeyValueService interface.
@@ -43,10 +62,136 @@ import java.util.List;
  */
 public class KeyValueServiceImpl implements KeyValueService {
 
+    /**
+     * Keys requested at a time by getValues, within the service's default limit
+     */
+    public static final int MULTI_GET_KEYS = 1000;
+
+    // Orders key-value pairs by key, used to merge the results of the shards
+    private static final Comparator<KeyValue> KEY_ORDER = new Comparator<KeyValue>() {
+        @Override
+        public int compare(KeyValue a, KeyValue b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
     private final Client client;
 
+    // Ring assigning keys to shards and a client addressed to each shard, both null for a single service
+    private final KeyValueShardRing ring;
+    private final List<Client> shardClients;
+
     public KeyValueServiceImpl(Client client) {
+        this(client, null);
+    }
+
+    /**
+     * Builds an implementation for a sharded deployment, where each service instance owns the keys
+     * the ring assigns to it and binds to its KeyValueShardRing.destination. Requests for a key go
+     * to the shard owning it; queries across keys go to every shard and the results are merged.
+     *
+     * @param client Logged-in client
+     * @param ring Ring with the same shard count as the service instances, null for a single service
+     */
+    public KeyValueServiceImpl(Client client, KeyValueShardRing ring) {
         this.client = client;
+        this.ring = ring;
+
+        if (ring == null) {
+            this.shardClients = null;
+        } else {
+
+            // Spawn a client per shard sharing the connection, with its requests addressed to that shard
+            this.shardClients = new ArrayList<Client>(ring.getShardCount());
+            for (int shard = 0; shard < ring.getShardCount(); shard++) {
+                Client shardClient = client.spawn();
+                shardClient.setHeaders(shardClient.getHeaders().setDestination(new AddressableDestination(KeyValueShardRing.destination(shard))));
+                shardClients.add(shardClient);
+            }
+        }
+    }
+
+    /**
+     * @return Client to send requests for the key with, addressed to the shard owning it if sharded
+     */
+    private Client clientFor(String key) {
+        return ring == null ? client : shardClients.get(ring.shardFor(key));
+    }
+
+    /**
+     * @return Clients to send a query across all keys with, one per shard
+     */
+    private List<Client> allClients() {
+        return ring == null ? Collections.singletonList(client) : shardClients;
+    }
+
+    /**
+     * Sends a request to every shard, collecting the result of each
+     */
+    private Promise<List<List<KeyValue>>> requestEachShard(BasicRequest<List<KeyValue>> request) {
+
+        List<Promise<List<KeyValue>>> shardPromises = new ArrayList<Promise<List<KeyValue>>>();
+        for (Client shardClient : allClients()) {
+            shardPromises.add(shardClient.getServiceOperations().request(request));
+        }
+
+        return CommonResponseTransformations.collatePromises(client.getInternal().getExecutor(), shardPromises);
+    }
+
+    /**
+     * Sends a request to every shard, merging the results in key order
+     */
+    private Promise<List<KeyValue>> requestAll(BasicRequest<List<KeyValue>> request) {
+
+        // A single service already returns its results in key order
+        if (ring == null) {
+            return client.getServiceOperations().request(request);
+        }
+
+        return requestEachShard(request).transform(new PromiseTransform<List<List<KeyValue>>, List<KeyValue>>() {
+            @Override
+            public List<KeyValue> transform(List<List<KeyValue>> shardResults) throws ReefServiceException {
+                return mergeByKey(shardResults);
+            }
+        });
+    }
+
+    private static List<KeyValue> mergeByKey(List<List<KeyValue>> shardResults) {
+
+        List<KeyValue> merged = new ArrayList<KeyValue>();
+        for (List<KeyValue> shardResult : shardResults) {
+            merged.addAll(shardResult);
+        }
+
+        Collections.sort(merged, KEY_ORDER);
+        return merged;
+    }
+
+    /**
+     * Gathers the results of requests split across shards back into the order the keys were asked for
+     */
+    private Promise<List<KeyValue>> inKeyOrder(List<Promise<List<KeyValue>>> shardPromises, final List<String> keys) {
+
+        Promise<List<List<KeyValue>>> shardResults = CommonResponseTransformations.collatePromises(client.getInternal().getExecutor(), shardPromises);
+
+        return shardResults.transform(new PromiseTransform<List<List<KeyValue>>, List<KeyValue>>() {
+            @Override
+            public List<KeyValue> transform(List<List<KeyValue>> results) throws ReefServiceException {
+
+                Map<String, KeyValue> byKey = new HashMap<String, KeyValue>();
+                for (List<KeyValue> result : results) {
+                    for (KeyValue value : result) {
+                        byKey.put(value.getKey(), value);
+                    }
+                }
+
+                List<KeyValue> ordered = new ArrayList<KeyValue>(keys.size());
+                for (String key : keys) {
+                    ordered.add(byKey.get(key));
+                }
+                return ordered;
+            }
+        });
     }
 
     /**
@@ -59,7 +204,7 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<KeyValue> getValue(final String key) throws ReefServiceException {
 
-        return client.getServiceOperations().request(new BasicRequest<KeyValue>() {
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
             @Override
             public String errorMessage() {
                 return "Cannot get value with key: " + key;
@@ -75,6 +220,24 @@ public class KeyValueServiceImpl implements KeyValueService {
         });
     }
 
+    /**
+     * Get the bytes of a particular value, implemented with the "GET" verb
+     *
+     * @param key Key of the key-value pair
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<ByteString> getBinaryValue(final String key) throws ReefServiceException {
+
+        return getValue(key).transform(new PromiseTransform<KeyValue, ByteString>() {
+            @Override
+            public ByteString transform(KeyValue value) throws ReefServiceException {
+                return KeyValueCompression.getBinaryValue(value);
+            }
+        });
+    }
+
     /**
      * Get all key-value pairs, implemented with the "GET" verb
      *
@@ -84,7 +247,12 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<List<KeyValue>> getAllValues() throws ReefServiceException {
 
-        return client.getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+        return requestAll(allValuesRequest());
+    }
+
+    private BasicRequest<List<KeyValue>> allValuesRequest() {
+
+        return new BasicRequest<List<KeyValue>>() {
             @Override
             public String errorMessage() {
                 return "Cannot get all values";
@@ -97,34 +265,357 @@ public class KeyValueServiceImpl implements KeyValueService {
 
                 return CommonResponseTransformations.many(operations.get(request));
             }
+        };
+    }
+
+    /**
+     * Get the changes since a token, implemented with the "GET" verb on "*" with the revision (and
+     * journal) of each shard's previous changes. The token lists them for every shard, in shard order.
+     *
+     * @param token Token of the previous changes, null to get every key-value pair
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<KeyValueChanges> getChangesSince(final String token) throws ReefServiceException {
+
+        final long[][] since = parseChangesToken(token, allClients().size());
+
+        List<Promise<List<KeyValue>>> shardPromises = new ArrayList<Promise<List<KeyValue>>>();
+        for (int i = 0; i < allClients().size(); i++) {
+
+            final long[] shardSince = since[i];
+
+            shardPromises.add(allClients().get(i).getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+                @Override
+                public String errorMessage() {
+                    return "Cannot get changes since: " + token;
+                }
+
+                @Override
+                public Promise<List<KeyValue>> execute(RestOperations operations) {
+                    // Request is a KeyValue with the key filled in as the special "*" character and the revision to start after.
+                    // A shard without a previous revision asks for the changes of no journal, getting every pair
+                    KeyValue request = KeyValue.newBuilder().setKey("*").setJournalId(shardSince[0]).setChangesSince(shardSince[1]).build();
+
+                    return CommonResponseTransformations.many(operations.get(request));
+                }
+            }));
+        }
+
+        Promise<List<List<KeyValue>>> shardResults = CommonResponseTransformations.collatePromises(client.getInternal().getExecutor(), shardPromises);
+
+        return shardResults.transform(new PromiseTransform<List<List<KeyValue>>, KeyValueChanges>() {
+            @Override
+            public KeyValueChanges transform(List<List<KeyValue>> results) throws ReefServiceException {
+
+                List<KeyValue> changes = new ArrayList<KeyValue>();
+                Set<Integer> resentShards = new HashSet<Integer>();
+                StringBuilder nextToken = new StringBuilder();
+
+                // Each shard answers with a single message carrying its changes and current revision
+                for (int shard = 0; shard < results.size(); shard++) {
+
+                    KeyValue result = results.get(shard).get(0);
+
+                    changes.addAll(result.getEntriesList());
+                    if (result.getSnapshot()) {
+                        resentShards.add(shard);
+                    }
+
+                    if (shard > 0) {
+                        nextToken.append(',');
+                    }
+                    nextToken.append(result.getJournalId()).append(':').append(result.getRevision());
+                }
+
+                return new KeyValueChanges(changes, nextToken.toString(), ring, resentShards);
+            }
         });
     }
 
     /**
-     * Get a specific set of key-value pairs, implemented as a "scatter gather" query
+     * Splits a changes token into the journal and revision of each shard, all 0 (which no journal
+     * matches) if there is no token or it doesn't fit the shards
+     */
+    private static long[][] parseChangesToken(String token, int shards) {
+
+        long[][] since = new long[shards][2];
+
+        String[] parts = token == null ? new String[0] : token.split(",");
+        if (parts.length != shards) {
+            return since;
+        }
+
+        try {
+            for (int i = 0; i < shards; i++) {
+                String[] fields = parts[i].split(":");
+                since[i][0] = Long.parseLong(fields[0]);
+                since[i][1] = Long.parseLong(fields[1]);
+            }
+        } catch (RuntimeException e) {
+            return new long[shards][2];
+        }
+
+        return since;
+    }
+
+    /**
+     * Get one page of all key-value pairs, implemented with the "GET" verb
+     *
+     * @param pageToken Token from the previous page, null for the first page
+     * @param pageSize Maximum number of key-value pairs in the page
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<KeyValuePage> getValuesPage(final String pageToken, final int pageSize) throws ReefServiceException {
+
+        Promise<List<List<KeyValue>>> values = requestEachShard(new BasicRequest<List<KeyValue>>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot get page of values after: " + pageToken;
+            }
+
+            @Override
+            public Promise<List<KeyValue>> execute(RestOperations operations) {
+                // Request is a KeyValue with the key filled in as the special "*" character and the paging fields set
+                KeyValue.Builder request = KeyValue.newBuilder().setKey("*").setPageSize(pageSize);
+                if (pageToken != null) {
+                    request.setPageToken(pageToken);
+                }
+
+                return CommonResponseTransformations.many(operations.get(request.build()));
+            }
+        });
+
+        // The token for the next page rides on the last entry of each shard's page, move it onto the page itself
+        return values.transform(new PromiseTransform<List<List<KeyValue>>, KeyValuePage>() {
+            @Override
+            public KeyValuePage transform(List<List<KeyValue>> shardPages) throws ReefServiceException {
+                return mergePages(shardPages, pageSize);
+            }
+        });
+    }
+
+    /**
+     * Merges a page from each shard into a single page. Each shard returns the pairs after the token,
+     * but one that has more to come may stop short of the others, so the merged page ends at the
+     * earliest such stopping point to avoid skipping any of its keys. Page tokens are the last key
+     * of the page, so any key works as a token for every shard.
+     */
+    private static KeyValuePage mergePages(List<List<KeyValue>> shardPages, int pageSize) {
+
+        String cutoff = null;
+        for (List<KeyValue> shardPage : shardPages) {
+            if (!shardPage.isEmpty() && shardPage.get(shardPage.size() - 1).hasNextPageToken()) {
+                String last = shardPage.get(shardPage.size() - 1).getKey();
+                if (cutoff == null || last.compareTo(cutoff) < 0) {
+                    cutoff = last;
+                }
+            }
+        }
+
+        boolean more = cutoff != null;
+        List<KeyValue> page = new ArrayList<KeyValue>();
+        for (KeyValue value : mergeByKey(shardPages)) {
+
+            if (page.size() == pageSize || (cutoff != null && value.getKey().compareTo(cutoff) > 0)) {
+                more = true;
+                break;
+            }
+
+            page.add(value.hasNextPageToken() ? value.toBuilder().clearNextPageToken().build() : value);
+        }
+
+        if (!more || page.isEmpty()) {
+            return new KeyValuePage(page, null);
+        }
+
+        return new KeyValuePage(page, page.get(page.size() - 1).getKey());
+    }
+
+    /**
+     * Iterate over all key-value pairs, fetching a page at a time with getValuesPage
+     *
+     * @param pageSize Maximum number of key-value pairs fetched per request
+     * @return
+     */
+    @Override
+    public Iterator<KeyValue> iterateAllValues(int pageSize) {
+        return new KeyValuePageIterator(this, pageSize);
+    }
+
+    /**
+     * Get a specific set of key-value pairs, implemented with the "GET" verb and a list of keys, a
+     * request per chunk of keys (and per shard)
      */
     @Override
     public Promise<List<KeyValue>> getValues(final List<String> keys) throws ReefServiceException {
 
-        return client.getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+        if (ring == null) {
+            return getValues(client, keys);
+        }
+
+        // Group the keys by the shard owning them and gather each group from its shard
+        Map<Integer, List<String>> shardKeys = new TreeMap<Integer, List<String>>();
+        for (String key : keys) {
+            int shard = ring.shardFor(key);
+            if (!shardKeys.containsKey(shard)) {
+                shardKeys.put(shard, new ArrayList<String>());
+            }
+            shardKeys.get(shard).add(key);
+        }
+
+        List<Promise<List<KeyValue>>> shardPromises = new ArrayList<Promise<List<KeyValue>>>();
+        for (Map.Entry<Integer, List<String>> entry : shardKeys.entrySet()) {
+            shardPromises.add(getValues(shardClients.get(entry.getKey()), entry.getValue()));
+        }
+
+        return inKeyOrder(shardPromises, keys);
+    }
+
+    private Promise<List<KeyValue>> getValues(Client target, final List<String> keys) throws ReefServiceException {
+
+        // Requests go out together, each answering a chunk of the keys
+        List<Promise<List<KeyValue>>> chunkPromises = new ArrayList<Promise<List<KeyValue>>>();
+
+        for (int i = 0; i < keys.size(); i += MULTI_GET_KEYS) {
+
+            final List<String> chunk = keys.subList(i, Math.min(i + MULTI_GET_KEYS, keys.size()));
+
+            chunkPromises.add(target.getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+                @Override
+                public String errorMessage() {
+                    return "Cannot get all " + chunk.toString();
+                }
+
+                @Override
+                public Promise<List<KeyValue>> execute(RestOperations operations) {
+                    // Request is a KeyValue with the list of keys filled in
+                    KeyValue request = KeyValue.newBuilder().addAllKeys(chunk).build();
+
+                    return CommonResponseTransformations.many(operations.get(request));
+                }
+            }));
+        }
+
+        Promise<List<List<KeyValue>>> chunkResults = CommonResponseTransformations.collatePromises(client.getInternal().getExecutor(), chunkPromises);
+
+        return chunkResults.transform(new PromiseTransform<List<List<KeyValue>>, List<KeyValue>>() {
+            @Override
+            public List<KeyValue> transform(List<List<KeyValue>> results) throws ReefServiceException {
+
+                List<KeyValue> values = new ArrayList<KeyValue>(keys.size());
+                List<String> missing = new ArrayList<String>();
+
+                for (List<KeyValue> result : results) {
+                    for (KeyValue value : result) {
+                        if (value.getMissing()) {
+                            missing.add(value.getKey());
+                        } else {
+                            values.add(value);
+                        }
+                    }
+                }
+
+                // Every key has to exist, as when the keys were requested one by one
+                if (!missing.isEmpty()) {
+                    throw new BadRequestException("Keys: " + missing + " unknown");
+                }
+
+                return values;
+            }
+        });
+    }
+
+    /**
+     * Get the keys holding a value, implemented with the "GET" verb and just the value, sent to every shard
+     *
+     * @param value Value of the key-value pairs
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<List<String>> getKeysWithValue(final String value) throws ReefServiceException {
+
+        Promise<List<KeyValue>> holders = requestAll(new BasicRequest<List<KeyValue>>() {
             @Override
             public String errorMessage() {
-                return "Cannot get all " + keys.toString();
+                return "Cannot get keys with value: " + value;
             }
 
             @Override
             public Promise<List<KeyValue>> execute(RestOperations operations) {
+                // Request is a KeyValue with only the value filled in
+                KeyValue request = KeyValue.newBuilder().setValue(value).build();
 
-                List<Promise<KeyValue>> individualPromises = new ArrayList<Promise<KeyValue>>(keys.size());
+                return CommonResponseTransformations.many(operations.get(request));
+            }
+        });
+
+        return holders.transform(new PromiseTransform<List<KeyValue>, List<String>>() {
+            @Override
+            public List<String> transform(List<KeyValue> values) throws ReefServiceException {
 
-                for(String key : keys){
-                    // Request is a KeyValue with the key filled in as the special "*" character
-                    KeyValue request = KeyValue.newBuilder().setKey(key).build();
-                    Promise<KeyValue> subPromise = CommonResponseTransformations.one(operations.get(request));
-                    individualPromises.add(subPromise);
+                List<String> keys = new ArrayList<String>(values.size());
+                for (KeyValue holder : values) {
+                    keys.add(holder.getKey());
                 }
+                return keys;
+            }
+        });
+    }
+
+    /**
+     * Get all key-value pairs with a prefix, implemented with the "GET" verb
+     *
+     * @param prefix Prefix of the keys
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<List<KeyValue>> getValuesWithPrefix(final String prefix) throws ReefServiceException {
+
+        return requestAll(new BasicRequest<List<KeyValue>>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot get values with prefix: " + prefix;
+            }
+
+            @Override
+            public Promise<List<KeyValue>> execute(RestOperations operations) {
+                // Request is a KeyValue with the key filled in as the prefix followed by the special "*" character
+                KeyValue request = KeyValue.newBuilder().setKey(prefix + "*").build();
 
-                return CommonResponseTransformations.collatePromises(client.getInternal().getExecutor(), individualPromises);
+                return CommonResponseTransformations.many(operations.get(request));
+            }
+        });
+    }
+
+    /**
+     * Get all key-value pairs in a key range, implemented with the "GET" verb
+     *
+     * @param startKey First key of the range (inclusive)
+     * @param endKey Last key of the range (exclusive)
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<List<KeyValue>> getValuesInRange(final String startKey, final String endKey) throws ReefServiceException {
+
+        return requestAll(new BasicRequest<List<KeyValue>>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot get values from: " + startKey + " to: " + endKey;
+            }
+
+            @Override
+            public Promise<List<KeyValue>> execute(RestOperations operations) {
+                // Request is a KeyValue with the key filled in as the start of the range and end_key as the end
+                KeyValue request = KeyValue.newBuilder().setKey(startKey).setEndKey(endKey).build();
+
+                return CommonResponseTransformations.many(operations.get(request));
             }
         });
     }
@@ -140,7 +631,7 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<KeyValue> putValue(final String key, final String value) throws ReefServiceException {
 
-        return client.getServiceOperations().request(new BasicRequest<KeyValue>() {
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
             @Override
             public String errorMessage() {
                 return "Cannot put key: " + key + " value: " + value;
@@ -156,6 +647,142 @@ public class KeyValueServiceImpl implements KeyValueService {
         });
     }
 
+    /**
+     * Add/modify a key/value pair with a binary value, implemented with the "PUT" verb
+     *
+     * @param key Key of the key-value pair
+     * @param value Bytes of the value
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<KeyValue> putBinaryValue(final String key, final ByteString value) throws ReefServiceException {
+
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot put key: " + key + " binary value of " + value.size() + " bytes";
+            }
+
+            @Override
+            public Promise<KeyValue> execute(RestOperations operations) {
+                // Request is a KeyValue with the key and the binary value filled in
+                KeyValue request = KeyValue.newBuilder().setKey(key).setBinaryValue(value).build();
+
+                return CommonResponseTransformations.one(operations.put(request));
+            }
+        });
+    }
+
+    /**
+     * Add/modify a key/value pair with a time to live, implemented with the "PUT" verb
+     *
+     * @param key Key of the key-value pair
+     * @param value Value of the key-value pair
+     * @param ttlMs Time to live in milliseconds
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<KeyValue> putValueWithTtl(final String key, final String value, final long ttlMs) throws ReefServiceException {
+
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot put key: " + key + " value: " + value + " with ttl: " + ttlMs;
+            }
+
+            @Override
+            public Promise<KeyValue> execute(RestOperations operations) {
+                // Request is a KeyValue with the TTL alongside the pair
+                KeyValue request = KeyValue.newBuilder().setKey(key).setValue(value).setTtlMs(ttlMs).build();
+
+                return CommonResponseTransformations.one(operations.put(request));
+            }
+        });
+    }
+
+    /**
+     * Add/modify a key/value pair if it is at the expected revision, implemented with the "PUT" verb
+     *
+     * @param key Key of the key-value pair
+     * @param value Value of the key-value pair
+     * @param expectedRevision Revision the pair must be at
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<KeyValue> putValueIfRevision(final String key, final String value, final long expectedRevision) throws ReefServiceException {
+
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot put key: " + key + " value: " + value + " at revision: " + expectedRevision;
+            }
+
+            @Override
+            public Promise<KeyValue> execute(RestOperations operations) {
+                // Request is a KeyValue with the expected revision alongside the pair
+                KeyValue request = KeyValue.newBuilder().setKey(key).setValue(value).setExpectedRevision(expectedRevision).build();
+
+                return CommonResponseTransformations.one(operations.put(request));
+            }
+        });
+    }
+
+    /**
+     * Add/modify many key/value pairs at once, implemented with the "POST" verb
+     *
+     * @param values Key-value pairs to put
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<List<KeyValue>> putValues(final Map<String, String> values) throws ReefServiceException {
+
+        if (ring == null) {
+            return putValues(client, values);
+        }
+
+        // Split the batch by the shard owning each key, every shard writes its part as one batch
+        Map<Integer, Map<String, String>> shardValues = new TreeMap<Integer, Map<String, String>>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            int shard = ring.shardFor(entry.getKey());
+            if (!shardValues.containsKey(shard)) {
+                shardValues.put(shard, new LinkedHashMap<String, String>());
+            }
+            shardValues.get(shard).put(entry.getKey(), entry.getValue());
+        }
+
+        List<Promise<List<KeyValue>>> shardPromises = new ArrayList<Promise<List<KeyValue>>>();
+        for (Map.Entry<Integer, Map<String, String>> entry : shardValues.entrySet()) {
+            shardPromises.add(putValues(shardClients.get(entry.getKey()), entry.getValue()));
+        }
+
+        return inKeyOrder(shardPromises, new ArrayList<String>(values.keySet()));
+    }
+
+    private Promise<List<KeyValue>> putValues(Client target, final Map<String, String> values) throws ReefServiceException {
+
+        return target.getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot put " + values.size() + " values";
+            }
+
+            @Override
+            public Promise<List<KeyValue>> execute(RestOperations operations) {
+                // Request is a KeyValue with every pair of the batch in its entries
+                KeyValue.Builder request = KeyValue.newBuilder();
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    request.addEntries(KeyValue.newBuilder().setKey(entry.getKey()).setValue(entry.getValue()));
+                }
+
+                return CommonResponseTransformations.many(operations.post(request.build()));
+            }
+        });
+    }
+
     /**
      * Delete a key/value pair, implemeted with "DELETE" verb
      *
@@ -165,7 +792,7 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<KeyValue> deleteValue(final String key) throws ReefServiceException {
 
-        return client.getServiceOperations().request(new BasicRequest<KeyValue>() {
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
             @Override
             public String errorMessage() {
                 return "Cannot get value with key: " + key;
@@ -181,6 +808,32 @@ public class KeyValueServiceImpl implements KeyValueService {
         });
     }
 
+    /**
+     * Delete a key/value pair if it is at the expected revision, implemented with the "DELETE" verb
+     *
+     * @param key Key of the key-value pair
+     * @param expectedRevision Revision the pair must be at
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<KeyValue> deleteValueIfRevision(final String key, final long expectedRevision) throws ReefServiceException {
+
+        return clientFor(key).getServiceOperations().request(new BasicRequest<KeyValue>() {
+            @Override
+            public String errorMessage() {
+                return "Cannot delete key: " + key + " at revision: " + expectedRevision;
+            }
+
+            @Override
+            public Promise<KeyValue> execute(RestOperations operations) {
+                // Request is a KeyValue with the key and the expected revision filled in
+                KeyValue request = KeyValue.newBuilder().setKey(key).setExpectedRevision(expectedRevision).build();
+
+                return CommonResponseTransformations.one(operations.delete(request));
+            }
+        });
+    }
+
     /**
      * Delete all key/value pairs, implemeted with "DELETE" verb
      *
@@ -189,7 +842,7 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<List<KeyValue>> deleteAllValues() throws ReefServiceException {
 
-        return client.getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+        return requestAll(new BasicRequest<List<KeyValue>>() {
             @Override
             public String errorMessage() {
                 return "Cannot delete all values";
@@ -214,18 +867,101 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<SubscriptionResult<List<KeyValue>, KeyValue>> subscribeToAllKeyValues() throws ReefServiceException {
 
-        return client.getServiceOperations().subscriptionRequest(new KeyValueDescriptor(), new SubscriptionBindingRequest<List<KeyValue>>() {
+        // Request is a KeyValue with the key filled in as the special "*" character
+        return subscribeMatching(KeyValuePattern.ALL, "Cannot subscribe to all values");
+    }
+
+    /**
+     * Subscribe to key/value pair updates with keys matching a pattern
+     *
+     * @param pattern Pattern of the keys, or a single key
+     * @return
+     * @throws ReefServiceException
+     */
+    @Override
+    public Promise<SubscriptionResult<List<KeyValue>, KeyValue>> subscribeToMatchingKeyValues(String pattern) throws ReefServiceException {
+
+        // Request is a KeyValue with the key filled in as the pattern
+        return subscribeMatching(pattern, "Cannot subscribe to keys matching: " + pattern);
+    }
+
+    private Promise<SubscriptionResult<List<KeyValue>, KeyValue>> subscribeMatching(final String pattern, final String errorMessage) throws ReefServiceException {
+
+        // A single key lives on one shard, a pattern can match keys on any of them
+        final boolean isPattern = KeyValuePattern.isPattern(pattern);
+        final List<Client> targets = isPattern ? allClients() : Collections.singletonList(clientFor(pattern));
+
+        Promise<SubscriptionResult<List<KeyValue>, KeyValue>> subscribed = targets.get(0).getServiceOperations().subscriptionRequest(new KeyValueDescriptor(), new SubscriptionBindingRequest<List<KeyValue>>() {
             @Override
             public String errorMessage() {
-                return "Cannot subscribe to all values";
+                return errorMessage;
             }
 
             @Override
-            public Promise<List<KeyValue>> execute(SubscriptionBinding subscription, RestOperations operations) {
-                // Request is a KeyValue with the key filled in as the special "*" character
-                KeyValue request = KeyValue.newBuilder().setKey("*").build();
+            public Promise<List<KeyValue>> execute(final SubscriptionBinding subscription, RestOperations operations) {
+                // Request is a KeyValue with the key filled in as the pattern. A pattern's values are read as the
+                // changes since no revision, a snapshot that comes with the revision it was read at
+                KeyValue.Builder builder = KeyValue.newBuilder().setKey(pattern);
+                if (isPattern) {
+                    builder.setJournalId(0).setChangesSince(0);
+                }
+                final KeyValue request = builder.build();
+
+                // Every shard publishes to the same exchange, so binding through one shard subscribes to the
+                // events of all of them, but each shard binds the queue before reading its values so none of
+                // its changes can fall between its values and its events
+                List<Promise<List<KeyValue>>> shardPromises = new ArrayList<Promise<List<KeyValue>>>();
+                shardPromises.add(CommonResponseTransformations.many(operations.get(request, subscription)));
+                for (Client shardClient : targets.subList(1, targets.size())) {
+                    shardPromises.add(shardClient.getServiceOperations().request(new BasicRequest<List<KeyValue>>() {
+                        @Override
+                        public String errorMessage() {
+                            return errorMessage;
+                        }
+
+                        @Override
+                        public Promise<List<KeyValue>> execute(RestOperations operations) {
+                            return CommonResponseTransformations.many(operations.get(request, subscription));
+                        }
+                    }));
+                }
 
-                return CommonResponseTransformations.many(operations.get(request, subscription));
+                Promise<List<List<KeyValue>>> shardResults = CommonResponseTransformations.collatePromises(client.getInternal().getExecutor(), shardPromises);
+
+                return shardResults.transform(new PromiseTransform<List<List<KeyValue>>, List<KeyValue>>() {
+                    @Override
+                    public List<KeyValue> transform(List<List<KeyValue>> results) throws ReefServiceException {
+
+                        // Kept in shard order, to tell the revision each shard was read at
+                        List<KeyValue> responses = new ArrayList<KeyValue>();
+                        for (List<KeyValue> result : results) {
+                            responses.addAll(result);
+                        }
+                        return responses;
+                    }
+                });
+            }
+        });
+
+        return subscribed.transform(new PromiseTransform<SubscriptionResult<List<KeyValue>, KeyValue>, SubscriptionResult<List<KeyValue>, KeyValue>>() {
+            @Override
+            public SubscriptionResult<List<KeyValue>, KeyValue> transform(SubscriptionResult<List<KeyValue>, KeyValue> result) throws ReefServiceException {
+
+                // A single key was read at its own revision
+                if (!isPattern) {
+                    KeyValueSubscription events = new KeyValueSubscription(result.getSubscription(), null, new long[] { result.getResult().get(0).getRevision() });
+                    return new Subscribed<List<KeyValue>>(result.getResult(), events);
+                }
+
+                List<List<KeyValue>> shardValues = new ArrayList<List<KeyValue>>();
+                long[] readRevisions = new long[result.getResult().size()];
+                for (int shard = 0; shard < readRevisions.length; shard++) {
+                    shardValues.add(result.getResult().get(shard).getEntriesList());
+                    readRevisions[shard] = result.getResult().get(shard).getRevision();
+                }
+
+                KeyValueSubscription events = new KeyValueSubscription(result.getSubscription(), ring, readRevisions);
+                return new Subscribed<List<KeyValue>>(mergeByKey(shardValues), events);
             }
         });
     }
@@ -240,7 +976,7 @@ public class KeyValueServiceImpl implements KeyValueService {
     @Override
     public Promise<SubscriptionResult<KeyValue, KeyValue>> subscribeToKeyValues(final String key) throws ReefServiceException {
 
-        return client.getServiceOperations().subscriptionRequest(new KeyValueDescriptor(), new SubscriptionBindingRequest<KeyValue>() {
+        Promise<SubscriptionResult<KeyValue, KeyValue>> subscribed = clientFor(key).getServiceOperations().subscriptionRequest(new KeyValueDescriptor(), new SubscriptionBindingRequest<KeyValue>() {
             @Override
             public String errorMessage() {
                 return "Cannot subscribe to key: " + key;
@@ -254,5 +990,38 @@ public class KeyValueServiceImpl implements KeyValueService {
                 return CommonResponseTransformations.one(operations.get(request, subscription));
             }
         });
+
+        // Only the events of changes after the revision the value was read at are delivered
+        return subscribed.transform(new PromiseTransform<SubscriptionResult<KeyValue, KeyValue>, SubscriptionResult<KeyValue, KeyValue>>() {
+            @Override
+            public SubscriptionResult<KeyValue, KeyValue> transform(SubscriptionResult<KeyValue, KeyValue> result) throws ReefServiceException {
+                KeyValueSubscription events = new KeyValueSubscription(result.getSubscription(), null, new long[] { result.getResult().getRevision() });
+                return new Subscribed<KeyValue>(result.getResult(), events);
+            }
+        });
+    }
+
+    /**
+     * Values read by a subscription request along with the subscription to the events after them
+     */
+    private static class Subscribed<T> implements SubscriptionResult<T, KeyValue> {
+
+        private final T result;
+        private final Subscription<KeyValue> subscription;
+
+        Subscribed(T result, Subscription<KeyValue> subscription) {
+            this.result = result;
+            this.subscription = subscription;
+        }
+
+        @Override
+        public T getResult() {
+            return result;
+        }
+
+        @Override
+        public Subscription<KeyValue> getSubscription() {
+            return subscription;
+        }
     }
 }
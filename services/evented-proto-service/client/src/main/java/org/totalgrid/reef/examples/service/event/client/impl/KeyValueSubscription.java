@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client.impl;
+
+import org.totalgrid.reef.client.Subscription;
+import org.totalgrid.reef.client.SubscriptionEvent;
+import org.totalgrid.reef.client.SubscriptionEventAcceptor;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePattern;
+import org.totalgrid.reef.examples.service.event.client.KeyValueShardRing;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Subscription to key-value events that only delivers the events of changes made after the values
+ * returned along with it were read, so applying the events to those values gives every change
+ * exactly once. Events arriving before start are held by the subscription queue.
+ *
+ * Each shard numbers its changes with its own revisions, so an event is compared against the
+ * revision its shard's values were read at.
+ */
+public class KeyValueSubscription implements Subscription<KeyValue> {
+
+    private final Subscription<KeyValue> subscription;
+    private final KeyValueShardRing ring;
+    private final long[] readRevisions;
+
+    /**
+     * @param subscription Subscription receiving the events
+     * @param ring Ring the shards were read with, null for a single service
+     * @param readRevisions Revision each shard's values were read at, in shard order
+     */
+    public KeyValueSubscription(Subscription<KeyValue> subscription, KeyValueShardRing ring, long[] readRevisions) {
+        this.subscription = subscription;
+        this.ring = ring;
+        this.readRevisions = readRevisions;
+    }
+
+    @Override
+    public Subscription<KeyValue> start(final SubscriptionEventAcceptor<KeyValue> acceptor) {
+
+        subscription.start(new SubscriptionEventAcceptor<KeyValue>() {
+            @Override
+            public void onEvent(SubscriptionEvent<KeyValue> event) {
+
+                KeyValue value = after(event.getEventType(), event.getValue());
+
+                if (value == event.getValue()) {
+                    acceptor.onEvent(event);
+                } else if (value != null) {
+                    acceptor.onEvent(new Event(event.getEventType(), value));
+                }
+            }
+        });
+
+        return this;
+    }
+
+    @Override
+    public void cancel() {
+        subscription.cancel();
+    }
+
+    @Override
+    public String getId() {
+        return subscription.getId();
+    }
+
+    /**
+     * @return The event's value, only the entries of a batch changed after they were read, or null
+     *         if none of it was
+     */
+    private KeyValue after(Envelope.SubscriptionEventType eventType, KeyValue value) {
+
+        boolean removed = eventType == Envelope.SubscriptionEventType.REMOVED;
+
+        // Batches are keyed by the pattern of their entries, every other event by its own key
+        if (!KeyValuePattern.isPattern(value.getKey())) {
+            return isAfterRead(value.getKey(), removed ? value.getSequence() : value.getRevision()) ? value : null;
+        }
+
+        // A batch changes the entries in it, removed at the batch's revision or else at their own
+        List<KeyValue> entries = new ArrayList<KeyValue>();
+        for (KeyValue entry : value.getEntriesList()) {
+            if (isAfterRead(entry.getKey(), removed ? value.getSequence() : entry.getRevision())) {
+                entries.add(entry);
+            }
+        }
+
+        if (entries.size() == value.getEntriesCount()) {
+            return value;
+        }
+
+        return entries.isEmpty() ? null : value.toBuilder().clearEntries().addAllEntries(entries).build();
+    }
+
+    private boolean isAfterRead(String key, long revision) {
+        return revision > readRevisions[ring == null ? 0 : ring.shardFor(key)];
+    }
+
+    private static class Event implements SubscriptionEvent<KeyValue> {
+
+        private final Envelope.SubscriptionEventType eventType;
+        private final KeyValue value;
+
+        Event(Envelope.SubscriptionEventType eventType, KeyValue value) {
+            this.eventType = eventType;
+            this.value = value;
+        }
+
+        @Override
+        public Envelope.SubscriptionEventType getEventType() {
+            return eventType;
+        }
+
+        @Override
+        public KeyValue getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service;
+
+/**
+ * Controls how the events of requests that change many pairs at once (a POST batch or a DELETE
+ * with the key "*") are published.
+ */
+public enum BulkEvents {
+
+    /**
+     * One event per changed pair, routed by its key; reaches every matching subscriber.
+     */
+    PER_KEY,
+
+    /**
+     * Events whose entries hold up to the batch size of changed pairs each, one series of events per
+     * event type and parent pattern of the keys: "a.b.*" for the pairs of keys "a.b.c" and "a.b.d",
+     * "*" for keys without a '.'. Routed by that pattern, a batch reaches the subscribers of all keys
+     * and of every prefix covering its pairs. Pairs of keys subscribed to on their own are published
+     * as their own events instead, as a batch can't reach their subscribers. Far fewer broker
+     * messages for hierarchical keys.
+     *
+     * Subscriptions are learned from subscribing requests, and pairs no pattern subscribed to since the
+     * service started covers are published as their own events too, so bindings made before a restart
+     * still get every change. Keys subscribed to on their own before a restart, under a pattern
+     * subscribed to since, have to be subscribed to again before bulk changes of the key reach them.
+     */
+    BATCHED
+}
@@ -18,46 +18,1478 @@
  */
 package org.totalgrid.reef.examples.service.event.service;
 
+import com.google.protobuf.ByteString;
 import org.totalgrid.reef.client.exception.ReefServiceException;
 import org.totalgrid.reef.client.proto.Envelope;
 import org.totalgrid.reef.client.registration.EventPublisher;
 import org.totalgrid.reef.client.registration.Service;
 import org.totalgrid.reef.client.registration.ServiceResponseCallback;
+import org.totalgrid.reef.examples.service.event.client.KeyValueCompression;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePattern;
+import org.totalgrid.reef.examples.service.event.client.KeyValueShardRing;
 import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.WriteResult;
+import org.totalgrid.reef.examples.service.event.service.admission.RequestLimiter;
+import org.totalgrid.reef.examples.service.event.service.admission.RequestLimiterStatus;
+import org.totalgrid.reef.examples.service.event.service.events.BindingCache;
+import org.totalgrid.reef.examples.service.event.service.events.ChangeEvent;
+import org.totalgrid.reef.examples.service.event.service.events.EventCoalescer;
+import org.totalgrid.reef.examples.service.event.service.events.KeySubscriptions;
+import org.totalgrid.reef.examples.service.event.service.events.PublishQueue;
+import org.totalgrid.reef.examples.service.event.service.events.PublishQueueStatus;
+import org.totalgrid.reef.examples.service.event.service.execution.KeyStripedExecutor;
+import org.totalgrid.reef.examples.service.event.service.eviction.EvictionPolicy;
+import org.totalgrid.reef.examples.service.event.service.expiry.TimerWheel;
+import org.totalgrid.reef.examples.service.event.service.index.ValueIndex;
+import org.totalgrid.reef.examples.service.event.service.journal.ChangeJournal;
+import org.totalgrid.reef.examples.service.event.service.persistence.SnapshotFile;
+import org.totalgrid.reef.examples.service.event.service.persistence.WriteAheadLog;
+import org.totalgrid.reef.examples.service.event.service.replication.ReplicationRecord;
+import org.totalgrid.reef.examples.service.event.service.replication.ReplicationSink;
+import org.totalgrid.reef.examples.service.event.service.replication.ReplicationSource;
+import org.totalgrid.reef.examples.service.event.service.replication.ReplicationStatus;
+import org.totalgrid.reef.examples.service.event.service.storage.EntryStore;
+import org.totalgrid.reef.examples.service.event.service.storage.SerializedEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service implementation for a simple key-value store. An in-memory map is used instead of
+ * a database. By default the map is kept sorted by key so prefix and range queries only touch the
+ * entries they return; it can instead be kept off-heap (see StorageMode) for very large stores.
+ *
+ * The service is implemented in terms of the RESTful get/put/post/delete verbs (POST writes a batch
+ * of pairs), and changes to key value objects are published as service subscription events, which
+ * can be subscribed to for one key, every key, or every key under a prefix such as "site3.*". The
+ * MODIFIED events of a frequently updated key can be coalesced to only publish its latest value.
+ * Events can also be handed to a bounded queue and published by a dedicated thread, so writes
+ * respond without waiting for the broker; either way they are published in the order of the changes.
+ *
+ * Every write stamps the entry with the next store revision. Writes that carry an expected revision
+ * only happen if the entry is still at that revision, so clients can read-modify-write without locks.
+ * Removals take a revision too, and the latest changes are kept in a journal, so clients can catch up
+ * from the revision they have by reading only the changes since. Every event carries the revision
+ * of its change, so subscribers can line events up with a snapshot read at a revision.
+ *
+ * String values can be indexed, so the keys holding a value are found without scanning every entry.
+ *
+ * Values above a configured size can be stored compressed; they are returned and published that
+ * way, and only decompressed by the clients reading them.
+ *
+ * Entries written with a TTL are deleted when it runs out, publishing REMOVED events as for an
+ * explicit delete. Expiry is driven by a timing wheel ticked by a single thread, so pending TTLs
+ * cost nothing until they fire.
+ *
+ * If a memory budget is configured, the approximate size of every entry is accounted and writes that
+ * take the store over budget evict entries, chosen by the configured eviction policy, publishing
+ * REMOVED events for them.
+ *
+ * If a log directory is configured, every change is also appended to a write-ahead log, so the map
+ * survives restarts. Changes are only acknowledged and published once the log reports them durable.
+ * Snapshots of the map are written periodically (and on close), so startup loads the latest
+ * snapshot and only replays the log written after it.
+ *
+ * A service can stream its changes to hot standby replicas, which apply them as they arrive and
+ * serve GETs, but reject writes until promoted to take over from the primary.
+ *
+ * If a limit on requests in flight is configured, requests beyond it are shed straight away with a
+ * retry-later (BUS_UNAVAILABLE) response; the thread delivering requests never waits for a slot.
+ *
+ * If worker threads are configured, requests are handed off to them rather than handled on the thread
+ * delivering them. A request for a single key goes to the worker its key hashes to, so requests for
+ * the same key are handled (and publish their events) in the order they arrived, while requests for
+ * other keys run in parallel. A request covering many keys waits for every worker to finish the
+ * requests that arrived before it and holds them until it is done.
+ *
+ * If a shard count is configured, the instance only stores the keys a KeyValueShardRing assigns to
+ * its shard and rejects requests for any other key; clients route each request to the right shard.
+ */
+public class KeyValueServiceImplementor implements Service {
+
+    // Entries are stored as the messages returned for them, key, value and revision
+    private final EntryStore map;
+
+    private final EventPublisher publisher;
+
+    // Holds back MODIFIED events to publish only the latest of each key, null if events aren't coalesced
+    private final EventCoalescer coalescer;
+
+    // Publishes events on its own thread, null if they are published before responding
+    private final PublishQueue publishQueue;
+
+    // Subscription queues already bound to their keys, null if every subscribing request binds
+    private final BindingCache bindingCache;
+
+    // Keys subscribed to on their own, whose changes can't go in batched events; null unless batched
+    private final KeySubscriptions keySubscriptions;
+
+    private final KeyValueServiceSettings settings;
+
+    // Write-ahead log, null if the store is in-memory only
+    private final WriteAheadLog log;
+
+    // Held while changing the map so changes are logged in the order they are applied
+    private final Object mutationLock = new Object();
+
+    // Revision of the latest write or removal, guarded by mutationLock
+    private long revision = 0;
+
+    // Bounds the requests in flight at once, null if they aren't bounded
+    private final RequestLimiter requestLimiter;
+
+    // Worker threads requests are handed off to, null to handle them on the delivering thread
+    private final KeyStripedExecutor requestExecutor;
+
+    // Keys by string value, null if values aren't indexed; guarded by mutationLock
+    private final ValueIndex valueIndex;
+
+    // Latest changes, for clients catching up from a revision, null if none are kept; guarded by mutationLock
+    private final ChangeJournal journal;
+
+    // Tells this instance's revisions apart from those of other instances or earlier runs
+    private final long journalId = new Random().nextLong() & Long.MAX_VALUE;
+
+    // Serializes snapshots, and the sequence number of the latest one
+    private final Object snapshotLock = new Object();
+    private long snapshotSequence = 0;
+
+    // Runs the periodic snapshot check, null if there is no log or periodic snapshots are disabled
+    private ScheduledExecutorService snapshotExecutor = null;
+
+    // Entries with a TTL, keyed by the entry as written so a rewritten entry's old timer is ignored
+    private final TimerWheel<KeyValue> expiryWheel;
+
+    // Ticks the expiry wheel
+    private ScheduledExecutorService expiryExecutor = null;
+
+    // Chooses entries to evict when over the memory budget, null if the store is unbounded
+    private final EvictionPolicy evictionPolicy;
+
+    // Approximate size of the entries, guarded by mutationLock
+    private long memoryBytes = 0;
+
+    // Assumed per entry cost of the index node, message and strings on top of the characters
+    private static final long ENTRY_OVERHEAD_BYTES = 200;
+
+    // Write results set on the serialized entries of POST responses
+    private static final KeyValue CREATED_RESULT = KeyValue.newBuilder().setWriteResult(WriteResult.CREATED).build();
+    private static final KeyValue UPDATED_RESULT = KeyValue.newBuilder().setWriteResult(WriteResult.UPDATED).build();
+
+    // Standby replicas the changes are streamed to, and the sequence number of the latest change sent,
+    // both guarded by mutationLock
+    private final List<ReplicationSink> replicas = new ArrayList<ReplicationSink>();
+    private long replicationSequence = 0;
+
+    // True while the service is a standby applying the changes of a primary
+    private volatile boolean standby = false;
+
+    // Set to make the standby apply the changes it has received and stop
+    private volatile boolean promoting = false;
+
+    // Applies the primary's changes, null unless the service is a standby
+    private Thread replicationThread = null;
+    private ReplicationSource replicationSource = null;
+
+    // Latest change applied as a standby and how long after the primary made it, guarded by mutationLock
+    private long appliedSequence = 0;
+    private long replicationLagMs = 0;
+
+    // Why the standby stopped applying the primary's changes, null while it is following
+    private volatile String replicationFailure = null;
+
+    // How long the standby waits for a change before checking whether it is being promoted
+    private static final long REPLICATION_POLL_MS = 50;
+
+    // Keys and patterns subscribed to that are remembered before batched events give way to one per pair
+    private static final int MAX_KEY_SUBSCRIPTIONS = 100000;
+
+    // Entries whose TTL ran out while the service was a standby, or whose expiry failed, only used by
+    // the expiry thread
+    private final List<KeyValue> overdue = new ArrayList<KeyValue>();
+
+    // Assigns keys to shards, null if the service isn't sharded
+    private final KeyValueShardRing shardRing;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // Failures of the snapshot, expiry and replication threads, and the latest one
+    private final AtomicLong backgroundFailures = new AtomicLong();
+    private volatile String lastBackgroundFailure = null;
+
+    /**
+     * Creates an in-memory only service.
+     *
+     * @param publisher Interface for publishing/binding subscriptions for events.
+     */
+    public KeyValueServiceImplementor(EventPublisher publisher) {
+        this(publisher, new KeyValueServiceSettings(), null);
+
+        startExpiry();
+    }
+
+    /**
+     * Creates a service configured by settings. If a log directory is set, the latest snapshot and
+     * the log written after it are loaded into the map before the constructor returns.
+     *
+     * @param publisher Interface for publishing/binding subscriptions for events.
+     * @param settings Service settings.
+     * @throws IOException If the snapshot or write-ahead log can't be opened or read.
+     */
+    public KeyValueServiceImplementor(EventPublisher publisher, KeyValueServiceSettings settings) throws IOException {
+        this(publisher, settings, openLog(settings));
+
+        if (log != null) {
+            recover();
+
+            // The budget may have been lowered since the entries were written
+            List<KeyValue> evicted = new ArrayList<KeyValue>();
+            List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+            long sequence;
+            synchronized (mutationLock) {
+                sequence = evictOverBudget(evicted);
+                addRemovedEvents(events, evicted);
+                queueEvents(events, sequence);
+            }
+            awaitDurable(sequence);
+            publishEvents(events);
+        }
+
+        startExpiry();
+    }
+
+    private KeyValueServiceImplementor(EventPublisher publisher, KeyValueServiceSettings settings, WriteAheadLog log) {
+        this.publisher = publisher;
+        this.settings = settings;
+        this.log = log;
+        this.map = settings.getStorageMode().create(settings.getOffHeapSlabBytes());
+        this.expiryWheel = new TimerWheel<KeyValue>(settings.getTtlTickMs(), System.currentTimeMillis());
+        this.evictionPolicy = settings.getMemoryBudgetBytes() > 0 ? settings.getEvictionPolicy().create(settings.getMemoryBudgetBytes()) : null;
+        this.shardRing = settings.getShardCount() > 1 ? new KeyValueShardRing(settings.getShardCount()) : null;
+        this.valueIndex = settings.isValueIndex() ? new ValueIndex() : null;
+        this.requestLimiter = settings.getMaxInFlightRequests() > 0 ? new RequestLimiter(settings.getMaxInFlightRequests()) : null;
+        this.requestExecutor = settings.getWorkerThreads() > 0 ? new KeyStripedExecutor(settings.getWorkerThreads(), settings.getWorkerQueueCapacity()) : null;
+        this.journal = settings.getJournalCapacity() > 0 ? new ChangeJournal(settings.getJournalCapacity(), 0) : null;
+        this.coalescer = settings.getCoalesceWindowMs() > 0 ? new EventCoalescer(publisher, settings.getCoalesceWindowMs()) : null;
+        this.bindingCache = settings.getBindingCacheSize() > 0 ? new BindingCache(settings.getBindingCacheSize(), settings.getBindingIdleSeconds() * 1000) : null;
+        this.keySubscriptions = settings.getBulkEvents() == BulkEvents.BATCHED ? new KeySubscriptions(MAX_KEY_SUBSCRIPTIONS) : null;
+        this.publishQueue = settings.getPublishQueueCapacity() > 0 ? new PublishQueue(settings.getPublishQueueCapacity(), settings.getPublishOverflowPolicy(), new PublishQueue.Handler() {
+            @Override
+            public void publish(long sequence, Envelope.SubscriptionEventType eventType, KeyValue msg) throws IOException {
+
+                // Subscribers must never see a change that a restart could lose
+                awaitDurable(sequence);
+                KeyValueServiceImplementor.this.publish(eventType, msg);
+            }
+        }) : null;
+    }
+
+    /**
+     * Opens the write-ahead log configured in the settings.
+     *
+     * @return The log, or null if no log directory is set.
+     */
+    private static WriteAheadLog openLog(KeyValueServiceSettings settings) throws IOException {
+
+        if (settings.getLogDirectory() == null) {
+            return null;
+        }
+
+        return new WriteAheadLog(settings.getLogDirectory(), settings.getDurabilityMode(), settings.getAsyncFlushIntervalMs());
+    }
+
+    /**
+     * Loads the latest snapshot, replays the log records written after it and starts the periodic
+     * snapshot check.
+     */
+    private void recover() throws IOException {
+
+        // Rebuild the map by loading the snapshot and re-applying every later change in order
+        WriteAheadLog.RecordHandler handler = new WriteAheadLog.RecordHandler() {
+            @Override
+            public void onRecord(WriteAheadLog.Operation operation, KeyValue record) {
+                applyLogRecord(operation, record, valueHash(record));
+            }
+        };
+
+        SnapshotFile.Position position = SnapshotFile.loadLatest(settings.getLogDirectory(), handler);
+        snapshotSequence = position.getSequence();
+        revision = Math.max(revision, position.getRevision());
+
+        log.replay(handler, snapshotSequence);
+
+        if (settings.getSnapshotIntervalSeconds() > 0) {
+
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "KeyValue snapshots");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            long interval = settings.getSnapshotIntervalSeconds();
+            snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Only worth a snapshot once enough log has accumulated to slow down a restart
+                        if (log.getLastSequence() - snapshotSequence >= settings.getSnapshotMinLogRecords()) {
+                            snapshot();
+                        }
+                    } catch (Exception ex) {
+                        // The log keeps every change, the snapshot is tried again next interval
+                        backgroundFailed("writing key-value snapshot", ex);
+                    }
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Schedules the TTLs of the entries loaded on startup and starts ticking the expiry wheel.
+     * Entries whose TTL ran out while the service was down expire on the first tick.
+     */
+    private void startExpiry() {
+
+        for (Iterator<KeyValue> entries = map.all(); entries.hasNext(); ) {
+            KeyValue entry = entries.next();
+            if (entry.hasExpiresAt()) {
+                expiryWheel.schedule(entry.getExpiresAt(), entry);
+            }
+        }
+
+        expiryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "KeyValue expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long tick = settings.getTtlTickMs();
+        expiryExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                List<KeyValue> due = null;
+
+                try {
+                    due = expiryWheel.advance(System.currentTimeMillis());
+
+                    if (standby) {
+                        holdOverdue(due);
+                    } else {
+                        due.addAll(overdue);
+                        overdue.clear();
+                        expire(due);
+                    }
+                } catch (Exception ex) {
+
+                    // The timers have fired, so hold the entries to try again on the next tick; the
+                    // ones already expired are skipped then
+                    if (due != null && !standby) {
+                        overdue.addAll(due);
+                    }
+                    backgroundFailed("expiring key-value entries", ex);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes the entries whose TTL ran out, unless they have been written again since the timer was
+     * set, and publishes a REMOVED event for each.
+     *
+     * @param due Entries as they were when their timers were set.
+     */
+    private void expire(List<KeyValue> due) throws IOException {
+
+        if (due.isEmpty()) {
+            return;
+        }
+
+        List<KeyValue> removed = new ArrayList<KeyValue>();
+        List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+        long sequence = 0;
+
+        synchronized (mutationLock) {
+
+            for (KeyValue entry : due) {
+
+                // A later write replaced the entry and any TTL it had, so this timer is stale
+                KeyValue current = map.get(entry.getKey());
+                if (current == null || current.getRevision() != entry.getRevision()) {
+                    continue;
+                }
+
+                // Log the expiry as a delete so a restart doesn't bring the entry back
+                sequence = logRemoval(entry.getKey());
+                removeEntry(entry.getKey());
+                removed.add(removedAt(current));
+            }
+
+            addRemovedEvents(events, removed);
+            queueEvents(events, sequence);
+        }
+
+        awaitDurable(sequence);
+
+        publishEvents(events);
+    }
+
+    /**
+     * A standby leaves expiry to the primary, whose deletes normally arrive around the same tick. The
+     * entries that are due are held back until the standby is promoted, dropping those the primary
+     * has already deleted or written again.
+     */
+    private void holdOverdue(List<KeyValue> due) {
+
+        overdue.addAll(due);
+
+        for (Iterator<KeyValue> entries = overdue.iterator(); entries.hasNext(); ) {
+            KeyValue entry = entries.next();
+            KeyValue current = map.get(entry.getKey());
+            if (current == null || current.getRevision() != entry.getRevision()) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the map and deletes the snapshots and log segments the previous snapshot
+     * replaced. Does nothing if the store is in-memory only or nothing changed since the last snapshot.
+     *
+     * The previous snapshot and the log after it are kept until the next one, since the rename that
+     * makes a snapshot current can't be forced to disk (see SnapshotFile); if a crash loses it, the
+     * restart loads the previous snapshot and replays the log from there.
+     *
+     * The map is not locked while it is written out, so the snapshot may already include some
+     * changes logged after its sequence number. Replaying those records again on startup is
+     * harmless since each one sets the final state of its key.
+     *
+     * @throws IOException If the snapshot can't be written.
+     */
+    public void snapshot() throws IOException {
+
+        if (log == null) {
+            return;
+        }
+
+        synchronized (snapshotLock) {
+
+            long sequence;
+            long snapshotRevision;
+
+            synchronized (mutationLock) {
+
+                // Every change logged before the new segment starts has been applied to the map
+                sequence = log.rotate();
+                snapshotRevision = revision;
+            }
+
+            if (sequence == snapshotSequence) {
+                return;
+            }
+
+            SnapshotFile.write(settings.getLogDirectory(), sequence, snapshotRevision, map.all());
+
+            // The new snapshot is on disk and the previous one's rename long since flushed, so what
+            // the previous one covers can go
+            SnapshotFile.deleteBefore(settings.getLogDirectory(), snapshotSequence);
+            SnapshotFile.deleteAbandonedBefore(settings.getLogDirectory(), sequence);
+            log.deleteSegmentsThrough(snapshotSequence);
+
+            snapshotSequence = sequence;
+        }
+    }
+
+    /**
+     * Re-applies a change read from the write-ahead log to the map, and moves the revision past it.
+     *
+     * @param valueHash Value index hash of a PUT record, from valueHash.
+     */
+    private void applyLogRecord(WriteAheadLog.Operation operation, KeyValue record, long valueHash) {
+
+        if (operation == WriteAheadLog.Operation.PUT) {
+            storeEntry(record, valueHash);
+            revision = Math.max(revision, record.getRevision());
+        } else if (operation == WriteAheadLog.Operation.DELETE) {
+            removeEntry(record.getKey());
+            revision = Math.max(revision, record.getRevision());
+        } else if (operation == WriteAheadLog.Operation.CLEAR) {
+            clearEntries();
+            revision = Math.max(revision, record.getRevision());
+        }
+    }
+
+    /**
+     * Builds the entry written by a PUT request or POST entry, stamped with the next revision and its
+     * expiry time (if it has a TTL). Must be called holding mutationLock.
+     */
+    private KeyValue newEntry(KeyValue request) {
+
+        KeyValue.Builder entry = KeyValue.newBuilder().setKey(request.getKey()).setRevision(++revision);
+
+        // Binary values are kept as the request's bytes, without copying or decoding them
+        if (request.hasBinaryValue()) {
+            entry.setBinaryValue(request.getBinaryValue());
+            if (request.hasCompression()) {
+                entry.setCompression(request.getCompression());
+            }
+        } else {
+            entry.setValue(request.getValue());
+        }
+
+        if (request.hasTtlMs() && request.getTtlMs() > 0) {
+            entry.setExpiresAt(System.currentTimeMillis() + request.getTtlMs());
+        }
+
+        return entry.build();
+    }
+
+    /**
+     * Puts an entry into the map and sets its expiry timer (if it has a TTL). Must be called holding
+     * mutationLock.
+     *
+     * @param valueHash Value index hash of the entry's value, from valueHashes.
+     * @return The entry it replaced, null if the key is new.
+     */
+    private KeyValue putEntry(KeyValue msg, long valueHash) {
+
+        KeyValue previous = storeEntry(msg, valueHash);
+
+        if (msg.hasExpiresAt()) {
+            expiryWheel.schedule(msg.getExpiresAt(), msg);
+        }
+
+        if (journal != null) {
+            journal.recordPut(msg);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Logs the removal of an entry by a delete, expiry or eviction, stamped with the next revision,
+     * and adds it to the journal. Must be called holding mutationLock, just before the entry is removed.
+     *
+     * @return Sequence number to pass to awaitDurable, 0 if there is no log.
+     */
+    private long logRemoval(String key) throws IOException {
+
+        long sequence = appendToLog(WriteAheadLog.Operation.DELETE, KeyValue.newBuilder().setKey(key).setRevision(++revision).build());
+
+        if (journal != null) {
+            journal.recordRemove(key, revision);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Puts an entry into the map, keeping the memory accounting, eviction policy and value index up
+     * to date.
+     *
+     * @param valueHash Value index hash of the entry's value, computed before taking mutationLock.
+     * @return The entry it replaced, null if the key is new.
+     */
+    private KeyValue storeEntry(KeyValue msg, long valueHash) {
+
+        KeyValue previous = map.put(msg);
+
+        memoryBytes += entryWeight(msg) - (previous == null ? 0 : entryWeight(previous));
+
+        if (evictionPolicy != null) {
+            evictionPolicy.recordWrite(msg.getKey(), entryWeight(msg));
+        }
+
+        if (valueIndex != null) {
+            valueIndex.put(msg, valueHash);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Removes an entry from the map, keeping the memory accounting, eviction policy and value index
+     * up to date.
+     *
+     * @return The removed entry, null if there was none.
+     */
+    private KeyValue removeEntry(String key) {
+
+        KeyValue previous = map.remove(key);
+
+        if (previous != null) {
+            memoryBytes -= entryWeight(previous);
+
+            if (evictionPolicy != null) {
+                evictionPolicy.recordRemoval(key);
+            }
+
+            if (valueIndex != null) {
+                valueIndex.remove(key);
+            }
+        }
+
+        return previous;
+    }
+
+    /**
+     * Removes every entry from the map.
+     */
+    private void clearEntries() {
+
+        map.clear();
+        memoryBytes = 0;
+
+        if (evictionPolicy != null) {
+            evictionPolicy.clear();
+        }
+
+        if (valueIndex != null) {
+            valueIndex.clear();
+        }
+    }
+
+    /**
+     * @return Approximate memory used by an entry, in bytes, including the serialized copy kept to
+     *         answer GETs with.
+     */
+    private static long entryWeight(KeyValue msg) {
+        return ENTRY_OVERHEAD_BYTES + 2L * (msg.getKey().length() + msg.getValue().length()) + msg.getBinaryValue().size() + msg.getSerializedSize();
+    }
+
+    /**
+     * Evicts entries, as chosen by the eviction policy, until the store is within its memory budget.
+     * Evictions are logged as deletes. Must be called holding mutationLock.
+     *
+     * @param evicted Receives the evicted entries, stamped with the revisions of their removal.
+     * @return Sequence number of the last logged eviction, 0 if there were none.
+     */
+    private long evictOverBudget(List<KeyValue> evicted) throws IOException {
+
+        long sequence = 0;
+
+        if (evictionPolicy == null) {
+            return sequence;
+        }
+
+        while (memoryBytes > settings.getMemoryBudgetBytes()) {
+
+            String key = evictionPolicy.victim();
+            if (key == null) {
+                break;
+            }
+
+            sequence = logRemoval(key);
+            evicted.add(removedAt(removeEntry(key)));
+            evictions.incrementAndGet();
+        }
+
+        return sequence;
+    }
+
+    /**
+     * @return Removed entry stamped with the revision of its removal, to publish in its REMOVED event.
+     *         Must be called holding mutationLock, right after logRemoval.
+     */
+    private KeyValue removedAt(KeyValue entry) {
+        return entry.toBuilder().setSequence(revision).build();
+    }
+
+    /**
+     * Adds a REMOVED event for each entry removed by the service itself (expired or evicted).
+     */
+    private void addRemovedEvents(List<ChangeEvent> events, List<KeyValue> removed) {
+
+        for (KeyValue msg : removed) {
+
+            // A "REMOVED" event notifies subscribers the object is deleted
+            events.add(new ChangeEvent(Envelope.SubscriptionEventType.REMOVED, msg));
+        }
+    }
+
+    /**
+     * @return Current entry count, memory use, hit rate and eviction counters.
+     */
+    public KeyValueStatistics getStatistics() {
+
+        long entries;
+        long bytes;
+
+        synchronized (mutationLock) {
+            entries = map.size();
+            bytes = memoryBytes;
+        }
+
+        long coalesced = coalescer == null ? 0 : coalescer.getSuppressed();
+        long skippedBinds = bindingCache == null ? 0 : bindingCache.getSkipped();
+
+        return new KeyValueStatistics(entries, bytes, settings.getMemoryBudgetBytes(), hits.get(), misses.get(), evictions.get(), coalesced, skippedBinds, backgroundFailures.get(), lastBackgroundFailure);
+    }
+
+    /**
+     * The one error path of the snapshot, expiry and replication threads: prints the failure, like
+     * the rest of the service, and counts it in the statistics so it can be monitored.
+     *
+     * @param task What the thread was doing, for the message.
+     */
+    private void backgroundFailed(String task, Exception ex) {
+
+        backgroundFailures.incrementAndGet();
+        lastBackgroundFailure = "Error " + task + ": " + ex;
+
+        System.out.println("Error " + task + ": " + ex.getMessage());
+        ex.printStackTrace();
+    }
+
+    /**
+     * @return Depth, lag and counters of the publish queue, null if events are published before
+     *         responding.
+     */
+    public PublishQueueStatus getPublishQueueStatus() {
+        return publishQueue == null ? null : publishQueue.getStatus();
+    }
+
+    /**
+     * @return Requests in flight and waiting for a worker, and how many were shed, null if requests
+     *         are neither bounded nor handed to workers. The in flight counts are 0 if requests aren't
+     *         bounded.
+     */
+    public RequestLimiterStatus getRequestLimiterStatus() {
+
+        if (requestExecutor == null) {
+            return requestLimiter == null ? null : requestLimiter.getStatus();
+        }
+
+        RequestLimiterStatus status = requestLimiter == null ? new RequestLimiterStatus(0, 0, 0, 0, 0, 0, 0) : requestLimiter.getStatus();
+        return status.withWorkerQueues(requestExecutor.getQueued(), requestExecutor.getRejected());
+    }
+
+    /**
+     * Checks that a key belongs to this instance's shard.
+     *
+     * @return Null if the key is stored here, otherwise the error message to reject the request with.
+     */
+    private String checkShard(String key) {
+
+        if (shardRing == null) {
+            return null;
+        }
+
+        int shard = shardRing.shardFor(key);
+        if (shard == settings.getShardIndex()) {
+            return null;
+        }
+
+        return "Key: " + key + " belongs to shard: " + shard + ", not shard: " + settings.getShardIndex();
+    }
+
+    /**
+     * @return Null if every entry of a POST batch belongs to this instance's shard, otherwise the
+     *         error message to reject the batch with.
+     */
+    private String checkShard(List<KeyValue> entries) {
+
+        for (KeyValue entry : entries) {
+            String wrongShard = checkShard(entry.getKey());
+            if (wrongShard != null) {
+                return wrongShard;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks an expected revision (if any) against the current entry. Must be called holding
+     * mutationLock.
+     *
+     * @param request Request message, or entry of a batch, that may carry an expected revision.
+     * @return Null if the write can go ahead, otherwise the error message to reject it with.
+     */
+    private String checkRevision(KeyValue request) {
+
+        if (!request.hasExpectedRevision()) {
+            return null;
+        }
+
+        KeyValue current = map.get(request.getKey());
+        long actual = current == null ? 0 : current.getRevision();
+
+        if (actual == request.getExpectedRevision()) {
+            return null;
+        }
+
+        return "Revision mismatch for key: " + request.getKey() + ", expected: " + request.getExpectedRevision() + ", actual: " + actual;
+    }
+
+    /**
+     * Forgets that a subscription queue is bound, so a queue re-created with the same name is bound
+     * again by its next subscribing request. Called when the broker or the client reports the queue
+     * gone; queues that go away unreported are forgotten once idle.
+     *
+     * @param subQueue Subscription queue name, as sent in SUB_QUEUE_NAME.
+     */
+    public void subscriptionQueueClosed(String subQueue) {
+        if (bindingCache != null) {
+            bindingCache.forgetQueue(subQueue);
+        }
+    }
+
+    /**
+     * Starts streaming changes to a standby replica. The replica first receives the current entries,
+     * as a CLEAR followed by a PUT for each, then every later change in the order it is applied.
+     * Changes are streamed asynchronously, so a write acknowledged just before the primary fails may
+     * not reach the replica.
+     *
+     * @param replica Transport to the replica.
+     */
+    public void attachReplica(ReplicationSink replica) {
+
+        // Hold off writes while the current entries are queued so no change falls between them and the stream
+        synchronized (mutationLock) {
+
+            long now = System.currentTimeMillis();
+            replica.send(new ReplicationRecord(++replicationSequence, now, WriteAheadLog.Operation.CLEAR, KeyValue.newBuilder().setKey("*").build()));
+
+            for (Iterator<KeyValue> entries = map.all(); entries.hasNext(); ) {
+                replica.send(new ReplicationRecord(++replicationSequence, now, WriteAheadLog.Operation.PUT, entries.next()));
+            }
+
+            replicas.add(replica);
+        }
+    }
+
+    /**
+     * Stops streaming changes to a standby replica.
+     *
+     * @param replica Transport passed to attachReplica.
+     */
+    public void detachReplica(ReplicationSink replica) {
+
+        synchronized (mutationLock) {
+            replicas.remove(replica);
+        }
+    }
+
+    /**
+     * Makes the service a hot standby, applying a primary's changes on a background thread until it is
+     * promoted. A standby serves GETs but rejects writes, publishes no events and leaves expiry and
+     * eviction to the primary. Changes are also written to the standby's own log, if it has one.
+     *
+     * @param source Transport from the primary, which the standby should be attached to.
+     */
+    public void followPrimary(final ReplicationSource source) {
+
+        standby = true;
+        replicationSource = source;
+
+        replicationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+
+                        // Once promotion starts, apply whatever has already arrived and stop
+                        ReplicationRecord record = source.poll(promoting ? 0 : REPLICATION_POLL_MS, TimeUnit.MILLISECONDS);
+
+                        if (record != null) {
+                            applyReplicated(record);
+                        } else if (promoting) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    // Closed while still a standby
+                } catch (Exception ex) {
+
+                    // Applying later changes without this one would leave the standby silently diverged,
+                    // so it stops following and reports itself failed
+                    replicationFailure = ex.toString();
+                    backgroundFailed("applying replicated key-value change", ex);
+                }
+            }
+        }, "KeyValue replication");
+        replicationThread.setDaemon(true);
+        replicationThread.start();
+    }
+
+    /**
+     * Promotes a standby to take over from its primary. The changes already received are applied, then
+     * the service starts accepting writes, publishing events and expiring entries. Takes as long as
+     * applying the received backlog, typically milliseconds. Does nothing if the service isn't a standby.
+     *
+     * @throws InterruptedException If interrupted while the backlog is applied.
+     * @throws IllegalStateException If the standby failed to apply a change, so it is missing changes
+     *             and has to be seeded from the primary again instead.
+     */
+    public void promote() throws InterruptedException {
+
+        if (replicationThread == null) {
+            return;
+        }
+
+        promoting = true;
+        replicationThread.join();
+
+        if (replicationFailure != null) {
+            promoting = false;
+            throw new IllegalStateException("Standby stopped following its primary, it can't be promoted: " + replicationFailure);
+        }
+
+        replicationThread = null;
+
+        standby = false;
+    }
+
+    /**
+     * Applies a change streamed from the primary, logging it first like any other change.
+     */
+    private void applyReplicated(ReplicationRecord record) throws IOException {
+
+        KeyValue entry = record.getEntry();
+
+        // Hashing a compressed value inflates it, so it is done before taking the lock
+        long valueHash = record.getOperation() == WriteAheadLog.Operation.PUT ? valueHash(entry) : 0;
+
+        synchronized (mutationLock) {
+
+            appendToLog(record.getOperation(), entry);
+            applyLogRecord(record.getOperation(), entry, valueHash);
+
+            // Changes are only journaled by the instance making them, so this instance's clients can
+            // only catch up from its latest revision
+            if (journal != null) {
+                journal.reset(revision);
+            }
+
+            // Keep the TTL timers so expiry can take over on promotion
+            if (record.getOperation() == WriteAheadLog.Operation.PUT && entry.hasExpiresAt()) {
+                expiryWheel.schedule(entry.getExpiresAt(), entry);
+            }
+
+            appliedSequence = record.getSequence();
+            replicationLagMs = System.currentTimeMillis() - record.getTimestampMs();
+        }
+    }
+
+    /**
+     * @return Whether the service is a standby, and how far it is behind its primary, or how far
+     *         its own replicas' streams have got.
+     */
+    public ReplicationStatus getReplicationStatus() {
+
+        synchronized (mutationLock) {
+
+            if (standby) {
+                return new ReplicationStatus(true, replicas.size(), appliedSequence, replicationSource.pending(), replicationLagMs, replicationFailure);
+            }
+
+            return new ReplicationStatus(false, replicas.size(), replicationSequence, 0, 0, null);
+        }
+    }
+
+    /**
+     * Appends a change to the write-ahead log. Must be called holding mutationLock, just before the
+     * change is applied to the map.
+     *
+     * @return Sequence number to pass to awaitDurable, 0 if there is no log.
+     */
+    private long appendToLog(WriteAheadLog.Operation operation, KeyValue record) throws IOException {
+
+        long sequence = log == null ? 0 : log.append(operation, record);
+
+        // Stream the change to the standby replicas in the order it is applied
+        if (!replicas.isEmpty()) {
+            ReplicationRecord change = new ReplicationRecord(++replicationSequence, System.currentTimeMillis(), operation, record);
+            for (ReplicationSink replica : replicas) {
+                replica.send(change);
+            }
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Waits for a logged change to be on disk (as defined by the durability mode).
+     */
+    private void awaitDurable(long sequence) throws IOException {
+        if (log != null) {
+            log.awaitDurable(sequence);
+        }
+    }
+
+    /**
+     * Writes a final snapshot (so the next startup has no log to replay) and closes the write-ahead
+     * log, if any. Requests must no longer be arriving.
+     *
+     * @throws IOException If the final snapshot or flush fails.
+     */
+    public void close() throws IOException {
+
+        // Handle the requests still queued on the workers while everything below is running
+        if (requestExecutor != null) {
+            try {
+                requestExecutor.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (replicationThread != null) {
+            replicationThread.interrupt();
+        }
+
+        if (expiryExecutor != null) {
+            expiryExecutor.shutdownNow();
+        }
+
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+        }
+
+        // Publish the queued events before the coalescer flushes what they leave behind
+        if (publishQueue != null) {
+            try {
+                publishQueue.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (coalescer != null) {
+            coalescer.close();
+        }
+
+        if (log != null) {
+            try {
+                snapshot();
+            } finally {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * Implements the "GET" verb. Returns a specific key-value pair, all of them, all pairs with keys
+     * starting with a prefix (key of the form "prefix*") or all pairs with keys in a range (key and
+     * end_key both set). Prefix and range requests are answered from the ordered index and only
+     * visit the matching entries.
+     *
+     * Requests for more than one entry can be paged by setting page_size; the last entry of a page
+     * that has more entries after it carries the token to request the next page with.
+     *
+     * A request for "*" or a prefix with changes_since returns the changes made since that revision,
+     * if the journal still has them, or else every matching entry marked as a snapshot, as of the
+     * revision returned along with them.
+     *
+     * A request with a list of keys (and no key) returns the entry of each key in one response, in
+     * the order of the keys, with a placeholder marked missing for each key that has no entry.
+     *
+     * A request with a value (and no key) returns a placeholder with just the key for each entry
+     * holding that string value, in key order, if values are indexed.
+     *
+     * @param message Request message.
+     * @param id ID that correlates request and response message.
+     * @param callback Used to respond to the request.
+     */
+    private void doGet(KeyValue message, String id, ServiceResponseCallback callback) {
+
+        // Create a ServiceResponse to send when finished processing
+        Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+
+        // Set the correlation id on the response to the same from the request
+        b.setId(id);
+
+        // Message to reject the request with if its keys are stored by another shard
+        String wrongShard;
+
+        if (message.getKeysCount() > 0) {
+
+            // Got a list of keys, answer them all in this response
+            String error = addKeys(message.getKeysList(), b);
+
+            if (error != null) {
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage(error);
+            } else {
+
+                // Return "OK" response status even if some keys are missing
+                b.setStatus(Envelope.Status.OK);
+            }
+
+        } else if (!message.hasKey() && message.hasValue() && valueIndex == null) {
+
+            // Finding keys by value would take a scan of every entry
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage("Values aren't indexed, set index.values to look up keys by value");
+
+        } else if (!message.hasKey() && message.hasValue()) {
+
+            // Got a value, look up the entries of the keys whose values share its hash in the index
+            List<KeyValue> candidates = new ArrayList<KeyValue>();
+            synchronized (mutationLock) {
+                for (String key : valueIndex.candidateKeys(message.getValue())) {
+                    KeyValue entry = map.get(key);
+                    if (entry != null) {
+                        candidates.add(entry);
+                    }
+                }
+            }
+
+            // Drop any that only share its hash, outside the lock since compressed values are inflated
+            List<String> keys = new ArrayList<String>();
+            for (KeyValue entry : candidates) {
+                if (ValueIndex.holdsValue(entry, message.getValue())) {
+                    keys.add(entry.getKey());
+                }
+            }
+
+            // Return just the keys, as placeholders in key order
+            for (String key : keys) {
+                b.addPayload(KeyValue.newBuilder().setKey(key).build().toByteString());
+            }
+
+            // Return "OK" response status even if no key holds the value
+            b.setStatus(Envelope.Status.OK);
+
+        } else if (!message.hasKey()) {
+
+            // Must have a key; a BAD_REQUEST error with an appropriate message
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage("Must include key in get request");
+
+        } else if (KeyValuePattern.isPattern(message.getKey()) && message.hasChangesSince()) {
+
+            // Got a change request for every key or a prefix, answer with the changes since the client's revision
+            b.addPayload(changesSince(message));
+
+            // Return "OK" response status, whether the changes or every entry are returned
+            b.setStatus(Envelope.Status.OK);
+
+        } else if (message.getKey().equals("*")) {
+
+            // Got the special key "*", go through all entries in the map and collect them
+            addEntries(null, null, message, b);
+
+            // Return "OK" response status
+            b.setStatus(Envelope.Status.OK);
+
+        } else if (message.hasEndKey()) {
+
+            if (message.getKey().compareTo(message.getEndKey()) > 0) {
+
+                // The ordered index can't produce a range that ends before it starts
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage("Range start: " + message.getKey() + " is after range end: " + message.getEndKey());
+
+            } else {
+
+                // Got a range, collect only the entries between the start (inclusive) and end (exclusive) keys
+                addEntries(message.getKey(), message.getEndKey(), message, b);
+
+                // Return "OK" response status even if nothing is found
+                b.setStatus(Envelope.Status.OK);
+            }
+
+        } else if (message.getKey().endsWith("*")) {
+
+            // Got a prefix, strip the trailing "*" to get the start of the matching keys
+            String prefix = message.getKey().substring(0, message.getKey().length() - 1);
+
+            // Keys are sorted, so all keys with the prefix form one contiguous range of the index
+            addEntries(prefix, prefixEnd(prefix), message, b);
+
+            // Return "OK" response status even if nothing is found
+            b.setStatus(Envelope.Status.OK);
+
+        } else if ((wrongShard = checkShard(message.getKey())) != null) {
+
+            // The key is stored by another shard, the client is routing with the wrong shard count
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage(wrongShard);
+
+        } else {
+
+            // Get (possible) entry out of the map using the specified key, already serialized
+            ByteString msg = map.getSerialized(message.getKey());
+
+            // If the value exists, we return it
+            if (msg != null) {
+
+                // Count the hit, and let the eviction policy know the entry is in use
+                hits.incrementAndGet();
+                if (evictionPolicy != null) {
+                    evictionPolicy.recordAccess(message.getKey());
+                }
+
+                // Add to the list of messages returned by the request
+                b.addPayload(msg);
+
+                // Return "OK" response status even if nothing is found
+                b.setStatus(Envelope.Status.OK);
+            }else{
+                misses.incrementAndGet();
+
+                // if key wasn't in map return a failure
+                b.setErrorMessage("Key: " + message.getKey() + " unknown");
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+            }
+        }
+
+        // Send the response message
+        callback.onResponse(b.build());
+    }
+
+    /**
+     * Answers a change request with the changes made since the client's revision, or every entry if
+     * the journal doesn't have them (or the revision came from another instance). Either way the
+     * response is exactly the store as of the revision it carries.
+     *
+     * @param request Request message, with "*" or a prefix pattern, the revision the client has and
+     *                the journal it came from.
+     * @return Serialized message with the request's key carrying the changes (or entries) and the
+     *         current revision.
+     */
+    private ByteString changesSince(KeyValue request) {
+
+        // Strip the trailing "*", leaving nothing for every key
+        String prefix = request.getKey().substring(0, request.getKey().length() - 1);
+
+        KeyValue.Builder response = KeyValue.newBuilder().setKey(request.getKey()).setJournalId(journalId);
+        List<KeyValue> changes = null;
+        long current;
+
+        synchronized (mutationLock) {
+
+            current = revision;
+
+            if (journal != null && request.getJournalId() == journalId && request.getChangesSince() <= current) {
+                changes = journal.changesAfter(request.getChangesSince());
+            }
+        }
+
+        if (changes != null) {
+
+            // Compact the copied changes now writers are no longer held up
+            response.addAllEntries(ChangeJournal.compact(changes, prefix));
+
+            return response.setRevision(current).build().toByteString();
+        }
+
+        // Read the entries without holding up writers, then bring them up to date with the changes
+        // made while they were read
+        Map<String, KeyValue> snapshot = readEntries(prefix);
+
+        synchronized (mutationLock) {
+
+            List<KeyValue> meanwhile = journal != null ? journal.changesAfter(current) : null;
+
+            if (meanwhile == null) {
+
+                // The journal doesn't reach back to when the read started, read again holding writers up
+                snapshot = readEntries(prefix);
+            } else {
+                for (KeyValue change : meanwhile) {
+                    if (!change.getKey().startsWith(prefix)) {
+                        continue;
+                    }
+
+                    // Applied in revision order, so the latest change of each key wins
+                    if (change.getMissing()) {
+                        snapshot.remove(change.getKey());
+                    } else {
+                        snapshot.put(change.getKey(), change);
+                    }
+                }
+            }
+
+            current = revision;
+        }
+
+        response.setSnapshot(true).addAllEntries(snapshot.values());
+
+        return response.setRevision(current).build().toByteString();
+    }
+
+    /**
+     * @return Entries with keys starting with a prefix (every entry for an empty prefix) by key.
+     */
+    private Map<String, KeyValue> readEntries(String prefix) {
+
+        Map<String, KeyValue> entries = new TreeMap<String, KeyValue>();
+        for (Iterator<KeyValue> it = map.range(prefix.isEmpty() ? null : prefix, true, prefixEnd(prefix), Integer.MAX_VALUE); it.hasNext(); ) {
+            KeyValue entry = it.next();
+            entries.put(entry.getKey(), entry);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Adds the entry of each of a list of keys to a response, in order, or a placeholder marked
+     * missing for a key that has no entry.
+     *
+     * @param keys Keys to look up.
+     * @param b Response being built.
+     * @return Null if the keys were added, otherwise the error message to reject the request with.
+     */
+    private String addKeys(List<String> keys, Envelope.ServiceResponse.Builder b) {
+
+        // Bounded like a page, so one request can't build an arbitrarily large response
+        if (keys.size() > settings.getMaxPageSize()) {
+            return "Cannot get " + keys.size() + " keys in one request, the limit is: " + settings.getMaxPageSize();
+        }
+
+        for (String key : keys) {
+
+            // Every key has to be stored here before any is looked up
+            String wrongShard = checkShard(key);
+            if (wrongShard != null) {
+                return wrongShard;
+            }
+        }
+
+        for (String key : keys) {
+
+            // Get (possible) entry out of the map using the key, already serialized
+            ByteString msg = map.getSerialized(key);
+
+            if (msg != null) {
+
+                // Count the hit, and let the eviction policy know the entry is in use
+                hits.incrementAndGet();
+                if (evictionPolicy != null) {
+                    evictionPolicy.recordAccess(key);
+                }
+
+                b.addPayload(msg);
+            } else {
+                misses.incrementAndGet();
+
+                // Keep the key's place in the response so the client can tell which keys are missing
+                b.addPayload(KeyValue.newBuilder().setKey(key).setMissing(true).build().toByteString());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return End (exclusive) of the range of keys that start with a prefix, null if the range has no end.
+     */
+    private static String prefixEnd(String prefix) {
+
+        // The first string after every string with the prefix is the prefix with its last
+        // incrementable character incremented (and anything after it dropped)
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
 
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+        // Empty prefix (or nothing but MAX_VALUE characters), everything from the prefix onwards matches
+        return null;
+    }
 
-/**
- * Service implementation for a simple key-value store. An in-memory map is used instead of
- * a database.
- *
- * The service is implemented in terms of the RESTful get/put/post/delete verbs, and changes to
- * key value objects are published as service subscription events.
- */
-public class KeyValueServiceImplementor implements Service {
+    /**
+     * Adds the entries with keys in a range to a response, in key order. If the request asks for
+     * paging, only adds the requested page and marks the last entry with the token for the next one.
+     *
+     * @param from First key of the range, null for the first key of the map.
+     * @param to End of the range (exclusive), null for no end.
+     * @param request Request message, holding the paging parameters (if any).
+     * @param b Response being built.
+     */
+    private void addEntries(String from, String to, KeyValue request, Envelope.ServiceResponse.Builder b) {
 
-    private final ConcurrentMap<String, String> map = new ConcurrentHashMap<String, String>();
+        boolean fromInclusive = true;
 
-    private final EventPublisher publisher;
+        // The token is the last key of the previous page, continue right after it. Unlike an offset
+        // this stays correct while entries are added and removed between pages
+        if (request.hasPageToken() && (from == null || request.getPageToken().compareTo(from) >= 0)) {
+            from = request.getPageToken();
+            fromInclusive = false;
+        }
+
+        int limit = pageLimit(request);
+        SerializedEntry last = null;
+
+        // One entry more than the page, to know whether there is a next page. The entries come
+        // already serialized, so nothing is built or serialized per entry
+        Iterator<? extends SerializedEntry> entries = map.rangeSerialized(from, fromInclusive, to, limit == Integer.MAX_VALUE ? limit : limit + 1);
+
+        while (entries.hasNext()) {
+
+            SerializedEntry msg = entries.next();
+
+            if (b.getPayloadCount() == limit) {
+
+                // The page is full and there is at least one more entry, tell the client where to continue
+                b.setPayload(limit - 1, withField(last.getSerialized(), KeyValue.newBuilder().setNextPageToken(last.getKey()).build()));
+                break;
+            }
+
+            // Add to the list of messages returned by the request
+            b.addPayload(msg.getSerialized());
+
+            last = msg;
+        }
+    }
 
     /**
-     * @param publisher Interface for publishing/binding subscriptions for events.
+     * Sets fields of a serialized entry without parsing it. Parsing concatenated messages merges them,
+     * so appending a message with only the fields to set gives the entry with those fields set.
+     *
+     * @param serialized Serialized entry.
+     * @param fields Message holding only the fields to set, which the entry doesn't have.
+     * @return Serialized entry with the fields set.
      */
-    public KeyValueServiceImplementor(EventPublisher publisher) {
-        this.publisher = publisher;
+    private static ByteString withField(ByteString serialized, KeyValue fields) {
+        return serialized.concat(fields.toByteString());
+    }
+
+    /**
+     * @return Number of entries to return for a request, capped by the configured maximum page size.
+     */
+    private int pageLimit(KeyValue request) {
+
+        if (!request.hasPageSize() || request.getPageSize() <= 0) {
+            return Integer.MAX_VALUE;
+        }
+
+        return Math.min(request.getPageSize(), settings.getMaxPageSize());
     }
 
     /**
-     * Implements the "GET" verb. Returns a specific key-value pair or all of them.
+     * Implements the "PUT" verb. If key doesn't exist, creates a new entry and sends an ADDED event. If
+     * key already exists, replaces the value and sends a MODIFIED event. If the request has an
+     * expected revision that doesn't match the entry, nothing is written and BAD_REQUEST is returned.
+     * If the request has a TTL, the entry expires unless it is written again before it runs out.
      *
      * @param message Request message.
      * @param id ID that correlates request and response message.
      * @param callback Used to respond to the request.
      */
-    private void doGet(KeyValue message, String id, ServiceResponseCallback callback) {
+    private void doPut(KeyValue message, long[] valueHashes, String id, ServiceResponseCallback callback) throws IOException {
 
         // Create a ServiceResponse to send when finished processing
         Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
@@ -65,48 +1497,91 @@ public class KeyValueServiceImplementor implements Service {
         // Set the correlation id on the response to the same from the request
         b.setId(id);
 
-        if (!message.hasKey()) {
+        // Message to reject the request with if its keys are stored by another shard
+        String wrongShard;
+
+        if (!message.hasKey() || !hasOneValue(message)) {
 
             // Must have a key; a BAD_REQUEST error with an appropriate message
             b.setStatus(Envelope.Status.BAD_REQUEST);
-            b.setErrorMessage("Must include key in get request");
+            b.setErrorMessage("Must include key and either value or binary_value in put request");
 
-        } else if (message.getKey().equals("*")) {
+        } else if ((wrongShard = checkShard(message.getKey())) != null) {
 
-            // Got the special key "*", go through all entries in the map and collect them
-            for (Map.Entry<String, String> entry : map.entrySet()) {
+            // The key is stored by another shard, the client is routing with the wrong shard count
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage(wrongShard);
 
-                // Build the message from the map entry
-                KeyValue msg = KeyValue.newBuilder().setKey(entry.getKey()).setValue(entry.getValue()).build();
+        } else {
 
-                // Add to the list of messages returned by the request
-                b.addPayload(msg.toByteString());
-            }
+            KeyValue msg = null;
+            ByteString payload = null;
+            KeyValue previous = null;
+            List<KeyValue> evicted = new ArrayList<KeyValue>();
+            List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+            String mismatch;
+            long sequence = 0;
 
-            // Return "OK" response status
-            b.setStatus(Envelope.Status.OK);
+            synchronized (mutationLock) {
 
-        } else {
+                // A conditional put only goes ahead if nobody else wrote the entry since it was read
+                mismatch = checkRevision(message);
 
-            // Get (possible) entry out of the map using the specified key
-            String value = map.get(message.getKey());
+                if (mismatch == null) {
 
-            // If the value exists, we return it
-            if (value != null) {
+                    // Build the message for the map entry, stamped with the next revision
+                    msg = newEntry(message);
 
-                // Build the message from the map entry
-                KeyValue msg = KeyValue.newBuilder().setKey(message.getKey()).setValue(value).build();
+                    // Log the change before applying it so the log order matches the map
+                    sequence = appendToLog(WriteAheadLog.Operation.PUT, msg);
 
-                // Add to the list of messages returned by the request
-                b.addPayload(msg.toByteString());
+                    // Put key-value pair into map, getting the (possible) previous value
+                    previous = putEntry(msg, valueHashes[0]);
 
-                // Return "OK" response status even if nothing is found
-                b.setStatus(Envelope.Status.OK);
-            }else{
-                // if key wasn't in map return a failure
-                b.setErrorMessage("Key: " + message.getKey() + " unknown");
+                    // The store serialized the entry, reuse that for the response (before the entry
+                    // can be evicted)
+                    payload = map.getSerialized(msg.getKey());
+
+                    // Make room if the write took the store over its memory budget
+                    sequence = Math.max(sequence, evictOverBudget(evicted));
+
+                    // An "ADDED" or "MODIFIED" event notifies subscribers the object is created or
+                    // changed, then "REMOVED" events for the entries evicted to make room
+                    events.add(new ChangeEvent(previous == null ? Envelope.SubscriptionEventType.ADDED : Envelope.SubscriptionEventType.MODIFIED, msg));
+                    addRemovedEvents(events, evicted);
+                    queueEvents(events, sequence);
+                }
+            }
+
+            if (mismatch != null) {
+
+                // Someone else changed the entry, the client has to read it again and retry
                 b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage(mismatch);
+
+            } else {
+
+                // Don't acknowledge or publish the change until it is durable
+                awaitDurable(sequence);
+
+                // Add to the list of messages returned by the request
+                b.addPayload(payload);
+
+                if (previous == null) {
+
+                    // No previous message, return "CREATED" response status
+                    b.setStatus(Envelope.Status.CREATED);
+
+                } else {
+
+                    // The was a previous message, return "UPDATED" response status
+                    b.setStatus(Envelope.Status.UPDATED);
+                }
+
+                // Publish the events (unless the publish queue does)
+                publishEvents(events);
             }
+
         }
 
         // Send the response message
@@ -114,14 +1589,17 @@ public class KeyValueServiceImplementor implements Service {
     }
 
     /**
-     * Implements the "PUT" verb. If key doesn't exist, creates a new entry and sends an ADDED event. If
-     * key already exists, replaces the value and sends a MODIFIED event.
+     * Implements the "POST" verb as a batch PUT. Every pair in the entries of the request is written
+     * in one pass, in order, and returned with a write_result of CREATED or UPDATED. The ADDED and
+     * MODIFIED events are published together once the whole batch is applied.
+     *
+     * Entries may carry expected revisions; if any of them doesn't match, none of the batch is written.
      *
      * @param message Request message.
      * @param id ID that correlates request and response message.
      * @param callback Used to respond to the request.
      */
-    private void doPut(KeyValue message, String id, ServiceResponseCallback callback) {
+    private void doPost(KeyValue message, long[] valueHashes, String id, ServiceResponseCallback callback) throws IOException {
 
         // Create a ServiceResponse to send when finished processing
         Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
@@ -129,40 +1607,95 @@ public class KeyValueServiceImplementor implements Service {
         // Set the correlation id on the response to the same from the request
         b.setId(id);
 
-        if (!message.hasKey() || !message.hasValue()) {
+        // Message to reject the request with if its keys are stored by another shard
+        String wrongShard;
 
-            // Must have a key; a BAD_REQUEST error with an appropriate message
-            b.setStatus(Envelope.Status.BAD_REQUEST);
-            b.setErrorMessage("Must include key and value in put request");
+        if (!isValidBatch(message)) {
 
-        } else {
+            // Must have entries, each with a key and value; reject the whole batch before writing any of it
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage("Must include entries, each with key and either value or binary_value, in post request");
 
-            // Put key-value pair into map, getting the (possible) previous value
-            String previous = map.put(message.getKey(), message.getValue());
+        } else if ((wrongShard = checkShard(message.getEntriesList())) != null) {
 
-            // Build the message from the map entry
-            KeyValue msg = KeyValue.newBuilder().setKey(message.getKey()).setValue(message.getValue()).build();
+            // Some of the keys are stored by other shards, the client has to split the batch by shard
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage(wrongShard);
 
-            // Add to the list of messages returned by the request
-            b.addPayload(msg.toByteString());
+        } else {
 
-            if (previous == null) {
+            List<KeyValue> added = new ArrayList<KeyValue>();
+            List<KeyValue> modified = new ArrayList<KeyValue>();
+            List<KeyValue> evicted = new ArrayList<KeyValue>();
+            List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+            String mismatch = null;
+            long sequence = 0;
+
+            // Take the lock once for the whole batch
+            synchronized (mutationLock) {
+
+                // Check every expected revision before writing anything, so the batch is all or nothing
+                for (KeyValue entry : message.getEntriesList()) {
+                    if (mismatch == null) {
+                        mismatch = checkRevision(entry);
+                    }
+                }
+
+                for (int i = 0; i < message.getEntriesCount(); i++) {
+
+                    if (mismatch != null) {
+                        break;
+                    }
+
+                    // Build the message from the batch entry, stamped with the next revision
+                    KeyValue msg = newEntry(message.getEntries(i));
+
+                    // Log the change before applying it so the log order matches the map
+                    sequence = appendToLog(WriteAheadLog.Operation.PUT, msg);
+
+                    // Put key-value pair into map, getting the (possible) previous value
+                    KeyValue previous = putEntry(msg, valueHashes[i]);
+
+                    // The store serialized the entry, reuse that for the response
+                    ByteString payload = map.getSerialized(msg.getKey());
+
+                    if (previous == null) {
+                        added.add(msg);
+                        b.addPayload(withField(payload, CREATED_RESULT));
+                    } else {
+                        modified.add(msg);
+                        b.addPayload(withField(payload, UPDATED_RESULT));
+                    }
+                }
+
+                // Make room if the batch took the store over its memory budget
+                sequence = Math.max(sequence, evictOverBudget(evicted));
+
+                // "ADDED" and "MODIFIED" events notify subscribers of the whole batch, then "REMOVED"
+                // events for the entries evicted to make room
+                addBulkEvents(events, Envelope.SubscriptionEventType.ADDED, added);
+                addBulkEvents(events, Envelope.SubscriptionEventType.MODIFIED, modified);
+                addRemovedEvents(events, evicted);
+                queueEvents(events, sequence);
+            }
 
-                // No previous message, return "CREATED" response status
-                b.setStatus(Envelope.Status.CREATED);
+            if (mismatch != null) {
 
-                // Publish a "ADDED" event to notify subscribers the object is created
-                publisher.publishEvent(Envelope.SubscriptionEventType.ADDED, msg, msg.getKey());
+                // Someone else changed one of the entries, the client has to read them again and retry
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage(mismatch);
 
             } else {
 
-                // The was a previous message, return "UPDATED" response status
-                b.setStatus(Envelope.Status.UPDATED);
+                // The batch is durable once its last record is
+                awaitDurable(sequence);
 
-                // Publish a "MODIFIED" event to notify subscribers the object is created
-                publisher.publishEvent(Envelope.SubscriptionEventType.MODIFIED, msg, msg.getKey());
-            }
+                // Return "OK" response status, the status of each entry is in its write_result
+                b.setStatus(Envelope.Status.OK);
 
+                // Publish the events (unless the publish queue does)
+                publishEvents(events);
+            }
         }
 
         // Send the response message
@@ -170,37 +1703,104 @@ public class KeyValueServiceImplementor implements Service {
     }
 
     /**
-     * Stub implementation of "POST" verb.
+     * @return True if a POST request has at least one entry and every entry has a key and one value.
+     */
+    private boolean isValidBatch(KeyValue message) {
+
+        if (message.getEntriesCount() == 0) {
+            return false;
+        }
+
+        for (KeyValue entry : message.getEntriesList()) {
+            if (!entry.hasKey() || !hasOneValue(entry)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return True if a pair to write has either a string or a binary value, but not both (and only
+     *         a binary value if it is compressed).
+     */
+    private static boolean hasOneValue(KeyValue message) {
+        return message.hasValue() != message.hasBinaryValue() && (!message.hasCompression() || message.hasBinaryValue());
+    }
+
+    /**
+     * @return Value index hash of an entry's value, 0 if values aren't indexed. Compressed values are
+     *         inflated to be hashed, so call it before taking mutationLock.
+     */
+    private long valueHash(KeyValue entry) {
+        return valueIndex == null ? 0 : ValueIndex.hashOf(entry);
+    }
+
+    /**
+     * Hashes the values of a PUT request's pair or a POST request's entries for the value index, as
+     * sent, before they are compressed and before the request takes the mutation lock.
      *
-     * @param message Request message.
-     * @param id ID that correlates request and response message.
-     * @param callback Used to respond to the request.
+     * @return One hash per pair, in order; 0 for each if values aren't indexed.
      */
-    private void doPost(KeyValue message, String id, ServiceResponseCallback callback) {
+    private long[] valueHashes(KeyValue message) {
 
-        // Create a ServiceResponse to send when finished processing
-        Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+        if (message.getEntriesCount() == 0) {
+            return new long[] { valueHash(message) };
+        }
 
-        // Set the correlation id on the response to the same from the request
-        b.setId(id);
+        long[] hashes = new long[message.getEntriesCount()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = valueHash(message.getEntries(i));
+        }
+        return hashes;
+    }
 
-        // Not implementing this verb, return bad request and an error message
-        b.setStatus(Envelope.Status.BAD_REQUEST);
-        b.setErrorMessage("post verb not implemented");
+    /**
+     * Compresses the values of a PUT or POST request that are over the threshold, if configured,
+     * before the request takes the mutation lock.
+     */
+    private KeyValue compressValues(KeyValue message) {
 
-        // Send the response message
-        callback.onResponse(b.build());
+        int threshold = settings.getCompressionThresholdBytes();
+        if (threshold <= 0) {
+            return message;
+        }
+
+        if (message.getEntriesCount() == 0) {
+            return KeyValueCompression.compress(message, threshold, settings.getCompressionLevel());
+        }
+
+        // Only rebuild a batch if any of its entries were compressed
+        KeyValue.Builder batch = null;
+        for (int i = 0; i < message.getEntriesCount(); i++) {
+            KeyValue entry = message.getEntries(i);
+            KeyValue compressed = KeyValueCompression.compress(entry, threshold, settings.getCompressionLevel());
+            if (compressed != entry) {
+                if (batch == null) {
+                    batch = message.toBuilder();
+                }
+                batch.setEntries(i, compressed);
+            }
+        }
+
+        return batch == null ? message : batch.build();
     }
 
     /**
      * Implements the "DELETE" verb. Deletes a specific key-value pair or all of them. All
      * deleted pairs will be published as REMOVED events.
      *
+     * Deleting all pairs is atomic with respect to concurrent PUTs: a PUT either lands before the
+     * delete (and is returned and published as removed) or after it (and survives). Depending on the
+     * settings, the removals are published one event per pair or batched into a few events.
+     *
+     * Deleting a specific pair can be made conditional with an expected revision, as for PUT.
+     *
      * @param message Request message.
      * @param id ID that correlates request and response message.
      * @param callback Used to respond to the request.
      */
-    private void doDelete(KeyValue message, String id, ServiceResponseCallback callback) {
+    private void doDelete(KeyValue message, String id, ServiceResponseCallback callback) throws IOException {
 
         // Create a ServiceResponse to send when finished processing
         Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
@@ -208,43 +1808,103 @@ public class KeyValueServiceImplementor implements Service {
         // Set the correlation id on the response to the same from the request
         b.setId(id);
 
+        // Message to reject the request with if its keys are stored by another shard
+        String wrongShard;
+
         if (!message.hasKey()) {
 
             // Must have a key; a BAD_REQUEST error with an appropriate message
             b.setStatus(Envelope.Status.BAD_REQUEST);
             b.setErrorMessage("Must include key in delete request");
 
+        } else if (message.getKey().equals("*") && message.hasExpectedRevision()) {
+
+            // Only a single entry has a revision to compare against
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage("Cannot use expected revision when deleting all entries");
+
         } else if (message.getKey().equals("*")) {
 
-            // Got the special key "*", go through all entries in the map and collect them
-            for (Map.Entry<String, String> entry : map.entrySet()) {
+            List<KeyValue> removed = new ArrayList<KeyValue>();
+            List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+            long sequence;
 
-                // Build the message from the map entry
-                KeyValue msg = KeyValue.newBuilder().setKey(entry.getKey()).setValue(entry.getValue()).build();
+            synchronized (mutationLock) {
 
-                // Add to the list of messages returned by the request
-                b.addPayload(msg.toByteString());
+                // Got the special key "*", go through all entries in the map and collect them
+                for (Iterator<KeyValue> entries = map.range(null, true, null, Integer.MAX_VALUE); entries.hasNext(); ) {
+                    removed.add(entries.next());
+                }
+
+                // Log and clear the actual set of entries; holding the lock means the log's CLEAR
+                // removes exactly the entries collected above
+                sequence = appendToLog(WriteAheadLog.Operation.CLEAR, KeyValue.newBuilder().setKey("*").setRevision(++revision).build());
+                clearEntries();
+
+                // Clients that had entries before can't catch up key by key, they get every entry instead
+                if (journal != null) {
+                    journal.reset(revision);
+                }
+
+                // "REMOVED" events notify subscribers the objects are deleted
+                addBulkEvents(events, Envelope.SubscriptionEventType.REMOVED, removed);
+                queueEvents(events, sequence);
+            }
+
+            awaitDurable(sequence);
 
-                // Publish a "REMOVED" event to notify subscribers the object is deleted
-                publisher.publishEvent(Envelope.SubscriptionEventType.REMOVED, msg, msg.getKey());
+            for (KeyValue msg : removed) {
 
+                // Add to the list of messages returned by the request
+                b.addPayload(msg.toByteString());
             }
 
+            // Publish the events (unless the publish queue does)
+            publishEvents(events);
+
             // Return the "DELETED" status along with the list of deleted entries
             b.setStatus(Envelope.Status.DELETED);
 
-            // Clear the actual set of entries
-            map.clear();
+        } else if ((wrongShard = checkShard(message.getKey())) != null) {
+
+            // The key is stored by another shard, the client is routing with the wrong shard count
+            b.setStatus(Envelope.Status.BAD_REQUEST);
+            b.setErrorMessage(wrongShard);
 
         } else {
 
-            // Remove the specific map entry
-            String value = map.remove(message.getKey());
+            KeyValue msg;
+            List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+            String mismatch = null;
+            long sequence = 0;
+
+            synchronized (mutationLock) {
+
+                // Remove the specific map entry, logging the removal first if it exists (and is still
+                // at the expected revision, if any)
+                msg = map.get(message.getKey());
+                if (msg != null) {
+                    mismatch = checkRevision(message);
+                }
+                if (msg != null && mismatch == null) {
+                    sequence = logRemoval(message.getKey());
+                    removeEntry(message.getKey());
+
+                    // A "REMOVED" event notifies subscribers the object is deleted
+                    events.add(new ChangeEvent(Envelope.SubscriptionEventType.REMOVED, removedAt(msg)));
+                    queueEvents(events, sequence);
+                }
+            }
+
+            if (mismatch != null) {
+
+                // Someone else changed the entry, the client has to read it again and retry
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage(mismatch);
 
-            if (value != null) {
+            } else if (msg != null) {
 
-                // Build the message from the map entry
-                KeyValue msg = KeyValue.newBuilder().setKey(message.getKey()).setValue(value).build();
+                awaitDurable(sequence);
 
                 // Add the message returned by the request
                 b.addPayload(msg.toByteString());
@@ -252,8 +1912,8 @@ public class KeyValueServiceImplementor implements Service {
                 // Return the "DELETED" status along with the deleted entry
                 b.setStatus(Envelope.Status.DELETED);
 
-                // Publish a "REMOVED" event to notify subscribers the object is deleted
-                publisher.publishEvent(Envelope.SubscriptionEventType.REMOVED, msg, msg.getKey());
+                // Publish the events (unless the publish queue does)
+                publishEvents(events);
 
             } else {
 
@@ -268,27 +1928,161 @@ public class KeyValueServiceImplementor implements Service {
     }
 
 
+    /**
+     * Hands the events of a change to the publish queue, if there is one. Must be called holding
+     * mutationLock so the queue receives events in the order of the changes.
+     *
+     * @param events Events of the change, in order.
+     * @param sequence Log sequence number the events wait for before being published.
+     */
+    private void queueEvents(List<ChangeEvent> events, long sequence) {
+        if (publishQueue != null && !events.isEmpty()) {
+            publishQueue.enqueue(events, sequence);
+        }
+    }
+
+    /**
+     * Publishes the events of a change on the request thread, once the change is durable, unless the
+     * publish queue does.
+     */
+    private void publishEvents(List<ChangeEvent> events) {
+
+        if (publishQueue != null) {
+            return;
+        }
+
+        for (ChangeEvent event : events) {
+            publish(event.getEventType(), event.getMsg());
+        }
+    }
+
+    /**
+     * Publishes an event for a changed pair (or a batch of them), through the coalescer if MODIFIED
+     * events are coalesced.
+     */
+    private void publish(Envelope.SubscriptionEventType eventType, KeyValue msg) {
+
+        if (coalescer != null) {
+            coalescer.publish(eventType, msg);
+        } else {
+            publisher.publishEvent(eventType, msg, msg.getKey());
+        }
+    }
+
+    /**
+     * Adds the events for a request that changed many pairs, either one per pair or, if configured,
+     * as batches of pairs in the entries of events keyed by the parent pattern of the pairs ("a.b.*"
+     * for "a.b.c", "*" for keys without a '.'). Routed by that pattern, a batch reaches the
+     * subscribers of every pattern covering its pairs exactly once. The pairs of keys subscribed to
+     * on their own get events of their own, since a batch never reaches them, and so do pairs no
+     * pattern subscribed to since the start covers, whose subscribers may have bound before a restart
+     * (see KeySubscriptions). Must be called holding
+     * mutationLock, right after the change: REMOVED events (and every batch) are stamped with the
+     * current revision.
+     *
+     * @param events Receives the events.
+     * @param eventType Type of all the events.
+     * @param changed Changed pairs, in the order they were changed.
+     */
+    private void addBulkEvents(List<ChangeEvent> events, Envelope.SubscriptionEventType eventType, List<KeyValue> changed) {
+
+        if (settings.getBulkEvents() == BulkEvents.PER_KEY) {
+
+            for (KeyValue msg : changed) {
+
+                // An event notifies subscribers of the change to the object, a removal with its revision
+                events.add(new ChangeEvent(eventType, eventType == Envelope.SubscriptionEventType.REMOVED ? removedAt(msg) : msg));
+            }
+
+        } else {
+
+            // Group the pairs by the pattern that routes them to every subscriber, in order of first change
+            Map<String, List<KeyValue>> byParent = new LinkedHashMap<String, List<KeyValue>>();
+
+            for (KeyValue msg : changed) {
+
+                String parent = KeyValuePattern.parentPattern(msg.getKey());
+
+                if (keySubscriptions.isSubscribed(msg.getKey()) || !keySubscriptions.isCovered(parent)) {
+                    events.add(new ChangeEvent(eventType, eventType == Envelope.SubscriptionEventType.REMOVED ? removedAt(msg) : msg));
+                    continue;
+                }
+
+                List<KeyValue> siblings = byParent.get(parent);
+                if (siblings == null) {
+                    siblings = new ArrayList<KeyValue>();
+                    byParent.put(parent, siblings);
+                }
+                siblings.add(msg);
+            }
+
+            int batchSize = settings.getBulkEventBatchSize();
+
+            for (Map.Entry<String, List<KeyValue>> group : byParent.entrySet()) {
+
+                List<KeyValue> siblings = group.getValue();
+
+                for (int i = 0; i < siblings.size(); i += batchSize) {
+
+                    // Build one event carrying the next batch of changed pairs
+                    KeyValue batch = KeyValue.newBuilder().setKey(group.getKey()).setSequence(revision).addAllEntries(siblings.subList(i, Math.min(i + batchSize, siblings.size()))).build();
+
+                    // A single event for the whole batch
+                    events.add(new ChangeEvent(eventType, batch));
+                }
+            }
+        }
+    }
+
     /**
      * Checks whether requests also include a subscription, binds the subscription queue to the
-     * event stream.
+     * event stream. The key may be a pattern (see KeyValuePattern), bound as the topic pattern that
+     * only routes the matching events to the queue. Queues recently bound to the same key aren't
+     * bound again.
      *
      * @param message Request message, used to determine what event filters to subscribe to.
      * @param headers Headers, used most importantly to get the subscription queue name.
+     * @return Null if there is no subscription or it was bound, otherwise the error message to reject
+     *         the request with.
      */
-    private void handleSubscription(KeyValue message, Map<String, List<String>> headers) {
+    private String handleSubscription(KeyValue message, Map<String, List<String>> headers) {
 
         // "SUB_QUEUE_NAME" is used by clients to specify their subscription queue
         List<String> queueList = headers.get("SUB_QUEUE_NAME");
 
         // If no subscription queue is specified, do nothing
         if (queueList == null || queueList.size() < 1) {
-            return;
+            return null;
         }
         
         String subQueue = queueList.get(0);
 
+        // Only patterns the broker can match on word boundaries can be subscribed to
+        String bindingKey = KeyValuePattern.toBindingKey(message.getKey());
+        if (bindingKey == null) {
+            return "Cannot subscribe to key: " + message.getKey() + ", patterns must end with \".*\" and keys can't have \"*\" or \"#\" parts";
+        }
+
+        // Changes to a single key have to be published on their own to reach this subscriber, and only
+        // changes under a pattern seen subscribed can be batched
+        if (keySubscriptions != null) {
+            keySubscriptions.subscribed(message.getKey());
+        }
+
+        // Skip the broker round trip if the queue is already bound to the key
+        if (bindingCache != null && !bindingCache.needsBind(subQueue, bindingKey)) {
+            return null;
+        }
+
         // Use event interface to bind client's queue to event stream
-        publisher.bindQueueByClass(subQueue, message.getKey(), KeyValue.class);
+        publisher.bindQueueByClass(subQueue, bindingKey, KeyValue.class);
+
+        // Only remembered once the bind succeeded, a failed one is tried again by the next request
+        if (bindingCache != null) {
+            bindingCache.bound(subQueue, bindingKey);
+        }
+
+        return null;
     }
 
     /**
@@ -301,22 +2095,104 @@ public class KeyValueServiceImplementor implements Service {
     @Override
     public void respond(Envelope.ServiceRequest request, Map<String, List<String>> headers, ServiceResponseCallback callback) {
 
-        // Catch any exceptions and respond with an error
+        // Too many requests are in flight already, shed this one straight away
+        if (requestLimiter != null && !requestLimiter.acquire()) {
+            Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+            b.setId(request.getId());
+            b.setStatus(Envelope.Status.BUS_UNAVAILABLE);
+            b.setErrorMessage("Service is busy, retry later");
+            callback.onResponse(b.build());
+            return;
+        }
+
+        // Parse the request message payload into a KeyValue proto object
+        final KeyValue message;
         try {
+            message = KeyValue.parseFrom(request.getPayload());
+        } catch (Exception ex) {
+            if (requestLimiter != null) {
+                requestLimiter.release();
+            }
+
+            Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+            b.setId(request.getId());
+            b.setStatus(Envelope.Status.INTERNAL_ERROR);
+            b.setErrorMessage(ex.toString());
+            callback.onResponse(b.build());
+            return;
+        }
+
+        if (requestExecutor == null) {
+            handle(request, message, headers, callback);
+            return;
+        }
+
+        // Hand the request off to the worker of its key, unless that worker is too far behind
+        final Envelope.ServiceRequest req = request;
+        final Map<String, List<String>> hdrs = headers;
+        final ServiceResponseCallback cb = callback;
+        boolean queued = requestExecutor.execute(stripeKey(message), new Runnable() {
+            @Override
+            public void run() {
+                handle(req, message, hdrs, cb);
+            }
+        });
+
+        if (!queued) {
+            if (requestLimiter != null) {
+                requestLimiter.release();
+            }
+
+            Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+            b.setId(request.getId());
+            b.setStatus(Envelope.Status.BUS_UNAVAILABLE);
+            b.setErrorMessage("Service is busy, retry later");
+            callback.onResponse(b.build());
+        }
+    }
+
+    /**
+     * Handles a parsed request, then frees its slot in the request limiter.
+     */
+    private void handle(Envelope.ServiceRequest request, KeyValue message, Map<String, List<String>> headers, ServiceResponseCallback callback) {
 
-            // Parse the request message payload into a KeyValue proto object
-            KeyValue message = KeyValue.parseFrom(request.getPayload());
+        // Catch any exceptions and respond with an error
+        try {
 
             // Handle a subscription request (if present)
-            handleSubscription(message, headers);
+            String badSubscription = handleSubscription(message, headers);
 
             // Handle the request depending on which verb was used
-            if (request.getVerb() == Envelope.Verb.GET) {
+            if (badSubscription != null) {
+
+                // The subscription can't be expressed as a broker binding
+                Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+                b.setId(request.getId());
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage(badSubscription);
+                callback.onResponse(b.build());
+            } else if (request.getVerb() == Envelope.Verb.GET) {
                 doGet(message, request.getId(), callback);
+            } else if (standby) {
+
+                // A standby only applies its primary's changes until it is promoted
+                Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+                b.setId(request.getId());
+                b.setStatus(Envelope.Status.BAD_REQUEST);
+                b.setErrorMessage("Service is a standby replica, writes go to the primary until it is promoted");
+                callback.onResponse(b.build());
+            } else if (publishQueue != null && !publishQueue.admit()) {
+
+                // The publish queue is full and configured to fail writes until subscribers catch up
+                Envelope.ServiceResponse.Builder b = Envelope.ServiceResponse.newBuilder();
+                b.setId(request.getId());
+                b.setStatus(Envelope.Status.BUS_UNAVAILABLE);
+                b.setErrorMessage("Event publish queue is full, retry once subscribers catch up");
+                callback.onResponse(b.build());
             } else if (request.getVerb() == Envelope.Verb.PUT) {
-                doPut(message, request.getId(), callback);
+                doPut(compressValues(message), valueHashes(message), request.getId(), callback);
             } else if (request.getVerb() == Envelope.Verb.POST) {
-                doPost(message, request.getId(), callback);
+                doPost(compressValues(message), valueHashes(message), request.getId(), callback);
             } else if (request.getVerb() == Envelope.Verb.DELETE) {
                 doDelete(message, request.getId(), callback);
             }
@@ -329,7 +2205,26 @@ public class KeyValueServiceImplementor implements Service {
             b.setStatus(Envelope.Status.INTERNAL_ERROR);
             b.setErrorMessage(ex.toString());
             callback.onResponse(b.build());
+        } finally {
+
+            // Let the next request have the slot
+            if (requestLimiter != null) {
+                requestLimiter.release();
+            }
+        }
+    }
+
+    /**
+     * Key of the worker a request is handed to: its key if it works on a single key, null if it
+     * covers many (all, a prefix or range, a list of keys, a batch or a value lookup).
+     */
+    private static String stripeKey(KeyValue message) {
+
+        if (!message.hasKey() || KeyValuePattern.isPattern(message.getKey()) || message.hasEndKey() || message.getKeysCount() > 0 || message.getEntriesCount() > 0) {
+            return null;
         }
+
+        return message.getKey();
     }
     
 
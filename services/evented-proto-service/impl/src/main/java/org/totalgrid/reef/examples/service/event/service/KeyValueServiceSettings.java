@@ -0,0 +1,332 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service;
+
+import org.totalgrid.reef.client.settings.util.PropertyReader;
+import org.totalgrid.reef.examples.service.event.service.events.OverflowPolicy;
+import org.totalgrid.reef.examples.service.event.service.eviction.EvictionPolicyType;
+import org.totalgrid.reef.examples.service.event.service.persistence.DurabilityMode;
+import org.totalgrid.reef.examples.service.event.service.storage.StorageMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/**
+ * Optional settings for the key-value service, loaded from a properties file. Every setting has a
+ * default, so an empty settings object describes the plain in-memory service.
+ */
+public class KeyValueServiceSettings {
+
+    private static final String PREFIX = "org.totalgrid.reef.examples.keyvalue.";
+
+    private final File logDirectory;
+    private final DurabilityMode durabilityMode;
+    private final long asyncFlushIntervalMs;
+    private final long snapshotIntervalSeconds;
+    private final long snapshotMinLogRecords;
+    private final int maxPageSize;
+    private final BulkEvents bulkEvents;
+    private final int bulkEventBatchSize;
+    private final long coalesceWindowMs;
+    private final int publishQueueCapacity;
+    private final OverflowPolicy publishOverflowPolicy;
+    private final int bindingCacheSize;
+    private final long bindingIdleSeconds;
+    private final int journalCapacity;
+    private final int compressionThresholdBytes;
+    private final int compressionLevel;
+    private final boolean valueIndex;
+    private final int maxInFlightRequests;
+    private final int workerThreads;
+    private final int workerQueueCapacity;
+    private final long ttlTickMs;
+    private final long memoryBudgetBytes;
+    private final EvictionPolicyType evictionPolicy;
+    private final StorageMode storageMode;
+    private final int offHeapSlabBytes;
+    private final int shardCount;
+    private final int shardIndex;
+
+    /**
+     * Settings with every option at its default (in-memory only).
+     */
+    public KeyValueServiceSettings() {
+        this(new Properties());
+    }
+
+    /**
+     * @param file Properties file to load the settings from.
+     * @throws IOException If the file can't be read.
+     */
+    public KeyValueServiceSettings(String file) throws IOException {
+        this(PropertyReader.readFromFile(file));
+    }
+
+    /**
+     * @param props Properties to read the settings from, missing properties use the defaults.
+     */
+    public KeyValueServiceSettings(Properties props) {
+
+        String dir = props.getProperty(PREFIX + "log.directory", "").trim();
+        logDirectory = dir.length() == 0 ? null : new File(dir);
+
+        durabilityMode = DurabilityMode.valueOf(props.getProperty(PREFIX + "log.durability", DurabilityMode.GROUP_COMMIT.name()).trim());
+        asyncFlushIntervalMs = getLong(props, "log.asyncFlushIntervalMs", 1000);
+        snapshotIntervalSeconds = getLong(props, "snapshot.intervalSeconds", 60);
+        snapshotMinLogRecords = getLong(props, "snapshot.minLogRecords", 100000);
+        maxPageSize = (int) getLong(props, "get.maxPageSize", 10000);
+        bulkEvents = BulkEvents.valueOf(props.getProperty(PREFIX + "events.bulk", BulkEvents.PER_KEY.name()).trim());
+        bulkEventBatchSize = (int) getLong(props, "events.bulkBatchSize", 1000);
+        coalesceWindowMs = getLong(props, "events.coalesceWindowMs", 0);
+        publishQueueCapacity = (int) getLong(props, "events.queueCapacity", 0);
+        publishOverflowPolicy = OverflowPolicy.valueOf(props.getProperty(PREFIX + "events.overflowPolicy", OverflowPolicy.BLOCK.name()).trim());
+        bindingCacheSize = (int) getLong(props, "subscriptions.bindingCacheSize", 0);
+        bindingIdleSeconds = getLong(props, "subscriptions.bindingIdleSeconds", 300);
+        journalCapacity = (int) getLong(props, "journal.capacity", 100000);
+        compressionThresholdBytes = (int) getLong(props, "compression.thresholdBytes", 0);
+        compressionLevel = (int) getLong(props, "compression.level", Deflater.BEST_SPEED);
+        valueIndex = Boolean.parseBoolean(props.getProperty(PREFIX + "index.values", "false").trim());
+        maxInFlightRequests = (int) getLong(props, "requests.maxInFlight", 0);
+        workerThreads = (int) getLong(props, "requests.workerThreads", 0);
+        workerQueueCapacity = (int) getLong(props, "requests.workerQueueCapacity", 1000);
+        ttlTickMs = getLong(props, "ttl.tickMs", 100);
+        memoryBudgetBytes = getLong(props, "memory.budgetBytes", 0);
+        evictionPolicy = EvictionPolicyType.valueOf(props.getProperty(PREFIX + "memory.evictionPolicy", EvictionPolicyType.W_TINY_LFU.name()).trim());
+        storageMode = StorageMode.valueOf(props.getProperty(PREFIX + "storage.mode", StorageMode.HEAP.name()).trim());
+        offHeapSlabBytes = (int) getLong(props, "storage.offHeapSlabBytes", 64 * 1024 * 1024);
+        shardCount = (int) getLong(props, "shard.count", 1);
+        shardIndex = (int) getLong(props, "shard.index", 0);
+
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Shard index: " + shardIndex + " is outside the shard count: " + shardCount);
+        }
+
+        if (bulkEventBatchSize < 1) {
+            throw new IllegalArgumentException("Bulk event batch size: " + bulkEventBatchSize + " must be at least 1");
+        }
+
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level: " + compressionLevel + " is outside 1 to 9");
+        }
+    }
+
+    private static long getLong(Properties props, String name, long defaultValue) {
+        String value = props.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * @return Directory holding the write-ahead log, or null if the store is in-memory only.
+     */
+    public File getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * @return When writes are forced to disk relative to their responses.
+     */
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    /**
+     * @return How often the log is forced to disk in ASYNC mode.
+     */
+    public long getAsyncFlushIntervalMs() {
+        return asyncFlushIntervalMs;
+    }
+
+    /**
+     * @return How often to check whether a snapshot is due, 0 to only snapshot on shutdown.
+     */
+    public long getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    /**
+     * @return Number of log records since the last snapshot that make a new snapshot due.
+     */
+    public long getSnapshotMinLogRecords() {
+        return snapshotMinLogRecords;
+    }
+
+    /**
+     * @return Largest page returned for a paged GET, whatever page size the client asks for.
+     */
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    /**
+     * @return How the events of POST batches and bulk deletes are published.
+     */
+    public BulkEvents getBulkEvents() {
+        return bulkEvents;
+    }
+
+    /**
+     * @return Number of changed pairs per event when bulk events are batched.
+     */
+    public int getBulkEventBatchSize() {
+        return bulkEventBatchSize;
+    }
+
+    /**
+     * @return Window over which each key's MODIFIED events are coalesced into the latest, 0 to publish every one.
+     */
+    public long getCoalesceWindowMs() {
+        return coalesceWindowMs;
+    }
+
+    /**
+     * @return Number of events queued for the publisher thread before the overflow policy applies, 0
+     *         to publish events on the request thread before responding.
+     */
+    public int getPublishQueueCapacity() {
+        return publishQueueCapacity;
+    }
+
+    /**
+     * @return What happens to writes when the publish queue is full.
+     */
+    public OverflowPolicy getPublishOverflowPolicy() {
+        return publishOverflowPolicy;
+    }
+
+    /**
+     * A remembered binding is only dropped when its queue is reported through
+     * KeyValueServiceImplementor.subscriptionQueueClosed or idles out, so a queue deleted and declared
+     * again unreported misses events until then; off by default.
+     *
+     * @return Number of subscription bindings remembered to skip binding a queue again, 0 to bind on
+     *         every subscribing request.
+     */
+    public int getBindingCacheSize() {
+        return bindingCacheSize;
+    }
+
+    /**
+     * @return How long a subscription binding is remembered after the last request that carried it.
+     */
+    public long getBindingIdleSeconds() {
+        return bindingIdleSeconds;
+    }
+
+    /**
+     * @return Number of latest changes kept for clients catching up, 0 to always send them every entry.
+     */
+    public int getJournalCapacity() {
+        return journalCapacity;
+    }
+
+    /**
+     * @return Smallest value stored compressed, in bytes, 0 to store every value as it is written.
+     */
+    public int getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    /**
+     * @return Deflater level values are compressed with, 1 (fastest) to 9 (smallest).
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return True if string values are indexed, so the keys holding a value can be looked up.
+     */
+    public boolean isValueIndex() {
+        return valueIndex;
+    }
+
+    /**
+     * @return Requests in flight at once (handled or queued on a worker thread), beyond which they are
+     *         shed, 0 to admit every request.
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * @return Worker threads requests are handled on, striped by key, 0 to handle them on the thread
+     *         that delivers them.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return Requests each worker thread queues, beyond which they are refused with a retry-later.
+     */
+    public int getWorkerQueueCapacity() {
+        return workerQueueCapacity;
+    }
+
+    /**
+     * @return Tick of the expiry timer wheel; entries expire up to one tick after their TTL.
+     */
+    public long getTtlTickMs() {
+        return ttlTickMs;
+    }
+
+    /**
+     * @return Approximate memory the entries may use before some are evicted, 0 for no limit.
+     */
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * @return Policy choosing which entries to evict when the memory budget is exceeded.
+     */
+    public EvictionPolicyType getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return Whether entries are kept on the heap or in off-heap slabs.
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * @return Size of each off-heap slab in OFF_HEAP storage mode.
+     */
+    public int getOffHeapSlabBytes() {
+        return offHeapSlabBytes;
+    }
+
+    /**
+     * @return Number of shards the keys are spread over, 1 for a single unsharded service.
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return Shard this instance owns the keys of, from 0 to getShardCount() - 1.
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+}
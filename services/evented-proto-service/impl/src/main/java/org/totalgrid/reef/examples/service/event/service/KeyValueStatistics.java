@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service;
+
+/**
+ * Point in time counters of a key-value service.
+ */
+public class KeyValueStatistics {
+
+    private final long entries;
+    private final long memoryBytes;
+    private final long memoryBudgetBytes;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long coalescedEvents;
+    private final long skippedBinds;
+    private final long backgroundFailures;
+    private final String lastBackgroundFailure;
+
+    public KeyValueStatistics(long entries, long memoryBytes, long memoryBudgetBytes, long hits, long misses, long evictions, long coalescedEvents, long skippedBinds, long backgroundFailures, String lastBackgroundFailure) {
+        this.entries = entries;
+        this.memoryBytes = memoryBytes;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.coalescedEvents = coalescedEvents;
+        this.skippedBinds = skippedBinds;
+        this.backgroundFailures = backgroundFailures;
+        this.lastBackgroundFailure = lastBackgroundFailure;
+    }
+
+    /**
+     * @return Number of entries in the store.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return Approximate memory used by the entries, in bytes.
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return Memory budget in bytes, 0 if the store is unbounded.
+     */
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * @return Number of keys looked up by GETs (single key or list) that had an entry.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of keys looked up by GETs (single key or list) that had no entry.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Fraction of keys looked up that had an entry, 0 if there were none.
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return Number of entries evicted to stay within the memory budget.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of MODIFIED events suppressed because a later change to the key replaced them.
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents;
+    }
+
+    /**
+     * @return Number of subscription binds skipped because the queue was already bound to the key.
+     */
+    public long getSkippedBinds() {
+        return skippedBinds;
+    }
+
+    /**
+     * @return Number of times a snapshot, expiry or replication thread failed.
+     */
+    public long getBackgroundFailures() {
+        return backgroundFailures;
+    }
+
+    /**
+     * @return Message of the latest background thread failure, null if there has been none.
+     */
+    public String getLastBackgroundFailure() {
+        return lastBackgroundFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "entries: " + entries + " memory: " + memoryBytes + "/" + memoryBudgetBytes + " bytes, hits: " + hits + " misses: " + misses + " evictions: " + evictions + " coalesced events: " + coalescedEvents + " skipped binds: " + skippedBinds + " background failures: " + backgroundFailures;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.admission;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the requests a service has in flight, from the moment one is delivered until it has been
+ * answered. A request that finds every slot taken is shed at once, never waits, so the thread
+ * delivering requests keeps reading them and a burst gets quick retry-later responses instead of
+ * stalling. Requests waiting on the service's worker threads hold a slot, so the workers' queues are
+ * where admitted requests wait for their turn.
+ */
+public class RequestLimiter {
+
+    private final int maxInFlight;
+
+    private final Semaphore slots;
+
+    // Most requests in flight at once
+    private final AtomicInteger maxInFlightSeen = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * @param maxInFlight Requests in flight at once.
+     */
+    public RequestLimiter(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.slots = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Takes a slot for a request if one is free. Every successful call must be followed by a call to
+     * release once the request is answered.
+     *
+     * @return True if the request may be handled, false if it has to be shed.
+     */
+    public boolean acquire() {
+
+        if (!slots.tryAcquire()) {
+            shed.incrementAndGet();
+            return false;
+        }
+
+        admitted.incrementAndGet();
+        updateMaxInFlight(maxInFlight - slots.availablePermits());
+        return true;
+    }
+
+    /**
+     * Frees the slot of a request that has been answered.
+     */
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * @return Slots in use and counters.
+     */
+    public RequestLimiterStatus getStatus() {
+        return new RequestLimiterStatus(maxInFlight - slots.availablePermits(), maxInFlightSeen.get(), maxInFlight, admitted.get(), shed.get(), 0, 0);
+    }
+
+    private void updateMaxInFlight(int inFlight) {
+        int max = maxInFlightSeen.get();
+        while (inFlight > max && !maxInFlightSeen.compareAndSet(max, inFlight)) {
+            max = maxInFlightSeen.get();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.admission;
+
+/**
+ * Point in time state of a request limiter, and of the worker queues admitted requests wait in.
+ */
+public class RequestLimiterStatus {
+
+    private final int inFlight;
+    private final int maxInFlightSeen;
+    private final int maxInFlight;
+    private final long admitted;
+    private final long shed;
+    private final int queued;
+    private final long queueShed;
+
+    public RequestLimiterStatus(int inFlight, int maxInFlightSeen, int maxInFlight, long admitted, long shed, int queued, long queueShed) {
+        this.inFlight = inFlight;
+        this.maxInFlightSeen = maxInFlightSeen;
+        this.maxInFlight = maxInFlight;
+        this.admitted = admitted;
+        this.shed = shed;
+        this.queued = queued;
+        this.queueShed = queueShed;
+    }
+
+    /**
+     * @return Copy of this status with the state of the worker queues.
+     */
+    public RequestLimiterStatus withWorkerQueues(int queued, long queueShed) {
+        return new RequestLimiterStatus(inFlight, maxInFlightSeen, maxInFlight, admitted, shed, queued, queueShed);
+    }
+
+    /**
+     * @return Number of requests in flight, being handled or queued on a worker thread.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Highest number of requests that have been in flight at once.
+     */
+    public int getMaxInFlightSeen() {
+        return maxInFlightSeen;
+    }
+
+    /**
+     * @return Number of requests allowed in flight at once.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return Number of requests admitted.
+     */
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return Number of requests shed with a retry-later response because too many were in flight.
+     */
+    public long getShed() {
+        return shed;
+    }
+
+    /**
+     * @return Number of requests waiting in worker queues, 0 if requests are handled inline.
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return Number of requests shed with a retry-later response because their worker's queue was
+     *         full.
+     */
+    public long getQueueShed() {
+        return queueShed;
+    }
+
+    @Override
+    public String toString() {
+        return "in flight: " + inFlight + "/" + maxInFlight + " (max " + maxInFlightSeen + ") admitted: " + admitted + " shed: " + shed + " queued: " + queued + " queue shed: " + queueShed;
+    }
+}
@@ -18,9 +18,11 @@
  */
 package org.totalgrid.reef.examples.service.event.service.entry;
 
+import org.totalgrid.reef.client.AddressableDestination;
 import org.totalgrid.reef.client.AnyNodeDestination;
 import org.totalgrid.reef.client.Connection;
 import org.totalgrid.reef.client.ConnectionFactory;
+import org.totalgrid.reef.client.Routable;
 import org.totalgrid.reef.client.exception.ReefServiceException;
 import org.totalgrid.reef.client.factory.ReefConnectionFactory;
 import org.totalgrid.reef.client.registration.EventPublisher;
@@ -30,7 +32,9 @@ import org.totalgrid.reef.client.settings.AmqpSettings;
 import org.totalgrid.reef.client.settings.UserSettings;
 import org.totalgrid.reef.examples.service.event.client.KeyValueDescriptor;
 import org.totalgrid.reef.examples.service.event.client.KeyValueServiceList;
+import org.totalgrid.reef.examples.service.event.client.KeyValueShardRing;
 import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
 
 public class KeyValueServiceEntry {
     private KeyValueServiceEntry() {}
@@ -40,7 +44,7 @@ public class KeyValueServiceEntry {
 
         // Parse command line arguments
         if (args.length < 2) {
-            System.out.println("Usage: <broker settings> <user settings>");
+            System.out.println("Usage: <broker settings> <user settings> [key-value service settings]");
             System.exit(-1);
         }
 
@@ -52,6 +56,10 @@ public class KeyValueServiceEntry {
         // Load user settings (login credentials) from config file
         UserSettings user = new UserSettings(args[1]);
 
+        // Load the optional service settings (persistence, worker threads etc.), defaulting to a purely
+        // in-memory store handling requests on the threads that deliver them
+        KeyValueServiceSettings settings = args.length > 2 ? new KeyValueServiceSettings(args[2]) : new KeyValueServiceSettings();
+
         // Create a ConnectionFactory by passing the broker settings. The ConnectionFactory is
         // used to create a Connection to the Reef server
         ConnectionFactory connectionFactory = ReefConnectionFactory.buildFactory(amqp, new ReefServices());
@@ -59,6 +67,9 @@ public class KeyValueServiceEntry {
         // Prepare a Connection reference so it can be cleaned up in case of an error
         Connection connection = null;
 
+        // Prepare a service reference so its write-ahead log can be closed on exit
+        KeyValueServiceImplementor service = null;
+
         try {
 
             // Connect to the Reef server, may fail if can't connect
@@ -73,10 +84,18 @@ public class KeyValueServiceEntry {
             // Obtain the event publisher interface for the service to provide subscriptions/publish events
             EventPublisher eventPublisher = registration.getEventPublisher();
 
+            // Create the service, replaying the write-ahead log (if configured) before it can take requests
+            service = new KeyValueServiceImplementor(eventPublisher, settings);
+
             // Bind KeyValue service to handle KeyValue requests.
             // Uses AnyNodeDestination and competing consumers patterns -- meaning all service instances are interchangeable.
             // (This isn't actually true since the "back-end" is in-memory, but we are assuming a single node for this example).
-            registration.bindService(new KeyValueServiceImplementor(eventPublisher), new KeyValueDescriptor(), new AnyNodeDestination(), true);
+            // A sharded instance instead binds to the destination of its shard, which clients address requests to by key.
+            Routable destination = new AnyNodeDestination();
+            if (settings.getShardCount() > 1) {
+                destination = new AddressableDestination(KeyValueShardRing.destination(settings.getShardIndex()));
+            }
+            registration.bindService(service, new KeyValueDescriptor(), destination, true);
 
             System.out.println("Service registered. Press any key to exit...");
 
@@ -97,6 +116,14 @@ public class KeyValueServiceEntry {
                 connection.disconnect();
             }
 
+            if(service != null) {
+
+                // Flush and close the write-ahead log once no more requests can arrive
+                service.close();
+
+                System.out.println("Key-value service " + service.getStatistics());
+            }
+
             // Terminate the ConnectionFactory to close threading objects
             connectionFactory.terminate();
         }
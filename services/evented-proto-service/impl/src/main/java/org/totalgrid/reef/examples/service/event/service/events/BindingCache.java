@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which subscription queues have been bound to which keys, so requests repeating a
+ * subscription don't bind the same queue again.
+ *
+ * The bindings of a queue are forgotten when it is reported closed, so a queue re-created with the
+ * same name is bound again. The broker doesn't report every queue that goes away, so bindings are
+ * also forgotten once no request has carried them for an idle period, and the least recently seen
+ * bindings are forgotten beyond a maximum count, keeping the cache bounded however fast
+ * subscriptions churn. Forgetting a binding that is still in use only costs a redundant bind the next
+ * time it is seen.
+ */
+public class BindingCache {
+
+    private final int maxBindings;
+    private final long idleMs;
+
+    // Time each binding was last seen, least recently seen first; guarded by this
+    private final LinkedHashMap<String, Long> lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long skipped = 0;
+
+    /**
+     * @param maxBindings Number of bindings remembered.
+     * @param idleMs How long a binding is remembered after the last request that carried it.
+     */
+    public BindingCache(int maxBindings, long idleMs) {
+        this.maxBindings = maxBindings;
+        this.idleMs = idleMs;
+    }
+
+    /**
+     * Checks whether a queue is known to be bound to a key, marking the binding as seen if it is.
+     *
+     * @param queue Subscription queue name.
+     * @param key Key (or key pattern) the queue subscribes to.
+     * @return True if the queue still has to be bound.
+     */
+    public synchronized boolean needsBind(String queue, String key) {
+
+        long now = System.currentTimeMillis();
+        forgetIdle(now);
+
+        String binding = binding(queue, key);
+
+        if (lastSeen.containsKey(binding)) {
+            lastSeen.put(binding, now);
+            skipped++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records a binding made with the broker.
+     *
+     * @param queue Subscription queue name.
+     * @param key Key (or key pattern) the queue subscribes to.
+     */
+    public synchronized void bound(String queue, String key) {
+
+        lastSeen.put(binding(queue, key), System.currentTimeMillis());
+
+        // Access order puts the least recently seen binding first
+        if (lastSeen.size() > maxBindings) {
+            Iterator<String> eldest = lastSeen.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forgets every binding of a queue that has gone away.
+     *
+     * @param queue Subscription queue name.
+     * @return Number of bindings forgotten.
+     */
+    public synchronized int forgetQueue(String queue) {
+
+        // Queues close rarely next to requests, so scan rather than keep a second index by queue
+        String prefix = binding(queue, "");
+        int forgotten = 0;
+
+        for (Iterator<String> bindings = lastSeen.keySet().iterator(); bindings.hasNext(); ) {
+            if (bindings.next().startsWith(prefix)) {
+                bindings.remove();
+                forgotten++;
+            }
+        }
+
+        return forgotten;
+    }
+
+    /**
+     * @return Number of bindings currently remembered.
+     */
+    public synchronized int size() {
+        return lastSeen.size();
+    }
+
+    /**
+     * @return Number of binds skipped because the queue was already bound.
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    private void forgetIdle(long now) {
+
+        // Access order means the idle bindings are all at the front
+        for (Iterator<Map.Entry<String, Long>> entries = lastSeen.entrySet().iterator(); entries.hasNext(); ) {
+            if (now - entries.next().getValue() < idleMs) {
+                break;
+            }
+            entries.remove();
+        }
+    }
+
+    private static String binding(String queue, String key) {
+
+        // Separate the two with a character that doesn't turn up in queue names
+        return queue + '\u0000' + key;
+    }
+}
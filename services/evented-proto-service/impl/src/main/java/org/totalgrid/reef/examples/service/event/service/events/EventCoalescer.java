@@ -0,0 +1,143 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.client.registration.EventPublisher;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the MODIFIED events of each key over a time window, so a key updated many times within
+ * the window only publishes its latest value when the window closes.
+ *
+ * ADDED and REMOVED events, and batched events, are published straight away. Any MODIFIED event held
+ * for the same key is published just before them, so subscribers still see each key's events in the
+ * order the changes were made.
+ */
+public class EventCoalescer {
+
+    private final EventPublisher publisher;
+
+    // Latest MODIFIED event of each key held in the current window, in the order the keys were first modified
+    private final Map<String, KeyValue> pending = new LinkedHashMap<String, KeyValue>();
+
+    // Number of MODIFIED events replaced by a later one before being published, guarded by this
+    private long suppressed = 0;
+
+    private final ScheduledExecutorService flushExecutor;
+
+    /**
+     * @param publisher Publisher to send the events on.
+     * @param windowMs Length of the window, the longest a MODIFIED event is held back.
+     */
+    public EventCoalescer(EventPublisher publisher, long windowMs) {
+        this.publisher = publisher;
+
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "KeyValue event coalescing");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        flushExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception ex) {
+                    System.out.println("Error publishing coalesced key-value events: " + ex.getMessage());
+                    ex.printStackTrace();
+                }
+            }
+        }, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes an event, or holds it until the window closes if it is a MODIFIED event for a single key.
+     *
+     * @param eventType Type of the event.
+     * @param msg Changed entry, or a batch event with the changed entries.
+     */
+    public synchronized void publish(Envelope.SubscriptionEventType eventType, KeyValue msg) {
+
+        if (eventType == Envelope.SubscriptionEventType.MODIFIED && msg.getEntriesCount() == 0) {
+
+            // Replace any event already held for the key, only the latest value is published
+            if (pending.put(msg.getKey(), msg) != null) {
+                suppressed++;
+            }
+
+        } else {
+
+            // Publish the held events of the same keys first so each key's events stay in order
+            publishPending(msg.getKey());
+            for (KeyValue entry : msg.getEntriesList()) {
+                publishPending(entry.getKey());
+            }
+
+            publisher.publishEvent(eventType, msg, msg.getKey());
+        }
+    }
+
+    /**
+     * Publishes every held event, closing the current window.
+     */
+    public synchronized void flush() {
+
+        for (KeyValue msg : pending.values()) {
+            publisher.publishEvent(Envelope.SubscriptionEventType.MODIFIED, msg, msg.getKey());
+        }
+
+        pending.clear();
+    }
+
+    /**
+     * @return Number of MODIFIED events that were never published because a later one replaced them.
+     */
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Stops the window timer and publishes the held events.
+     */
+    public void close() {
+        flushExecutor.shutdownNow();
+        flush();
+    }
+
+    private void publishPending(String key) {
+
+        KeyValue held = pending.remove(key);
+
+        if (held != null) {
+            publisher.publishEvent(Envelope.SubscriptionEventType.MODIFIED, held, key);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+import org.totalgrid.reef.examples.service.event.client.KeyValuePattern;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscriptions seen since the service started, deciding which changes batched events can carry:
+ * a batch is routed by a pattern, which the binding of a single key never matches, so the changes of
+ * keys subscribed to on their own are published as events of their own instead. Changes no pattern
+ * seen since the start covers are also published on their own, so the subscribers of bindings made
+ * before a restart, or made with the primary before a promotion, still get every change.
+ *
+ * The remaining gap: a key subscribed to on its own before a restart, whose changes are covered by a
+ * pattern subscribed to since, misses batched changes until its subscriber subscribes again.
+ *
+ * The broker doesn't say when a subscription goes away, so subscriptions are never forgotten. Beyond
+ * a maximum count, every key is treated as subscribed, which only costs publishing each change on its
+ * own as if events weren't batched.
+ *
+ * Thread safe; subscriptions are added by subscribing requests and read holding the mutation lock.
+ */
+public class KeySubscriptions {
+
+    private final int maxSubscriptions;
+
+    private final Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Subscribed patterns without their "*": "" for every key, "a." for "a.*"
+    private final Set<String> prefixes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile boolean overflowed = false;
+
+    /**
+     * @param maxSubscriptions Number of keys and patterns remembered before every key is treated as
+     *            subscribed.
+     */
+    public KeySubscriptions(int maxSubscriptions) {
+        this.maxSubscriptions = maxSubscriptions;
+    }
+
+    /**
+     * Records a subscription to a single key or a pattern.
+     */
+    public void subscribed(String key) {
+
+        if (overflowed) {
+            return;
+        }
+
+        if (KeyValuePattern.isPattern(key)) {
+            prefixes.add(key.substring(0, key.length() - 1));
+        } else {
+            keys.add(key);
+        }
+
+        // Too many to keep track of, drop them and publish every change on its own from now on
+        if (keys.size() + prefixes.size() > maxSubscriptions) {
+            overflowed = true;
+            keys.clear();
+            prefixes.clear();
+        }
+    }
+
+    /**
+     * @return True if the key may have subscribers of its own, so its changes can't go in a batch.
+     */
+    public boolean isSubscribed(String key) {
+        return overflowed || keys.contains(key);
+    }
+
+    /**
+     * @param parentPattern Pattern a batch is routed by, from KeyValuePattern.parentPattern.
+     * @return True if a pattern subscribed to since the start covers the batch's keys, so their
+     *         changes can go in a batch.
+     */
+    public boolean isCovered(String parentPattern) {
+
+        if (overflowed) {
+            return false;
+        }
+
+        // Every prefix of the batch's keys that ends on a word boundary, "" included
+        String prefix = parentPattern.substring(0, parentPattern.length() - 1);
+        int end = prefix.length();
+        while (!prefixes.contains(prefix.substring(0, end))) {
+            if (end == 0) {
+                return false;
+            }
+            end = prefix.lastIndexOf('.', end - 2) + 1;
+        }
+        return true;
+    }
+}
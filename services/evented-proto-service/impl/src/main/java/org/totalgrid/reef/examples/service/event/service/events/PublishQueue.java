@@ -0,0 +1,208 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Bounded queue of subscription events, published in order by a dedicated thread so that writes can
+ * respond without waiting for the broker.
+ *
+ * Writes queue their events while holding the store's mutation lock, so the events come out in the
+ * order the changes were made. Each event carries the log sequence number of its change, so the
+ * handler can hold it back until the change is durable.
+ *
+ * The capacity is enforced by admit, called before a write makes its change: BLOCK waits for room
+ * and FAIL refuses the write. Queueing itself never waits, so the queue can briefly go over capacity
+ * by the events of writes admitted together, or of expiry and eviction. DROP_OLDEST instead drops
+ * events from the head of the queue as new ones arrive.
+ */
+public class PublishQueue {
+
+    /**
+     * Publishes the events taken off the queue, on the queue's thread.
+     */
+    public interface Handler {
+
+        /**
+         * @param sequence Log sequence number of the change, 0 if there is no log.
+         * @param eventType Type of the event.
+         * @param msg Changed entry, or a batch event with the changed entries.
+         */
+        void publish(long sequence, Envelope.SubscriptionEventType eventType, KeyValue msg) throws Exception;
+    }
+
+    private static class Queued {
+        private final ChangeEvent event;
+        private final long sequence;
+        private final long queuedAtMs;
+
+        private Queued(ChangeEvent event, long sequence, long queuedAtMs) {
+            this.event = event;
+            this.sequence = sequence;
+            this.queuedAtMs = queuedAtMs;
+        }
+    }
+
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Handler handler;
+
+    // Everything below is guarded by this
+    private final ArrayDeque<Queued> queue = new ArrayDeque<Queued>();
+    private boolean closed = false;
+    private int maxDepth = 0;
+    private long published = 0;
+    private long dropped = 0;
+    private long rejected = 0;
+
+    private final Thread publisherThread;
+
+    /**
+     * @param capacity Number of events the queue holds before the overflow policy applies.
+     * @param overflowPolicy What happens to writes when the queue is full.
+     * @param handler Publishes the events.
+     */
+    public PublishQueue(int capacity, OverflowPolicy overflowPolicy, Handler handler) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.handler = handler;
+
+        publisherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publishLoop();
+            }
+        }, "KeyValue event publisher");
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+    }
+
+    /**
+     * Applies the overflow policy to a write about to be made. Must be called before taking the
+     * store's mutation lock, since BLOCK waits here.
+     *
+     * @return False if the write has to be refused (FAIL policy with a full queue).
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    public synchronized boolean admit() throws InterruptedException {
+
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            while (queue.size() >= capacity && !closed) {
+                wait();
+            }
+        } else if (overflowPolicy == OverflowPolicy.FAIL && queue.size() >= capacity) {
+            rejected++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues the events of a change. Called holding the store's mutation lock, never waits.
+     *
+     * @param events Events of the change, in order.
+     * @param sequence Log sequence number of the change, 0 if there is no log.
+     */
+    public synchronized void enqueue(List<ChangeEvent> events, long sequence) {
+
+        long now = System.currentTimeMillis();
+
+        for (ChangeEvent event : events) {
+
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST && queue.size() >= capacity) {
+                queue.poll();
+                dropped++;
+            }
+
+            queue.add(new Queued(event, sequence, now));
+        }
+
+        maxDepth = Math.max(maxDepth, queue.size());
+        notifyAll();
+    }
+
+    /**
+     * @return Depth, lag and counters of the queue.
+     */
+    public synchronized PublishQueueStatus getStatus() {
+        Queued oldest = queue.peek();
+        long lag = oldest == null ? 0 : System.currentTimeMillis() - oldest.queuedAtMs;
+        return new PublishQueueStatus(queue.size(), maxDepth, capacity, lag, published, dropped, rejected);
+    }
+
+    /**
+     * Publishes the events still queued, then stops the publisher thread.
+     *
+     * @throws InterruptedException If interrupted while the queue drains.
+     */
+    public void close() throws InterruptedException {
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        publisherThread.join();
+    }
+
+    private void publishLoop() {
+
+        while (true) {
+
+            Queued next;
+
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+
+                // Closed and drained
+                if (queue.isEmpty()) {
+                    return;
+                }
+
+                next = queue.poll();
+
+                // Wake writers waiting for room
+                notifyAll();
+            }
+
+            try {
+                handler.publish(next.sequence, next.event.getEventType(), next.event.getMsg());
+            } catch (Exception ex) {
+                System.out.println("Error publishing key-value event: " + ex.getMessage());
+                ex.printStackTrace();
+            }
+
+            synchronized (this) {
+                published++;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+/**
+ * Point in time state of a publish queue.
+ */
+public class PublishQueueStatus {
+
+    private final int depth;
+    private final int maxDepth;
+    private final int capacity;
+    private final long lagMs;
+    private final long published;
+    private final long dropped;
+    private final long rejected;
+
+    public PublishQueueStatus(int depth, int maxDepth, int capacity, long lagMs, long published, long dropped, long rejected) {
+        this.depth = depth;
+        this.maxDepth = maxDepth;
+        this.capacity = capacity;
+        this.lagMs = lagMs;
+        this.published = published;
+        this.dropped = dropped;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return Number of events waiting to be published.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return Highest number of events that have been waiting at once.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return Number of events the queue holds before its overflow policy applies.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return How long the oldest waiting event has been queued, 0 if none are.
+     */
+    public long getLagMs() {
+        return lagMs;
+    }
+
+    /**
+     * @return Number of events published.
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return Number of events dropped by the DROP_OLDEST policy.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return Number of writes rejected by the FAIL policy.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "depth: " + depth + "/" + capacity + " (max " + maxDepth + ") lag: " + lagMs + "ms published: " + published + " dropped: " + dropped + " rejected: " + rejected;
+    }
+}
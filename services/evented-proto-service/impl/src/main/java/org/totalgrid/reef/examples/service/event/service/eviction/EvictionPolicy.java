@@ -0,0 +1,58 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+/**
+ * Chooses which entries to evict when the store is over its memory budget. The service tells the
+ * policy about every read hit, write and removal, and asks it for victims until the store fits its
+ * budget again.
+ *
+ * Writes and removals are reported holding the service's mutation lock, reads are reported from any
+ * thread, so implementations must be thread safe.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * A GET found the entry.
+     */
+    void recordAccess(String key);
+
+    /**
+     * An entry was added or replaced.
+     *
+     * @param weight Approximate size of the entry in bytes.
+     */
+    void recordWrite(String key, long weight);
+
+    /**
+     * An entry was removed (deleted, expired or evicted).
+     */
+    void recordRemoval(String key);
+
+    /**
+     * Every entry was removed.
+     */
+    void clear();
+
+    /**
+     * @return Key of the entry to evict next, which the policy stops tracking, or null if the policy
+     *         tracks no entries.
+     */
+    String victim();
+}
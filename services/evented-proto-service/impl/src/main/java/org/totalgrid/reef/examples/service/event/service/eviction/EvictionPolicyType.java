@@ -0,0 +1,47 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+/**
+ * Eviction policies the service can be started with.
+ */
+public enum EvictionPolicyType {
+
+    /**
+     * Evicts the least recently read or written entry.
+     */
+    LRU,
+
+    /**
+     * Window TinyLFU: new entries start in a small LRU window and only displace established entries
+     * if they have been used more often, so a scan of one-off keys can't flush the popular ones.
+     */
+    W_TINY_LFU;
+
+    /**
+     * @param budgetBytes Memory budget the policy works within.
+     * @return A new policy of this type.
+     */
+    public EvictionPolicy create(long budgetBytes) {
+        if (this == LRU) {
+            return new LruEvictionPolicy();
+        }
+        return new TinyLfuEvictionPolicy(budgetBytes);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+/**
+ * Approximate access counts for TinyLFU: a count-min sketch of 4 rows of 4 bit counters. When the
+ * sketch has counted ten times as many accesses as it has counters per row, every counter is
+ * halved, so popularity decays and keys that were popular long ago can be displaced.
+ */
+class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+
+    // Seeds for deriving an independent hash per row
+    private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedEntries Roughly how many entries the sketch has to tell apart.
+     */
+    FrequencySketch(long expectedEntries) {
+
+        int width = 1024;
+        while (width < expectedEntries && width < (1 << 24)) {
+            width <<= 1;
+        }
+
+        counters = new byte[ROWS][width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * @return Estimated number of recent accesses to a key, at most 15.
+     */
+    int frequency(String key) {
+
+        int hash = key.hashCode();
+        int min = MAX_COUNT;
+
+        for (int row = 0; row < ROWS; row++) {
+            min = Math.min(min, counters[row][index(hash, row)]);
+        }
+
+        return min;
+    }
+
+    /**
+     * Counts an access to a key.
+     */
+    void increment(String key) {
+
+        int hash = key.hashCode();
+
+        for (int row = 0; row < ROWS; row++) {
+            int i = index(hash, row);
+            if (counters[row][i] < MAX_COUNT) {
+                counters[row][i]++;
+            }
+        }
+
+        if (++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    private void age() {
+
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 15;
+        h *= 0x2c1b3c6d;
+        h ^= h >>> 12;
+        return h & mask;
+    }
+}
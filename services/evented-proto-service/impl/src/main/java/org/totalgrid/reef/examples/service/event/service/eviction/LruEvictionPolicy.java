@@ -0,0 +1,64 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used eviction.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    // Keys in access order, least recently used first
+    private final LinkedHashMap<String, Boolean> order = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+    @Override
+    public synchronized void recordAccess(String key) {
+        order.get(key);
+    }
+
+    @Override
+    public synchronized void recordWrite(String key, long weight) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void recordRemoval(String key) {
+        order.remove(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        order.clear();
+    }
+
+    @Override
+    public synchronized String victim() {
+
+        Iterator<String> keys = order.keySet().iterator();
+        if (!keys.hasNext()) {
+            return null;
+        }
+
+        String key = keys.next();
+        keys.remove();
+        return key;
+    }
+}
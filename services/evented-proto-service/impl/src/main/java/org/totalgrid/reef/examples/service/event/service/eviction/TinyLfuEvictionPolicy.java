@@ -0,0 +1,245 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU eviction. Entries are kept in three LRU segments:
+ *
+ * - window: every new entry starts here; it holds about 1% of the budget
+ * - probation: entries admitted from the window that haven't been read since
+ * - protected: entries read while in probation, up to 80% of the rest of the budget
+ *
+ * While the rest of the budget isn't used up, entries leaving the window move straight to probation.
+ * Once it is, and the store is over budget, the window's oldest entry has to win a place in
+ * probation from probation's oldest entry: whichever of the two was used less often (according to a
+ * frequency sketch of every read and write) is evicted. Otherwise probation's oldest entry is evicted.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * Segments an entry can be in.
+     */
+    enum Segment {
+        WINDOW,
+        PROBATION,
+        PROTECTED
+    }
+
+    // Assumed average entry size, only used to size the frequency sketch
+    private static final long TYPICAL_ENTRY_BYTES = 256;
+
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+
+    private final FrequencySketch sketch;
+
+    // Keys and weights of each segment, in LRU order (oldest first)
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long windowWeight = 0;
+    private long probationWeight = 0;
+    private long protectedWeight = 0;
+
+    /**
+     * @param budgetBytes Memory budget of the store.
+     */
+    public TinyLfuEvictionPolicy(long budgetBytes) {
+        windowMax = Math.max(1, budgetBytes / 100);
+        mainMax = budgetBytes - windowMax;
+        protectedMax = mainMax * 8 / 10;
+        sketch = new FrequencySketch(budgetBytes / TYPICAL_ENTRY_BYTES);
+    }
+
+    @Override
+    public synchronized void recordAccess(String key) {
+
+        sketch.increment(key);
+
+        // Accessing a key moves it to the young end of its segment (the maps are in access order)
+        if (window.get(key) != null || protectedSegment.get(key) != null) {
+            return;
+        }
+
+        // Read while on probation, promote it to protected
+        Long weight = probation.remove(key);
+        if (weight != null) {
+            probationWeight -= weight;
+            protectedSegment.put(key, weight);
+            protectedWeight += weight;
+            demoteProtected();
+        }
+    }
+
+    @Override
+    public synchronized void recordWrite(String key, long weight) {
+
+        sketch.increment(key);
+
+        // Rewriting an entry counts as an access, keep it in its segment with its new weight
+        Long previous = window.get(key);
+        if (previous != null) {
+            window.put(key, weight);
+            windowWeight += weight - previous;
+            return;
+        }
+
+        previous = protectedSegment.get(key);
+        if (previous != null) {
+            protectedSegment.put(key, weight);
+            protectedWeight += weight - previous;
+            demoteProtected();
+            return;
+        }
+
+        previous = probation.remove(key);
+        if (previous != null) {
+            probationWeight -= previous;
+            protectedSegment.put(key, weight);
+            protectedWeight += weight;
+            demoteProtected();
+            return;
+        }
+
+        window.put(key, weight);
+        windowWeight += weight;
+
+        // Until the main segments are full there is nothing to compete with, admit the window's overflow
+        while (windowWeight > windowMax && window.size() > 1) {
+            Map.Entry<String, Long> oldestInWindow = oldest(window);
+            if (probationWeight + protectedWeight + oldestInWindow.getValue() > mainMax) {
+                break;
+            }
+            String admitted = oldestInWindow.getKey();
+            Long admittedWeight = window.remove(admitted);
+            windowWeight -= admittedWeight;
+            probation.put(admitted, admittedWeight);
+            probationWeight += admittedWeight;
+        }
+    }
+
+    @Override
+    public synchronized void recordRemoval(String key) {
+
+        Long weight = window.remove(key);
+        if (weight != null) {
+            windowWeight -= weight;
+            return;
+        }
+
+        weight = protectedSegment.remove(key);
+        if (weight != null) {
+            protectedWeight -= weight;
+            return;
+        }
+
+        weight = probation.remove(key);
+        if (weight != null) {
+            probationWeight -= weight;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    @Override
+    public synchronized String victim() {
+
+        if (windowWeight > windowMax || (probation.isEmpty() && protectedSegment.isEmpty())) {
+
+            Map.Entry<String, Long> oldestInWindow = oldest(window);
+            if (oldestInWindow == null) {
+                return null;
+            }
+
+            // The window's oldest entry leaves the window either way: evicted, or admitted to probation
+            // in place of probation's oldest entry if it is used more often
+            String candidate = oldestInWindow.getKey();
+            Long weight = window.remove(candidate);
+            windowWeight -= weight;
+
+            Map.Entry<String, Long> oldestOnProbation = oldest(probation);
+            if (oldestOnProbation == null || sketch.frequency(candidate) <= sketch.frequency(oldestOnProbation.getKey())) {
+                return candidate;
+            }
+
+            String incumbent = oldestOnProbation.getKey();
+            probationWeight -= probation.remove(incumbent);
+            probation.put(candidate, weight);
+            probationWeight += weight;
+            return incumbent;
+        }
+
+        if (probation.isEmpty()) {
+            demote(oldest(protectedSegment));
+        }
+
+        String victim = oldest(probation).getKey();
+        probationWeight -= probation.remove(victim);
+        return victim;
+    }
+
+    /**
+     * @return Segment holding a key, null if the policy doesn't track it.
+     */
+    synchronized Segment segmentOf(String key) {
+        if (window.containsKey(key)) {
+            return Segment.WINDOW;
+        }
+        if (probation.containsKey(key)) {
+            return Segment.PROBATION;
+        }
+        return protectedSegment.containsKey(key) ? Segment.PROTECTED : null;
+    }
+
+    /**
+     * Moves the oldest protected entries back to probation while protected is over its share.
+     */
+    private void demoteProtected() {
+        while (protectedWeight > protectedMax && protectedSegment.size() > 1) {
+            demote(oldest(protectedSegment));
+        }
+    }
+
+    private void demote(Map.Entry<String, Long> entry) {
+        String key = entry.getKey();
+        Long weight = protectedSegment.remove(key);
+        protectedWeight -= weight;
+        probation.put(key, weight);
+        probationWeight += weight;
+    }
+
+    private static Map.Entry<String, Long> oldest(LinkedHashMap<String, Long> segment) {
+        Iterator<Map.Entry<String, Long>> entries = segment.entrySet().iterator();
+        return entries.hasNext() ? entries.next() : null;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.execution;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed set of worker threads, each with its own bounded queue, picking the worker
+ * by the hash of the task's key. Tasks for the same key run one at a time in the order they were
+ * submitted, while tasks for other keys run in parallel on the other workers.
+ *
+ * A task without a key (covering many keys) runs as a barrier: it waits until every worker has run
+ * the tasks submitted before it, runs while they are all held, then lets them go on with the tasks
+ * submitted after it.
+ */
+public class KeyStripedExecutor {
+
+    private final ThreadPoolExecutor[] stripes;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threads Number of worker threads.
+     * @param queueCapacity Tasks each worker queues behind the one it is running.
+     */
+    public KeyStripedExecutor(int threads, int queueCapacity) {
+
+        stripes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            final String name = "KeyValue worker " + i;
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a task on the worker of its key.
+     *
+     * @param key Key the task works on, null if it works on many keys.
+     * @param task Task to run.
+     * @return False if the worker's queue (any worker's, for a task without a key) is full.
+     */
+    public synchronized boolean execute(String key, Runnable task) {
+
+        if (key != null) {
+            try {
+                stripes[stripeFor(key)].execute(task);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        // Every worker has to take its part of the barrier, or the ones that did would wait forever.
+        // Only this (synchronized) method adds to the queues, so room found now is still there below.
+        for (ThreadPoolExecutor stripe : stripes) {
+            if (stripe.getQueue().remainingCapacity() == 0 || stripe.isShutdown()) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        final Runnable barrierTask = task;
+        final AtomicInteger arriving = new AtomicInteger(stripes.length);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    // The last worker to arrive runs the task while the others wait
+                    if (arriving.decrementAndGet() == 0) {
+                        try {
+                            barrierTask.run();
+                        } finally {
+                            done.countDown();
+                        }
+                        return;
+                    }
+
+                    try {
+                        done.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Number of tasks queued on all workers, not counting the ones running.
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            queued += stripe.getQueue().size();
+        }
+        return queued;
+    }
+
+    /**
+     * @return Number of tasks refused because their worker's queue was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Runs the tasks already queued, then stops the workers.
+     *
+     * @throws InterruptedException If interrupted while the queues drain.
+     */
+    public void close() throws InterruptedException {
+
+        synchronized (this) {
+            for (ThreadPoolExecutor stripe : stripes) {
+                stripe.shutdown();
+            }
+        }
+
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private int stripeFor(String key) {
+
+        // Spread the hash so keys differing only in their last characters still land apart
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % stripes.length;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.expiry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Each level has 64 slots; a slot of level 0 covers one tick, a slot of
+ * level 1 covers 64 ticks, and so on. Timers are placed in the lowest level that reaches their
+ * deadline and move down a level each time the slot holding them comes round, so scheduling a
+ * timer and firing it are both O(1) however many timers are pending.
+ *
+ * Timers can't be cancelled; owners are expected to check when a timer fires whether it is still
+ * current, and ignore it otherwise.
+ *
+ * @param <T> Item carried by each timer.
+ */
+public class TimerWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMs;
+    private final long startMs;
+
+    // Slot s of level l is slots.get(l * SLOTS + s)
+    private final List<List<Timer<T>>> slots = new ArrayList<List<Timer<T>>>(LEVELS * SLOTS);
+
+    // Timers further away than the top level reaches, rechecked each time the top level moves
+    private List<Timer<T>> overflow = new ArrayList<Timer<T>>();
+
+    // Last tick that has been processed
+    private long currentTick = 0;
+
+    private int size = 0;
+
+    /**
+     * @param tickMs Length of a tick, the resolution of the wheel.
+     * @param startMs Time of tick 0.
+     */
+    public TimerWheel(long tickMs, long startMs) {
+        this.tickMs = tickMs;
+        this.startMs = startMs;
+
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<Timer<T>>());
+        }
+    }
+
+    /**
+     * Schedules an item to fire at (or up to one tick after) a time. Times already passed fire on the
+     * next tick.
+     *
+     * @param deadlineMs Time to fire at.
+     * @param item Item returned by advance when the timer fires.
+     */
+    public synchronized void schedule(long deadlineMs, T item) {
+
+        // Round up so a timer never fires early
+        long deadlineTick = (deadlineMs - startMs + tickMs - 1) / tickMs;
+
+        place(new Timer<T>(Math.max(deadlineTick, currentTick + 1), item));
+        size++;
+    }
+
+    /**
+     * Processes every tick up to a time.
+     *
+     * @param nowMs Current time.
+     * @return Items of the timers that fired, in deadline order.
+     */
+    public synchronized List<T> advance(long nowMs) {
+
+        List<T> fired = new ArrayList<T>();
+        long nowTick = (nowMs - startMs) / tickMs;
+
+        while (currentTick < nowTick) {
+
+            currentTick++;
+
+            // Move the timers of the higher level slots that come round on this tick down the wheel,
+            // top level first so its timers can go straight on down through the lower levels
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    if (level == LEVELS - 1) {
+                        List<Timer<T>> far = overflow;
+                        overflow = new ArrayList<Timer<T>>();
+                        cascade(far, fired);
+                    }
+                    cascade(takeSlot(level, (int) ((currentTick >> (BITS * level)) & MASK)), fired);
+                }
+            }
+
+            for (Timer<T> timer : takeSlot(0, (int) (currentTick & MASK))) {
+                fired.add(timer.item);
+            }
+        }
+
+        size -= fired.size();
+        return fired;
+    }
+
+    /**
+     * @return Number of timers that haven't fired yet.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void cascade(List<Timer<T>> timers, List<T> fired) {
+        for (Timer<T> timer : timers) {
+            if (timer.deadlineTick <= currentTick) {
+                fired.add(timer.item);
+            } else {
+                place(timer);
+            }
+        }
+    }
+
+    private void place(Timer<T> timer) {
+
+        long delta = timer.deadlineTick - currentTick;
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << (BITS * (level + 1)))) {
+                slots.get(level * SLOTS + (int) ((timer.deadlineTick >> (BITS * level)) & MASK)).add(timer);
+                return;
+            }
+        }
+
+        overflow.add(timer);
+    }
+
+    private List<Timer<T>> takeSlot(int level, int slot) {
+
+        int index = level * SLOTS + slot;
+        List<Timer<T>> timers = slots.get(index);
+
+        // Replace rather than clear the list so a burst of timers doesn't pin memory
+        if (!timers.isEmpty()) {
+            slots.set(index, new ArrayList<Timer<T>>());
+        }
+
+        return timers;
+    }
+
+    private static class Timer<T> {
+
+        private final long deadlineTick;
+        private final T item;
+
+        Timer(long deadlineTick, T item) {
+            this.deadlineTick = deadlineTick;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.index;
+
+import org.totalgrid.reef.examples.service.event.client.KeyValueCompression;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.Compression;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Inverted index from string values to the keys holding them, so the keys with a value can be
+ * found without scanning every entry. Compressed string values are indexed by their uncompressed
+ * text; binary values aren't indexed.
+ *
+ * Values are indexed by a 64 bit hash rather than kept as they are, so the index holds no second
+ * copy of large (or decompressed) values. Lookups return candidate keys, which the caller confirms
+ * against the entries. Each key's hash is remembered, so replacing or removing an entry never has to
+ * decompress the old value and never leaves the key behind.
+ *
+ * Hashing a compressed value means inflating it, so hashes are computed by hashOf before the caller
+ * takes its lock, from the value as sent before it was compressed where there is one, and passed to
+ * put. Candidates only share the hash of the value looked up, so confirming them only inflates the
+ * values that (almost certainly) match; the caller does that outside its lock too.
+ *
+ * Not thread safe; the service updates and reads it holding its mutation lock, alongside the map,
+ * so lookups always match the entries.
+ */
+public class ValueIndex {
+
+    // Keys whose values have each hash, in key order
+    private final Map<Long, Set<String>> keysByHash = new HashMap<Long, Set<String>>();
+
+    // Hash of the value of each indexed key
+    private final Map<String, Long> hashByKey = new HashMap<String, Long>();
+
+    /**
+     * Indexes an entry stored in the map, in place of any earlier entry with its key.
+     *
+     * @param entry Entry, indexed if it has a (possibly compressed) string value.
+     * @param hash Hash of the entry's value, from hashOf.
+     */
+    public void put(KeyValue entry, long hash) {
+
+        remove(entry.getKey());
+
+        if (!isIndexed(entry)) {
+            return;
+        }
+
+        Set<String> keys = keysByHash.get(hash);
+        if (keys == null) {
+            keys = new TreeSet<String>();
+            keysByHash.put(hash, keys);
+        }
+
+        keys.add(entry.getKey());
+        hashByKey.put(entry.getKey(), hash);
+    }
+
+    /**
+     * Removes the entry with a key, if it is indexed.
+     *
+     * @param key Key of the entry removed from the map.
+     */
+    public void remove(String key) {
+
+        Long hash = hashByKey.remove(key);
+        if (hash == null) {
+            return;
+        }
+
+        Set<String> keys = keysByHash.get(hash);
+        keys.remove(key);
+
+        // Drop values no key holds any more, so rarely repeated values don't pile up
+        if (keys.isEmpty()) {
+            keysByHash.remove(hash);
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        keysByHash.clear();
+        hashByKey.clear();
+    }
+
+    /**
+     * @param value String value.
+     * @return Keys that may hold the value, in key order: every key holding it, plus any whose value
+     *         only shares its hash.
+     */
+    public List<String> candidateKeys(String value) {
+
+        Set<String> keys = keysByHash.get(hash(value));
+        return keys == null ? new ArrayList<String>() : new ArrayList<String>(keys);
+    }
+
+    /**
+     * @return Number of indexed entries.
+     */
+    public long size() {
+        return hashByKey.size();
+    }
+
+    /**
+     * Hashes an entry's string value, inflating it if it is compressed, so call it before taking the
+     * lock guarding the index.
+     *
+     * @return Hash to index the entry under, 0 if it has no string value.
+     */
+    public static long hashOf(KeyValue entry) {
+        return isIndexed(entry) ? hash(KeyValueCompression.getValue(entry)) : 0;
+    }
+
+    /**
+     * @return True if the entry's string value (uncompressed) is the value looked up.
+     */
+    public static boolean holdsValue(KeyValue entry, String value) {
+        return isIndexed(entry) && KeyValueCompression.getValue(entry).equals(value);
+    }
+
+    private static boolean isIndexed(KeyValue entry) {
+        return entry.hasValue() || (entry.hasCompression() && entry.getCompression() == Compression.DEFLATED_TEXT);
+    }
+
+    /**
+     * FNV-1a over the characters, finished with a 64 bit mix.
+     */
+    private static long hash(String value) {
+
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
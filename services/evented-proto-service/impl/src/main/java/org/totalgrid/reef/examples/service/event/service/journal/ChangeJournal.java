@@ -0,0 +1,187 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.journal;
+
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded in-memory journal of the latest changes to the store, so clients that already have the
+ * entries as of some revision can catch up by reading only the changes made since.
+ *
+ * Every change takes the next store revision, so the journal holds its changes in revision order:
+ * the entry written, or a placeholder marked missing for a removed key. Once full, the oldest change
+ * is dropped for each new one, and revisions before it can no longer be caught up from.
+ *
+ * Not thread safe; the service only uses it holding its mutation lock. Under the lock it only copies
+ * the changes out, and compacts the copy once it has let writers go again.
+ */
+public class ChangeJournal {
+
+    // Ring of the changes, oldest at head
+    private final KeyValue[] changes;
+    private int head = 0;
+    private int size = 0;
+
+    // Every change after this revision is in the journal
+    private long startRevision;
+
+    /**
+     * @param capacity Number of changes held.
+     * @param startRevision Store revision the journal starts at.
+     */
+    public ChangeJournal(int capacity, long startRevision) {
+        this.changes = new KeyValue[capacity];
+        this.startRevision = startRevision;
+    }
+
+    /**
+     * Records an entry being written.
+     *
+     * @param entry Entry as stored, with its revision.
+     */
+    public void recordPut(KeyValue entry) {
+        add(entry);
+    }
+
+    /**
+     * Records a key being removed.
+     *
+     * @param key Removed key.
+     * @param revision Revision the removal took.
+     */
+    public void recordRemove(String key, long revision) {
+        add(KeyValue.newBuilder().setKey(key).setRevision(revision).setMissing(true).build());
+    }
+
+    /**
+     * Drops every change, for a change that can't be expressed key by key (removing every entry).
+     *
+     * @param revision Revision of that change; only later changes can be caught up from.
+     */
+    public void reset(long revision) {
+        for (int i = 0; i < size; i++) {
+            changes[(head + i) % changes.length] = null;
+        }
+        head = 0;
+        size = 0;
+        startRevision = revision;
+    }
+
+    /**
+     * Copies out the changes made after a revision, as they were made.
+     *
+     * @param revision Revision the caller has the entries as of.
+     * @return Every change since, in revision order, or null if the journal no longer goes back that
+     *         far.
+     */
+    public List<KeyValue> changesAfter(long revision) {
+
+        if (revision < startRevision) {
+            return null;
+        }
+
+        int first = firstAfter(revision);
+        KeyValue[] copy = new KeyValue[size - first];
+
+        // The ring wraps at most once, so the range is one or two array copies
+        int start = (head + first) % changes.length;
+        int untilEnd = Math.min(copy.length, changes.length - start);
+        System.arraycopy(changes, start, copy, 0, untilEnd);
+        System.arraycopy(changes, 0, copy, untilEnd, copy.length - untilEnd);
+
+        return Arrays.asList(copy);
+    }
+
+    /**
+     * Compacts changes into the latest change of each key, keeping only keys with a prefix.
+     *
+     * @param changes Changes in revision order, as copied out by changesAfter.
+     * @param prefix Prefix of the keys kept, empty for every key.
+     * @return The latest change of each key, in the order of those changes.
+     */
+    public static List<KeyValue> compact(List<KeyValue> changes, String prefix) {
+
+        // Later changes replace earlier ones and move the key to the end
+        LinkedHashMap<String, KeyValue> latest = new LinkedHashMap<String, KeyValue>();
+
+        for (KeyValue change : changes) {
+            if (change.getKey().startsWith(prefix)) {
+                latest.remove(change.getKey());
+                latest.put(change.getKey(), change);
+            }
+        }
+
+        return new ArrayList<KeyValue>(latest.values());
+    }
+
+    /**
+     * @return Revision after which every change is in the journal.
+     */
+    public long getStartRevision() {
+        return startRevision;
+    }
+
+    /**
+     * @return Number of changes held.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void add(KeyValue change) {
+
+        if (size == changes.length) {
+
+            // Drop the oldest change, it can no longer be caught up from
+            startRevision = changes[head].getRevision();
+            changes[head] = null;
+            head = (head + 1) % changes.length;
+            size--;
+        }
+
+        changes[(head + size) % changes.length] = change;
+        size++;
+    }
+
+    /**
+     * @return Position (from the oldest) of the first change after a revision, by binary search
+     *         since the changes are in revision order.
+     */
+    private int firstAfter(long revision) {
+
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (changes[(head + mid) % changes.length].getRevision() <= revision) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+}
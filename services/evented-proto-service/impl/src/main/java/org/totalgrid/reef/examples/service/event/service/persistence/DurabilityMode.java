@@ -0,0 +1,42 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.persistence;
+
+/**
+ * Controls when the write-ahead log forces a write to disk relative to the response for that write.
+ */
+public enum DurabilityMode {
+
+    /**
+     * Every write is forced to disk on its own before it is acknowledged.
+     */
+    SYNC,
+
+    /**
+     * Writes are acknowledged once they are on disk, but writes that arrive while a force is in
+     * progress are collected and share the next one.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Writes are acknowledged immediately and forced to disk periodically; a crash can lose the
+     * most recent writes.
+     */
+    ASYNC
+}
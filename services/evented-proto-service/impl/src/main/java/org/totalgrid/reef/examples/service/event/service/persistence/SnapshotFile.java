@@ -0,0 +1,385 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.persistence;
+
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the key-value store, written and read through memory-mapped buffers.
+ *
+ * A snapshot named after sequence number N holds the store as of (at least) log record N, so
+ * startup maps the newest snapshot and only replays the log records after N. Snapshots are written
+ * to a temporary file and renamed when complete, so a snapshot file is never partially written.
+ *
+ * The file's contents are forced to disk before the rename, but Java can't force the directory entry
+ * the rename creates, so a crash may still lose the rename. The caller keeps the previous snapshot
+ * and the log after it until the next snapshot has been written, by which time the rename has long
+ * been flushed; a lost rename only costs replaying more log.
+ *
+ * Layout: [magic][version][sequence][revision][entry count][entries length] followed by the
+ * entries, each [length][KeyValue bytes], and a crc32 of the entries. Only the current version is
+ * read: a snapshot without a revision would restart the store's revisions below those its clients
+ * have seen.
+ */
+public final class SnapshotFile {
+
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x4b565331;
+    private static final int VERSION = 2;
+
+    // magic (4) + version (4) + sequence (8) + revision (8) + entry count (8) + entries length (8)
+    private static final int HEADER_SIZE = 40;
+
+    // Files are mapped in windows of increasing size, up to this limit
+    private static final int INITIAL_WINDOW = 1024 * 1024;
+    private static final int MAX_WINDOW = 256 * 1024 * 1024;
+
+    private SnapshotFile() {}
+
+    /**
+     * Writes a snapshot and makes it the latest one.
+     *
+     * @param directory Directory holding the snapshots.
+     * @param sequence Sequence number of the last log record reflected in the entries.
+     * @param revision Store revision as of that log record.
+     * @param entries Entries of the store.
+     * @throws IOException If the snapshot can't be written.
+     */
+    public static void write(File directory, long sequence, long revision, Iterator<KeyValue> entries) throws IOException {
+
+        File temp = new File(directory, PREFIX + String.format("%020d", sequence) + SUFFIX + TEMP_SUFFIX);
+
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.setLength(0);
+
+            MappedWriter out = new MappedWriter(file.getChannel());
+
+            // Leave room for the header, filled in once the entries have been counted
+            out.skip(HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            long count = 0;
+
+            while (entries.hasNext()) {
+                byte[] bytes = entries.next().toByteArray();
+                out.putInt(bytes.length);
+                out.put(bytes);
+                crc.update(bytes);
+                count++;
+            }
+
+            long entriesLength = out.position() - HEADER_SIZE;
+            out.putInt((int) crc.getValue());
+
+            MappedByteBuffer header = out.head();
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(8, sequence);
+            header.putLong(16, revision);
+            header.putLong(24, count);
+            header.putLong(32, entriesLength);
+
+            out.force();
+
+            // The mapped windows grew the file in large steps, cut it back to what was written. Java
+            // can't unmap a window on demand, so the writer is dropped and nothing mapped past the
+            // new length is touched again
+            long length = out.position();
+            out = null;
+            file.setLength(length);
+            file.getChannel().force(true);
+
+        } finally {
+            file.close();
+        }
+
+        File target = new File(directory, PREFIX + String.format("%020d", sequence) + SUFFIX);
+        if (!temp.renameTo(target)) {
+            throw new IOException("Cannot rename snapshot: " + temp + " to: " + target);
+        }
+    }
+
+    /**
+     * Loads the newest snapshot in a directory.
+     *
+     * @param directory Directory holding the snapshots.
+     * @param handler Receives every entry of the snapshot as a PUT.
+     * @return Sequence number and revision of the snapshot, both 0 if there is none.
+     * @throws IOException If the snapshot can't be read or is corrupt.
+     */
+    public static Position loadLatest(File directory, WriteAheadLog.RecordHandler handler) throws IOException {
+
+        long[] snapshots = list(directory, SUFFIX);
+        if (snapshots.length == 0) {
+            return new Position(0, 0);
+        }
+
+        long sequence = snapshots[snapshots.length - 1];
+        File source = new File(directory, PREFIX + String.format("%020d", sequence) + SUFFIX);
+
+        long revision;
+
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+
+            MappedReader in = new MappedReader(file.getChannel());
+
+            int magic = in.getInt();
+            int version = in.getInt();
+            if (magic != MAGIC || version != VERSION || in.getLong() != sequence) {
+                throw new IOException("Not a valid snapshot: " + source);
+            }
+
+            revision = in.getLong();
+
+            long count = in.getLong();
+            long entriesLength = in.getLong();
+            if (HEADER_SIZE + entriesLength + 4 > file.length()) {
+                throw new IOException("Truncated snapshot: " + source);
+            }
+
+            CRC32 crc = new CRC32();
+
+            for (long i = 0; i < count; i++) {
+                byte[] bytes = in.get(in.getInt());
+                crc.update(bytes);
+                handler.onRecord(WriteAheadLog.Operation.PUT, KeyValue.parseFrom(bytes));
+            }
+
+            if (in.position() != HEADER_SIZE + entriesLength || in.getInt() != (int) crc.getValue()) {
+                throw new IOException("Corrupt snapshot: " + source);
+            }
+
+        } finally {
+            file.close();
+        }
+
+        return new Position(sequence, revision);
+    }
+
+    /**
+     * Deletes snapshots older than a sequence number.
+     *
+     * @param directory Directory holding the snapshots.
+     * @param sequence Sequence number of the oldest snapshot to keep.
+     */
+    public static void deleteBefore(File directory, long sequence) {
+
+        for (long old : list(directory, SUFFIX)) {
+            if (old < sequence) {
+                new File(directory, PREFIX + String.format("%020d", old) + SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary files of snapshots abandoned part way, older than a sequence number.
+     *
+     * @param directory Directory holding the snapshots.
+     * @param sequence Sequence number of the newest snapshot.
+     */
+    public static void deleteAbandonedBefore(File directory, long sequence) {
+
+        for (long old : list(directory, SUFFIX + TEMP_SUFFIX)) {
+            if (old < sequence) {
+                new File(directory, PREFIX + String.format("%020d", old) + SUFFIX + TEMP_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * @return Sequence numbers of the files with a suffix, in order.
+     */
+    private static long[] list(File directory, final String suffix) {
+
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(suffix) && name.length() == PREFIX.length() + 20 + suffix.length();
+            }
+        });
+
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] sequences = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            sequences[i] = Long.parseLong(names[i].substring(PREFIX.length(), PREFIX.length() + 20));
+        }
+        Arrays.sort(sequences);
+
+        return sequences;
+    }
+
+    /**
+     * Where a loaded snapshot leaves the store: the last log record it reflects and the store revision
+     * at that point.
+     */
+    public static final class Position {
+
+        private final long sequence;
+        private final long revision;
+
+        Position(long sequence, long revision) {
+            this.sequence = sequence;
+            this.revision = revision;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+    }
+
+    /**
+     * Writes sequentially through a series of mapped windows, mapping the next (larger) window when
+     * the current one fills up. The first window is kept so the header can be written last.
+     */
+    private static class MappedWriter {
+
+        private final FileChannel channel;
+        private MappedByteBuffer head;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+        private int nextWindowSize = INITIAL_WINDOW;
+
+        MappedWriter(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.window = map(0, 0);
+            this.head = window;
+        }
+
+        private MappedByteBuffer map(long start, int needed) throws IOException {
+            int size = Math.max(nextWindowSize, needed);
+            nextWindowSize = Math.min(nextWindowSize * 2, MAX_WINDOW);
+            return channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+
+        private void ensure(int needed) throws IOException {
+            if (window.remaining() < needed) {
+                long start = position();
+                if (window != head) {
+                    window.force();
+                }
+                window = map(start, needed);
+                windowStart = start;
+            }
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        void skip(int bytes) throws IOException {
+            ensure(bytes);
+            window.position(window.position() + bytes);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            window.putInt(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            ensure(bytes.length);
+            window.put(bytes);
+        }
+
+        MappedByteBuffer head() {
+            return head;
+        }
+
+        void force() {
+            window.force();
+            if (head != window) {
+                head.force();
+            }
+        }
+    }
+
+    /**
+     * Reads sequentially through a series of read-only mapped windows; a value that straddles the
+     * end of a window is read by remapping starting at that value.
+     */
+    private static class MappedReader {
+
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), MAX_WINDOW));
+        }
+
+        private void ensure(int needed) throws IOException {
+            if (window.remaining() < needed) {
+                long start = position();
+                long size = Math.max(Math.min(channel.size() - start, MAX_WINDOW), needed);
+                if (start + size > channel.size()) {
+                    throw new IOException("Unexpected end of snapshot");
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                windowStart = start;
+            }
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        byte[] get(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot entry length: " + length);
+            }
+            ensure(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return bytes;
+        }
+    }
+}
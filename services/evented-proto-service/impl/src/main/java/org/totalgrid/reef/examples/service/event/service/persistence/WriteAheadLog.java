@@ -0,0 +1,641 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.persistence;
+
+import com.google.protobuf.ByteString;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the key-value store. On startup the log is replayed to
+ * rebuild the in-memory map; afterwards every PUT/DELETE is appended before it is acknowledged.
+ * replay must be called once, before the first append.
+ *
+ * The log is split into segment files named after the sequence number of their first record.
+ * rotate starts a new segment so that, once a snapshot covers everything before it, the older
+ * segments can be deleted and startup only has to replay the tail.
+ *
+ * Each record is framed as [length][sequence number][operation][KeyValue bytes][crc32]. A torn or
+ * corrupt record at the end of the last segment (from a crash mid-write) ends the replay and is
+ * truncated.
+ *
+ * Appends only copy the record into an in-memory buffer. How that buffer reaches the disk depends on
+ * the DurabilityMode: inline for SYNC, or by a flusher thread that writes and forces everything
+ * buffered since its last pass for GROUP_COMMIT and ASYNC. With group commit, writers that arrive
+ * while a force is running all share the next one instead of each paying for their own.
+ */
+public class WriteAheadLog {
+
+    /**
+     * Kind of change recorded in the log.
+     */
+    public enum Operation {
+        PUT,
+        DELETE,
+        CLEAR
+    }
+
+    /**
+     * Receives the records found in the log during startup, in the order they were appended.
+     */
+    public interface RecordHandler {
+
+        /**
+         * @param operation Change that was made.
+         * @param record Key (and value, for PUTs) the change was made to.
+         */
+        void onRecord(Operation operation, KeyValue record);
+    }
+
+    private static final String SEGMENT_PREFIX = "keyvalue-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Sequence number (8) + operation (1)
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    // Anything larger than this in a length field can only be garbage
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+    private final DurabilityMode mode;
+    private final long asyncFlushIntervalMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    // Records appended but not yet written, and a second buffer to swap in while one is being written
+    private RecordBuffer pending = new RecordBuffer();
+    private RecordBuffer spare = new RecordBuffer();
+
+    private long appendedSequence = 0;
+    private long durableSequence = 0;
+    private IOException failure = null;
+    private boolean closed = false;
+    private boolean replayed = false;
+
+    // Pending rotation: records up to rotateSequence (the first rotateOffset bytes of pending) still
+    // belong in the current segment, everything after goes in the new one
+    private long rotateSequence = -1;
+    private int rotateOffset = 0;
+    private long rotatedSequence = 0;
+
+    // Segment being appended to; only touched by the flusher thread, or under the lock in SYNC mode
+    private FileChannel segment = null;
+    private OutputStream segmentStream = null;
+
+    private Thread flusher = null;
+
+    /**
+     * Opens (or creates) the log in a directory.
+     *
+     * @param directory Directory holding the log segments, created if needed.
+     * @param mode When appended records are forced to disk.
+     * @param asyncFlushIntervalMs How often records are forced to disk in ASYNC mode.
+     * @throws IOException If the directory can't be created.
+     */
+    public WriteAheadLog(File directory, DurabilityMode mode, long asyncFlushIntervalMs) throws IOException {
+
+        this.directory = directory;
+        this.mode = mode;
+        this.asyncFlushIntervalMs = asyncFlushIntervalMs;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory: " + directory);
+        }
+    }
+
+    /**
+     * Passes every record after a snapshot to a handler, drops any torn record at the tail and readies
+     * the log for appends. Segments entirely covered by the snapshot aren't read at all.
+     *
+     * @param handler Receives the existing records, in order.
+     * @param afterSequence Sequence number of the snapshot the store was loaded from, 0 if none.
+     * @throws IOException If the log can't be read.
+     */
+    public void replay(RecordHandler handler, long afterSequence) throws IOException {
+
+        lock.lock();
+        try {
+
+            if (replayed) {
+                throw new IllegalStateException("Write-ahead log already replayed");
+            }
+
+            appendedSequence = afterSequence;
+
+            long[] segments = listSegments(directory);
+
+            for (int i = 0; i < segments.length; i++) {
+
+                boolean last = i == segments.length - 1;
+
+                // The next segment starting at or before the snapshot means this one is fully covered
+                if (!last && segments[i + 1] <= afterSequence + 1) {
+                    continue;
+                }
+
+                FileChannel channel = new RandomAccessFile(segmentFile(segments[i]), "rw").getChannel();
+                long end = readRecords(channel, handler, afterSequence);
+
+                if (end < channel.size()) {
+                    if (!last) {
+                        channel.close();
+                        throw new IOException("Corrupt write-ahead log segment: " + segmentFile(segments[i]));
+                    }
+                    // A crash mid-write can only tear the tail of the last segment
+                    channel.truncate(end);
+                }
+
+                if (last) {
+                    // Continue appending after the last good record
+                    channel.position(end);
+                    openSegment(channel);
+                } else {
+                    channel.close();
+                }
+            }
+
+            if (segment == null) {
+                openSegment(new RandomAccessFile(segmentFile(appendedSequence + 1), "rw").getChannel());
+            }
+
+            durableSequence = appendedSequence;
+            rotatedSequence = appendedSequence;
+            replayed = true;
+
+        } finally {
+            lock.unlock();
+        }
+
+        if (mode != DurabilityMode.SYNC) {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "KeyValue write-ahead log flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Reads every intact record from the start of a segment, passing on those after a sequence number.
+     *
+     * @return Position just after the last intact record.
+     */
+    private long readRecords(FileChannel channel, RecordHandler handler, long afterSequence) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+
+        long position = 0;
+        CRC32 crc = new CRC32();
+
+        while (true) {
+
+            byte[] body;
+            int checksum;
+
+            try {
+                int length = in.readInt();
+                if (length < RECORD_HEADER_SIZE || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                body = new byte[length];
+                in.readFully(body);
+                checksum = in.readInt();
+            } catch (EOFException eof) {
+                // A partially written record at the tail of the log
+                break;
+            }
+
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            long sequence = buffer.getLong();
+            int operation = buffer.get();
+            if (operation < 0 || operation >= Operation.values().length) {
+                break;
+            }
+
+            if (sequence > afterSequence) {
+
+                KeyValue record = KeyValue.parseFrom(ByteString.copyFrom(body, RECORD_HEADER_SIZE, body.length - RECORD_HEADER_SIZE));
+
+                handler.onRecord(Operation.values()[operation], record);
+
+                appendedSequence = sequence;
+            }
+
+            position += 4 + body.length + 4;
+        }
+
+        return position;
+    }
+
+    /**
+     * Appends a record. The record is not necessarily on disk when this returns; call awaitDurable
+     * with the returned sequence number before acknowledging the change.
+     *
+     * Records must be appended in the same order the changes are applied to the store, so callers
+     * hold their own write lock across applying the change and appending it.
+     *
+     * @param operation Change being made.
+     * @param record Key (and value, for PUTs) the change is made to.
+     * @return Sequence number of the record.
+     * @throws IOException If the log has failed or is closed.
+     */
+    public long append(Operation operation, KeyValue record) throws IOException {
+
+        byte[] payload = record.toByteArray();
+
+        lock.lock();
+        try {
+
+            checkUsable();
+
+            long sequence = ++appendedSequence;
+            writeRecord(pending, sequence, operation, payload);
+
+            if (mode == DurabilityMode.SYNC) {
+
+                // Per-request fsync, done inline while holding the lock
+                try {
+                    pending.writeTo(segmentStream);
+                    segment.force(false);
+                } catch (IOException ex) {
+                    failure = ex;
+                    throw ex;
+                } finally {
+                    pending.reset();
+                }
+                durableSequence = sequence;
+
+            } else if (mode == DurabilityMode.GROUP_COMMIT) {
+
+                // Wake the flusher; if it is busy forcing, this record waits for its next pass
+                pendingAvailable.signal();
+            }
+
+            return sequence;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a record is on disk. Only GROUP_COMMIT waits: SYNC records are already on disk when
+     * append returns and ASYNC records are acknowledged without waiting.
+     *
+     * @param sequence Sequence number returned by append.
+     * @throws IOException If the log failed before the record was written.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+
+        if (mode != DurabilityMode.GROUP_COMMIT) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            while (durableSequence < sequence) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log failed: " + failure.getMessage());
+                }
+                flushed.await();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for write-ahead log");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one. Every record appended before the call ends up
+     * in the closed segment(s); blocks until the switch has been made.
+     *
+     * To take a snapshot, call this while no changes are being applied to the store, then write
+     * the snapshot with the returned sequence number.
+     *
+     * @return Sequence number of the last record in the closed segment(s).
+     * @throws IOException If the log has failed or is closed.
+     */
+    public long rotate() throws IOException {
+
+        lock.lock();
+        try {
+
+            checkUsable();
+
+            long sequence = appendedSequence;
+
+            if (sequence == rotatedSequence) {
+                // Nothing appended since the last rotation, the current segment already starts after it
+                return sequence;
+            }
+
+            if (mode == DurabilityMode.SYNC) {
+
+                // Nothing is ever left buffered in SYNC mode, switch directly
+                switchSegment(sequence + 1);
+                rotatedSequence = sequence;
+                return sequence;
+            }
+
+            // Hand the switch to the flusher so it happens exactly between the buffered records
+            rotateSequence = sequence;
+            rotateOffset = pending.size();
+            pendingAvailable.signal();
+
+            while (rotatedSequence < sequence) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log failed: " + failure.getMessage());
+                }
+                flushed.await();
+            }
+
+            return sequence;
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for write-ahead log rotation");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Sequence number of the last record appended.
+     */
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments that only hold records up to a sequence number. Called once a snapshot
+     * covering those records is safely on disk.
+     *
+     * @param sequence Sequence number covered by the snapshot (as returned by rotate).
+     */
+    public void deleteSegmentsThrough(long sequence) {
+
+        long[] segments = listSegments(directory);
+
+        // A segment is covered if the one after it starts no later than just after the snapshot
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i + 1] <= sequence + 1) {
+                segmentFile(segments[i]).delete();
+            }
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed: " + failure.getMessage());
+        }
+        if (closed) {
+            throw new IOException("Write-ahead log is closed");
+        }
+        if (!replayed) {
+            throw new IllegalStateException("Write-ahead log must be replayed before use");
+        }
+    }
+
+    /**
+     * Body of the flusher thread: repeatedly takes everything appended since the last pass, writes it
+     * and forces it to disk as a single batch, switching segments in the middle if a rotation was
+     * requested.
+     */
+    private void flushLoop() {
+
+        while (true) {
+
+            RecordBuffer batch;
+            long batchSequence;
+            long batchRotateSequence;
+            int batchRotateOffset;
+
+            lock.lock();
+            try {
+
+                if (mode == DurabilityMode.ASYNC) {
+                    if (!closed && rotateSequence < 0) {
+                        pendingAvailable.await(asyncFlushIntervalMs, TimeUnit.MILLISECONDS);
+                    }
+                } else {
+                    while (!closed && pending.size() == 0 && rotateSequence < 0) {
+                        pendingAvailable.await();
+                    }
+                }
+
+                if (pending.size() == 0 && rotateSequence < 0) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+
+                // Swap buffers so writers can keep appending while this batch is written
+                batch = pending;
+                pending = spare;
+                spare = null;
+                batchSequence = appendedSequence;
+                batchRotateSequence = rotateSequence;
+                batchRotateOffset = rotateOffset;
+                rotateSequence = -1;
+
+            } catch (InterruptedException ie) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                if (batchRotateSequence >= 0) {
+                    batch.writeTo(segmentStream, 0, batchRotateOffset);
+                    segment.force(false);
+                    switchSegment(batchRotateSequence + 1);
+                    batch.writeTo(segmentStream, batchRotateOffset, batch.size());
+                } else {
+                    batch.writeTo(segmentStream);
+                }
+                segment.force(false);
+            } catch (IOException ex) {
+                error = ex;
+            }
+            batch.reset();
+
+            lock.lock();
+            try {
+                spare = batch;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSequence = batchSequence;
+                    if (batchRotateSequence >= 0) {
+                        rotatedSequence = batchRotateSequence;
+                    }
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            if (error != null) {
+                System.out.println("Write-ahead log failed: " + error.getMessage());
+                error.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the current segment and opens a new one starting at a sequence number.
+     */
+    private void switchSegment(long firstSequence) throws IOException {
+        segment.force(false);
+        segment.close();
+        openSegment(new RandomAccessFile(segmentFile(firstSequence), "rw").getChannel());
+    }
+
+    private void openSegment(FileChannel channel) {
+        segment = channel;
+        segmentStream = Channels.newOutputStream(channel);
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return First sequence numbers of the segments in a directory, in order.
+     */
+    private static long[] listSegments(File directory) {
+
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    /**
+     * Frames a record into a buffer.
+     */
+    private static void writeRecord(ByteArrayOutputStream out, long sequence, Operation operation, byte[] payload) throws IOException {
+
+        ByteBuffer body = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        body.putLong(sequence);
+        body.put((byte) operation.ordinal());
+        body.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(body.capacity());
+        data.write(body.array());
+        data.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes out anything still buffered, stops the flusher thread and closes the current segment.
+     *
+     * @throws IOException If the final write fails.
+     */
+    public void close() throws IOException {
+
+        lock.lock();
+        try {
+            closed = true;
+            pendingAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+    }
+
+    /**
+     * Record buffer that can write out part of its contents, used to split a batch across segments.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+
+        public void writeTo(OutputStream out, int from, int to) throws IOException {
+            out.write(buf, from, to - from);
+        }
+    }
+}
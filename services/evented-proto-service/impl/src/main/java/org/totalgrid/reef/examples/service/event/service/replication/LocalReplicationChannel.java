@@ -0,0 +1,47 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.replication;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replication transport between a primary and a standby in the same JVM, an unbounded queue handing
+ * the records over as they are.
+ */
+public class LocalReplicationChannel implements ReplicationSink, ReplicationSource {
+
+    private final BlockingQueue<ReplicationRecord> queue = new LinkedBlockingQueue<ReplicationRecord>();
+
+    @Override
+    public void send(ReplicationRecord record) {
+        queue.add(record);
+    }
+
+    @Override
+    public ReplicationRecord poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    @Override
+    public int pending() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.replication;
+
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.persistence.WriteAheadLog;
+
+/**
+ * One change in the stream a primary key-value service sends to its standby replicas. Changes are
+ * the same as the records of the write-ahead log, numbered in the order the primary applied them.
+ */
+public class ReplicationRecord {
+
+    private final long sequence;
+    private final long timestampMs;
+    private final WriteAheadLog.Operation operation;
+    private final KeyValue entry;
+
+    /**
+     * @param sequence Position of the change in the stream, starting at 1
+     * @param timestampMs Time the primary made the change, in milliseconds since the epoch
+     * @param operation Kind of change
+     * @param entry Entry written for a PUT, otherwise a KeyValue with just the key
+     */
+    public ReplicationRecord(long sequence, long timestampMs, WriteAheadLog.Operation operation, KeyValue entry) {
+        this.sequence = sequence;
+        this.timestampMs = timestampMs;
+        this.operation = operation;
+        this.entry = entry;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    public WriteAheadLog.Operation getOperation() {
+        return operation;
+    }
+
+    public KeyValue getEntry() {
+        return entry;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.replication;
+
+/**
+ * Primary end of a replication transport, carrying changes to one standby replica.
+ */
+public interface ReplicationSink {
+
+    /**
+     * Sends the next change. Called in sequence order while the primary holds its mutation lock, so
+     * implementations must only queue the record, never wait for the replica.
+     *
+     * @param record Change to send
+     */
+    void send(ReplicationRecord record);
+}
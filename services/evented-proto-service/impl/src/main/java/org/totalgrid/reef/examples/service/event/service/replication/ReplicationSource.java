@@ -0,0 +1,40 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.replication;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Standby end of a replication transport, delivering the primary's changes in sequence order.
+ */
+public interface ReplicationSource {
+
+    /**
+     * Takes the next change, waiting up to the timeout for one to arrive.
+     *
+     * @return The change, or null if none arrived in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    ReplicationRecord poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * @return Number of changes received but not yet taken
+     */
+    int pending();
+}
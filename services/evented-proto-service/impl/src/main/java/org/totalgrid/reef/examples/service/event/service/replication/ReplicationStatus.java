@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.replication;
+
+/**
+ * Point in time replication state of a key-value service, either a primary streaming its changes
+ * or a standby applying them.
+ */
+public class ReplicationStatus {
+
+    private final boolean standby;
+    private final int replicas;
+    private final long sequence;
+    private final long pendingRecords;
+    private final long lagMs;
+    private final String failure;
+
+    public ReplicationStatus(boolean standby, int replicas, long sequence, long pendingRecords, long lagMs, String failure) {
+        this.standby = standby;
+        this.replicas = replicas;
+        this.sequence = sequence;
+        this.pendingRecords = pendingRecords;
+        this.lagMs = lagMs;
+        this.failure = failure;
+    }
+
+    /**
+     * @return True if the service is a standby applying a primary's changes, false once promoted.
+     */
+    public boolean isStandby() {
+        return standby;
+    }
+
+    /**
+     * @return Number of standby replicas the service streams its changes to.
+     */
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return Sequence number of the latest change sent (primary) or applied (standby).
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Number of changes a standby has received but not applied yet.
+     */
+    public long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * @return Time between the primary making the latest applied change and a standby applying it.
+     */
+    public long getLagMs() {
+        return lagMs;
+    }
+
+    /**
+     * @return True if a standby failed to apply a change and stopped following its primary; its
+     *         sequence and lag then stay at the last change it applied.
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return Why a standby stopped following its primary, null if it hasn't.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return (standby ? "standby" : "primary") + " replicas: " + replicas + " sequence: " + sequence + " pending: " + pendingRecords + " lag: " + lagMs + "ms" + (failure == null ? "" : " failed: " + failure);
+    }
+}
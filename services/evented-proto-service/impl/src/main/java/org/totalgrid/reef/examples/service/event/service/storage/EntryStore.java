@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.storage;
+
+import com.google.protobuf.ByteString;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.Iterator;
+
+/**
+ * Holds the entries of the key-value service, each stored as the KeyValue message returned for it.
+ *
+ * Changes are made by one thread at a time (the service holds its mutation lock), reads can come
+ * from any thread at any time.
+ */
+public interface EntryStore {
+
+    /**
+     * @return The entry with a key, null if there is none.
+     */
+    KeyValue get(String key);
+
+    /**
+     * @return The serialized entry with a key, ready to add to a response, null if there is none.
+     */
+    ByteString getSerialized(String key);
+
+    /**
+     * Adds or replaces the entry with the key of an entry.
+     *
+     * @return The entry it replaced, null if the key is new.
+     */
+    KeyValue put(KeyValue entry);
+
+    /**
+     * @return The removed entry, null if there was none.
+     */
+    KeyValue remove(String key);
+
+    /**
+     * Removes every entry.
+     */
+    void clear();
+
+    /**
+     * @return Number of entries.
+     */
+    int size();
+
+    /**
+     * Entries with keys in a range, in key order.
+     *
+     * @param from Start of the range, null for the first key.
+     * @param fromInclusive Whether an entry with the start key itself is included.
+     * @param to End of the range (exclusive), null for no end.
+     * @param limit Number of entries the caller needs at most; stores may return more.
+     * @return Iterator over the entries.
+     */
+    Iterator<KeyValue> range(String from, boolean fromInclusive, String to, int limit);
+
+    /**
+     * Serialized entries with keys in a range, in key order, as for range.
+     *
+     * @param from Start of the range, null for the first key.
+     * @param fromInclusive Whether an entry with the start key itself is included.
+     * @param to End of the range (exclusive), null for no end.
+     * @param limit Number of entries the caller needs at most; stores may return more.
+     * @return Iterator over the entries.
+     */
+    Iterator<? extends SerializedEntry> rangeSerialized(String from, boolean fromInclusive, String to, int limit);
+
+    /**
+     * Every entry, in no particular order. Changes made while iterating may or may not be seen, and
+     * an entry may be returned more than once, but every entry that is there throughout the iteration
+     * is returned.
+     *
+     * @return Iterator over the entries.
+     */
+    Iterator<KeyValue> all();
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.storage;
+
+import com.google.protobuf.ByteString;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Entries kept as messages on the heap, in a map sorted by key so range queries only touch the
+ * entries they return. Reads are lock free.
+ *
+ * Each entry is serialized once when it is put and the bytes kept alongside the message, so GETs
+ * add them to responses as they are instead of serializing the entry for every read.
+ */
+public class HeapEntryStore implements EntryStore {
+
+    private final ConcurrentNavigableMap<String, Stored> map = new ConcurrentSkipListMap<String, Stored>();
+
+    @Override
+    public KeyValue get(String key) {
+        Stored stored = map.get(key);
+        return stored == null ? null : stored.entry;
+    }
+
+    @Override
+    public ByteString getSerialized(String key) {
+        Stored stored = map.get(key);
+        return stored == null ? null : stored.getSerialized();
+    }
+
+    @Override
+    public KeyValue put(KeyValue entry) {
+        return entry(map.put(entry.getKey(), new Stored(entry)));
+    }
+
+    @Override
+    public KeyValue remove(String key) {
+        return entry(map.remove(key));
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Iterator<KeyValue> range(String from, boolean fromInclusive, String to, int limit) {
+        return new Entries(rangeSerialized(from, fromInclusive, to, limit));
+    }
+
+    @Override
+    public Iterator<Stored> rangeSerialized(String from, boolean fromInclusive, String to, int limit) {
+
+        ConcurrentNavigableMap<String, Stored> entries;
+
+        if (from != null && to != null) {
+            if (from.compareTo(to) > 0) {
+                return Collections.<Stored>emptyList().iterator();
+            }
+            entries = map.subMap(from, fromInclusive, to, false);
+        } else if (from != null) {
+            entries = map.tailMap(from, fromInclusive);
+        } else if (to != null) {
+            entries = map.headMap(to, false);
+        } else {
+            entries = map;
+        }
+
+        // The view is walked lazily, so only the entries actually returned are visited
+        return entries.values().iterator();
+    }
+
+    @Override
+    public Iterator<KeyValue> all() {
+        return new Entries(map.values().iterator());
+    }
+
+    private static KeyValue entry(Stored stored) {
+        return stored == null ? null : stored.entry;
+    }
+
+    /**
+     * An entry and its serialized bytes.
+     */
+    private static class Stored extends SerializedEntry {
+
+        private final KeyValue entry;
+
+        Stored(KeyValue entry) {
+            super(entry.getKey(), entry.toByteString());
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Messages of the stored entries.
+     */
+    private static class Entries implements Iterator<KeyValue> {
+
+        private final Iterator<Stored> stored;
+
+        Entries(Iterator<Stored> stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return stored.hasNext();
+        }
+
+        @Override
+        public KeyValue next() {
+            return stored.next().entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
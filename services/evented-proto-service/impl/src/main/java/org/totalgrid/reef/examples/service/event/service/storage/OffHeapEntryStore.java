@@ -0,0 +1,802 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.storage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Entries kept serialized in direct buffer slabs, outside the heap, so millions of entries cost the
+ * garbage collector nothing. The per entry heap cost is a slot of an open addressing hash index (the
+ * entry's address, slab and offset, and the hash of its key) and its address again in a sorted index,
+ * so range, prefix and paged GETs only visit the entries they return. Both are primitive arrays, so
+ * the heap holds a few objects per thousand entries, not per entry.
+ *
+ * The sorted index is a list of chunks of up to CHUNK_KEYS addresses, ordered by the UTF-8 bytes of
+ * the keys (which is String order, apart from characters outside the Basic Multilingual Plane). Keys
+ * are compared in place in the slabs, so finding a key's place takes a binary search over the chunks
+ * and one within a chunk, and inserting or removing one only shifts the rest of its chunk.
+ *
+ * Each record is [length][KeyValue bytes]. Since the key is field 1, it is always serialized first,
+ * so a record's key can be compared in place without parsing the record. A GET returns the stored
+ * bytes as they are.
+ *
+ * Records are appended to the active slab. Replaced and removed records become garbage, and once more
+ * than half of a full slab is garbage its live records are copied to the active slab and the slab is
+ * reused.
+ *
+ * Changes take a write lock and reads a read lock.
+ */
+public class OffHeapEntryStore implements EntryStore {
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Index slots copied per read lock when iterating every entry
+    private static final int CHUNK_SLOTS = 4096;
+
+    // Tag of field 1 (key) as a length delimited field
+    private static final int KEY_TAG = (1 << 3) | 2;
+
+    // Most addresses in one chunk of the sorted index; full chunks are split in two
+    private static final int CHUNK_KEYS = 1024;
+
+    private final int slabBytes;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+    private final LinkedList<Integer> freeSlabs = new LinkedList<Integer>();
+    private Slab active = null;
+
+    // Open addressing index with linear probing: address of each entry, EMPTY, DELETED or
+    // slab + 1 << 32 | offset, and the hash of its key
+    private long[] addresses;
+    private int[] hashes;
+    private int size;
+    private int deleted;
+
+    // Address of every entry, in key order
+    private final List<SortedChunk> sorted = new ArrayList<SortedChunk>();
+
+    // Incremented whenever entries move to other index slots, so iterations know to start over
+    private int rehashes = 0;
+
+    /**
+     * @param slabBytes Size of each slab; larger entries get a slab of their own.
+     */
+    public OffHeapEntryStore(int slabBytes) {
+        this.slabBytes = slabBytes;
+        resetIndex(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public KeyValue get(String key) {
+        byte[] keyBytes = utf8(key);
+
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            return slot < 0 ? null : parse(read(addresses[slot]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteString getSerialized(String key) {
+        byte[] keyBytes = utf8(key);
+
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            return slot < 0 ? null : ByteString.copyFrom(record(addresses[slot]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public KeyValue put(KeyValue entry) {
+        byte[] bytes = entry.toByteArray();
+        byte[] keyBytes = utf8(entry.getKey());
+        int hash = hash(keyBytes);
+
+        lock.writeLock().lock();
+        try {
+            long address = append(bytes);
+
+            int slot = find(keyBytes, hash);
+            if (slot < 0) {
+                insert(hash, address);
+                sortedInsert(keyBytes, address);
+                return null;
+            }
+
+            // Point the indexes at the new record before the old one is released, so compacting the
+            // old record's slab doesn't see the old record as live
+            long previous = addresses[slot];
+            addresses[slot] = address;
+            sortedReplace(keyBytes, address);
+
+            KeyValue replaced = parse(read(previous));
+            release(previous);
+            return replaced;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public KeyValue remove(String key) {
+        byte[] keyBytes = utf8(key);
+
+        lock.writeLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                return null;
+            }
+
+            long previous = addresses[slot];
+            addresses[slot] = DELETED;
+            size--;
+            deleted++;
+            sortedRemove(keyBytes);
+
+            KeyValue removed = parse(read(previous));
+            release(previous);
+            return removed;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            resetIndex(INITIAL_CAPACITY);
+            sorted.clear();
+            freeSlabs.clear();
+            for (int i = 0; i < slabs.size(); i++) {
+                slabs.get(i).reset();
+                freeSlabs.add(i);
+            }
+            active = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<KeyValue> range(String from, boolean fromInclusive, String to, int limit) {
+
+        List<KeyValue> entries = new ArrayList<KeyValue>();
+
+        lock.readLock().lock();
+        try {
+            for (long address : rangeAddresses(from, fromInclusive, to, limit)) {
+                entries.add(parse(read(address)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return entries.iterator();
+    }
+
+    @Override
+    public Iterator<SerializedEntry> rangeSerialized(String from, boolean fromInclusive, String to, int limit) {
+
+        List<SerializedEntry> entries = new ArrayList<SerializedEntry>();
+
+        lock.readLock().lock();
+        try {
+            // The records are already serialized, so they are copied out without parsing them
+            for (long address : rangeAddresses(from, fromInclusive, to, limit)) {
+                entries.add(new SerializedEntry(string(readKey(address)), ByteString.copyFrom(record(address))));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return entries.iterator();
+    }
+
+    /**
+     * Addresses of the first entries in a range, walked from the sorted index. Must be called holding
+     * the read lock.
+     *
+     * @return Up to limit addresses, in key order.
+     */
+    private List<Long> rangeAddresses(String from, boolean fromInclusive, String to, int limit) {
+
+        List<Long> matches = new ArrayList<Long>();
+        byte[] toBytes = to == null ? null : utf8(to);
+
+        int chunk = 0;
+        int position = 0;
+
+        if (from != null) {
+            byte[] fromBytes = utf8(from);
+            long found = locate(fromBytes);
+            chunk = (int) (found >>> 32);
+            position = (int) found;
+
+            // Skip the key itself if the range starts after it
+            if (!fromInclusive && chunk < sorted.size() && position < sorted.get(chunk).size && compareKey(sorted.get(chunk).addresses[position], fromBytes) == 0) {
+                position++;
+            }
+        }
+
+        for (; chunk < sorted.size() && matches.size() < limit; chunk++, position = 0) {
+            SortedChunk c = sorted.get(chunk);
+            for (; position < c.size && matches.size() < limit; position++) {
+                long address = c.addresses[position];
+                if (toBytes != null && compareKey(address, toBytes) >= 0) {
+                    return matches;
+                }
+                matches.add(address);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Finds where a key is, or would go, in the sorted index: the first address whose key isn't
+     * before it.
+     *
+     * @return Chunk << 32 | position in the chunk; position may be the chunk's size, and chunk the
+     *         number of chunks if the index is empty.
+     */
+    private long locate(byte[] keyBytes) {
+
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+
+        // First chunk whose last key isn't before the key, or the last chunk if every key is
+        int low = 0;
+        int high = sorted.size() - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            SortedChunk c = sorted.get(mid);
+            if (compareKey(c.addresses[c.size - 1], keyBytes) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        SortedChunk c = sorted.get(low);
+        int first = 0;
+        int last = c.size;
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (compareKey(c.addresses[mid], keyBytes) < 0) {
+                first = mid + 1;
+            } else {
+                last = mid;
+            }
+        }
+
+        return ((long) low << 32) | first;
+    }
+
+    /**
+     * Adds a new key's address to the sorted index, splitting its chunk if it is full.
+     */
+    private void sortedInsert(byte[] keyBytes, long address) {
+
+        if (sorted.isEmpty()) {
+            sorted.add(new SortedChunk());
+        }
+
+        long found = locate(keyBytes);
+        int chunk = (int) (found >>> 32);
+        int position = (int) found;
+        SortedChunk c = sorted.get(chunk);
+
+        if (c.size == CHUNK_KEYS) {
+            SortedChunk upper = new SortedChunk();
+            int half = CHUNK_KEYS / 2;
+            System.arraycopy(c.addresses, half, upper.addresses, 0, CHUNK_KEYS - half);
+            upper.size = CHUNK_KEYS - half;
+            c.size = half;
+            sorted.add(chunk + 1, upper);
+
+            if (position > half) {
+                c = upper;
+                position -= half;
+            }
+        }
+
+        System.arraycopy(c.addresses, position, c.addresses, position + 1, c.size - position);
+        c.addresses[position] = address;
+        c.size++;
+    }
+
+    /**
+     * Points the sorted index at a key's new record. The old record must still be readable.
+     */
+    private void sortedReplace(byte[] keyBytes, long address) {
+        long found = locate(keyBytes);
+        sorted.get((int) (found >>> 32)).addresses[(int) found] = address;
+    }
+
+    /**
+     * Removes a key's address from the sorted index, dropping its chunk if it empties. The key's
+     * record must still be readable.
+     */
+    private void sortedRemove(byte[] keyBytes) {
+
+        long found = locate(keyBytes);
+        int chunk = (int) (found >>> 32);
+        int position = (int) found;
+        SortedChunk c = sorted.get(chunk);
+
+        System.arraycopy(c.addresses, position + 1, c.addresses, position, c.size - position - 1);
+        c.size--;
+
+        if (c.size == 0) {
+            sorted.remove(chunk);
+        }
+    }
+
+    /**
+     * @return Negative, zero or positive as the key of the record at an address is before, equal to
+     *         or after a key, comparing their UTF-8 bytes as unsigned values.
+     */
+    private int compareKey(long address, byte[] keyBytes) {
+        ByteBuffer buffer = slabs.get(slabOf(address)).buffer;
+        int offset = offsetOf(address);
+        int length = keyLength(buffer, offset);
+        int start = keyStart(buffer, offset);
+
+        int common = Math.min(length, keyBytes.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(start + i) & 0xff) - (keyBytes[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - keyBytes.length;
+    }
+
+    /**
+     * @return Number of slabs allocated, free or not.
+     */
+    int getSlabCount() {
+        lock.readLock().lock();
+        try {
+            return slabs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<KeyValue> all() {
+        return new ChunkIterator();
+    }
+
+    /**
+     * Walks the index a chunk of slots at a time, so writers are only held up for one chunk. If the
+     * index is rehashed in between, entries may have moved to slots already visited, so the walk
+     * starts over (returning some entries again).
+     */
+    private class ChunkIterator implements Iterator<KeyValue> {
+
+        private int nextSlot = 0;
+        private int seenRehashes;
+        private final LinkedList<KeyValue> chunk = new LinkedList<KeyValue>();
+
+        ChunkIterator() {
+            lock.readLock().lock();
+            try {
+                seenRehashes = rehashes;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            while (chunk.isEmpty()) {
+
+                lock.readLock().lock();
+                try {
+                    if (rehashes != seenRehashes) {
+                        seenRehashes = rehashes;
+                        nextSlot = 0;
+                    }
+
+                    if (nextSlot >= addresses.length) {
+                        return false;
+                    }
+
+                    int end = Math.min(nextSlot + CHUNK_SLOTS, addresses.length);
+                    for (; nextSlot < end; nextSlot++) {
+                        long address = addresses[nextSlot];
+                        if (address != EMPTY && address != DELETED) {
+                            chunk.add(parse(read(address)));
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public KeyValue next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return Index slot of a key, -1 if it isn't there.
+     */
+    private int find(byte[] keyBytes, int hash) {
+
+        int mask = addresses.length - 1;
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = addresses[slot];
+            if (address == EMPTY) {
+                return -1;
+            }
+            if (address != DELETED && hashes[slot] == hash && keyEquals(address, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Adds a new key to the index, rehashing first if the index is getting full.
+     */
+    private void insert(int hash, long address) {
+
+        if ((size + deleted + 1) * 4L > addresses.length * 3L) {
+            rehash();
+        }
+
+        int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while (addresses[slot] != EMPTY && addresses[slot] != DELETED) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (addresses[slot] == DELETED) {
+            deleted--;
+        }
+
+        addresses[slot] = address;
+        hashes[slot] = hash;
+        size++;
+    }
+
+    /**
+     * Rebuilds the index without deleted slots, at a size that leaves it at most half full.
+     */
+    private void rehash() {
+
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (size + 1) * 2L) {
+            capacity *= 2;
+        }
+
+        resetIndex(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != EMPTY && oldAddresses[i] != DELETED) {
+                int slot = oldHashes[i] & mask;
+                while (addresses[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                addresses[slot] = oldAddresses[i];
+                hashes[slot] = oldHashes[i];
+                size++;
+            }
+        }
+    }
+
+    private void resetIndex(int capacity) {
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        size = 0;
+        deleted = 0;
+        rehashes++;
+    }
+
+    /**
+     * Appends a record to the active slab, moving to a new slab if it doesn't fit.
+     *
+     * @return Address of the record.
+     */
+    private long append(byte[] bytes) {
+
+        int length = 4 + bytes.length;
+
+        if (active == null || active.buffer.capacity() - active.end < length) {
+            active = takeSlab(length);
+        }
+
+        int offset = active.end;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        active.end += length;
+
+        return ((long) (active.id + 1) << 32) | offset;
+    }
+
+    /**
+     * @return A free slab that can hold a record, allocating one if there is none.
+     */
+    private Slab takeSlab(int length) {
+
+        for (Iterator<Integer> free = freeSlabs.iterator(); free.hasNext(); ) {
+            Slab slab = slabs.get(free.next());
+            if (slab.buffer.capacity() >= length) {
+                free.remove();
+                return slab;
+            }
+        }
+
+        Slab slab = new Slab(slabs.size(), ByteBuffer.allocateDirect(Math.max(slabBytes, length)));
+        slabs.add(slab);
+        return slab;
+    }
+
+    /**
+     * Marks a record as garbage, compacting its slab if it is now mostly garbage.
+     */
+    private void release(long address) {
+
+        Slab slab = slabs.get(slabOf(address));
+        slab.garbage += 4 + slab.buffer.getInt(offsetOf(address));
+
+        if (slab != active && slab.garbage * 2 > slab.end) {
+            compact(slab);
+        }
+    }
+
+    /**
+     * Copies the live records of a slab to the active slab and frees it.
+     */
+    private void compact(Slab slab) {
+
+        int offset = 0;
+        while (offset < slab.end) {
+
+            long address = ((long) (slab.id + 1) << 32) | offset;
+            int length = slab.buffer.getInt(offset);
+
+            // A record is live if the index still points at it
+            byte[] keyBytes = readKey(address);
+            int slot = find(keyBytes, hash(keyBytes));
+            if (slot >= 0 && addresses[slot] == address) {
+                long moved = append(read(address));
+                addresses[slot] = moved;
+                sortedReplace(keyBytes, moved);
+            }
+
+            offset += 4 + length;
+        }
+
+        slab.reset();
+        freeSlabs.add(slab.id);
+    }
+
+    /**
+     * @return The serialized entry at an address.
+     */
+    private byte[] read(long address) {
+        ByteBuffer record = record(address);
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return View of the slab holding just the serialized entry at an address, so it can be copied
+     *         straight out of the slab.
+     */
+    private ByteBuffer record(long address) {
+        ByteBuffer buffer = slabs.get(slabOf(address)).buffer.duplicate();
+        int offset = offsetOf(address);
+        buffer.limit(offset + 4 + buffer.getInt(offset));
+        buffer.position(offset + 4);
+        return buffer;
+    }
+
+    /**
+     * @return The UTF-8 key of the entry at an address, read from the start of the serialized entry.
+     */
+    private byte[] readKey(long address) {
+        ByteBuffer buffer = slabs.get(slabOf(address)).buffer.duplicate();
+        int start = keyStart(buffer, offsetOf(address));
+        byte[] keyBytes = new byte[keyLength(buffer, offsetOf(address))];
+        buffer.position(start);
+        buffer.get(keyBytes);
+        return keyBytes;
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        ByteBuffer buffer = slabs.get(slabOf(address)).buffer;
+        int offset = offsetOf(address);
+
+        if (keyLength(buffer, offset) != keyBytes.length) {
+            return false;
+        }
+
+        int start = keyStart(buffer, offset);
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buffer.get(start + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Length of the key of the record at an offset (the varint after the key's tag).
+     */
+    private static int keyLength(ByteBuffer buffer, int offset) {
+        int position = offset + 4;
+        if (buffer.get(position++) != KEY_TAG) {
+            throw new IllegalStateException("Off-heap record doesn't start with its key");
+        }
+
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position++);
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * @return Offset of the key bytes of the record at an offset.
+     */
+    private static int keyStart(ByteBuffer buffer, int offset) {
+        int position = offset + 5;
+        while (buffer.get(position) < 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static KeyValue parse(byte[] bytes) {
+        try {
+            return KeyValue.parseFrom(bytes);
+        } catch (InvalidProtocolBufferException ex) {
+            throw new IllegalStateException("Corrupt off-heap record", ex);
+        }
+    }
+
+    // Package private so tests can pick keys whose index slots collide
+    static int hash(byte[] bytes) {
+        // FNV-1a, then spread so the low bits used by the index depend on every byte
+        int hash = 0x811c9dc5;
+        for (byte b : bytes) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static String string(byte[] keyBytes) {
+        try {
+            return new String(keyBytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] utf8(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Addresses of a run of consecutive keys of the sorted index, in key order.
+     */
+    private static class SortedChunk {
+
+        private final long[] addresses = new long[CHUNK_KEYS];
+        private int size = 0;
+    }
+
+    /**
+     * A direct buffer holding records from offset 0 up to end.
+     */
+    private static class Slab {
+
+        private final int id;
+        private final ByteBuffer buffer;
+        private int end = 0;
+        private int garbage = 0;
+
+        Slab(int id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        void reset() {
+            end = 0;
+            garbage = 0;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.storage;
+
+/**
+ * Where the key-value service keeps its entries.
+ */
+public enum StorageMode {
+
+    /**
+     * Messages on the heap in a sorted map. Range, prefix and paged GETs only visit the entries
+     * they return.
+     */
+    HEAP,
+
+    /**
+     * Serialized entries in direct buffer slabs outside the heap, found through a compact hash index
+     * on the heap, with a sorted index of their addresses for range, prefix and paged GETs. Keeps the
+     * entries' keys, values and messages out of the garbage collector's way; the indexes are primitive
+     * arrays. Ranges are in UTF-8 byte order, which only differs from HEAP's String order for
+     * characters outside the Basic Multilingual Plane.
+     */
+    OFF_HEAP;
+
+    /**
+     * @param slabBytes Size of each off-heap slab.
+     * @return A new, empty store of this type.
+     */
+    public EntryStore create(int slabBytes) {
+        if (this == HEAP) {
+            return new HeapEntryStore();
+        }
+        return new OffHeapEntryStore(slabBytes);
+    }
+}
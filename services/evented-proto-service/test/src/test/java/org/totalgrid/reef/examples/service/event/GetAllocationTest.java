@@ -0,0 +1,135 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event;
+
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+import org.totalgrid.reef.examples.service.event.service.storage.StorageMode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Bounds the memory a key-value service instance allocates per GET, calling it directly with no
+ * broker in between. GETs copy the payload each entry was serialized to when written, so reads
+ * allocate little more than the response itself; rebuilding a message per entry would take several
+ * times the bounds. Only runs on JVMs that count the bytes allocated by each thread (HotSpot).
+ */
+public class GetAllocationTest {
+
+    private static final int ENTRIES = 2000;
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    @Test
+    public void testHeapGetAllocation() throws Exception {
+
+        long[] bytesPerEntry = measure(StorageMode.HEAP);
+
+        // About 800 bytes for a single GET (request parsing and response), 15 and 35 per entry of a scan or page
+        assertTrue("single key GET allocated " + bytesPerEntry[0] + " bytes", bytesPerEntry[0] < 2048);
+        assertTrue("\"*\" GET allocated " + bytesPerEntry[1] + " bytes per entry", bytesPerEntry[1] < 64);
+        assertTrue("page GET allocated " + bytesPerEntry[2] + " bytes per entry", bytesPerEntry[2] < 128);
+    }
+
+    @Test
+    public void testOffHeapGetAllocation() throws Exception {
+
+        long[] bytesPerEntry = measure(StorageMode.OFF_HEAP);
+
+        // Entries are copied out of the slabs, about 260 bytes each
+        assertTrue("single key GET allocated " + bytesPerEntry[0] + " bytes", bytesPerEntry[0] < 2048);
+        assertTrue("\"*\" GET allocated " + bytesPerEntry[1] + " bytes per entry", bytesPerEntry[1] < 512);
+        assertTrue("page GET allocated " + bytesPerEntry[2] + " bytes per entry", bytesPerEntry[2] < 512);
+    }
+
+    /**
+     * @return Bytes allocated per single key GET, and per entry of a "*" GET and a 100 entry page GET.
+     */
+    private static long[] measure(StorageMode mode) throws Exception {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled());
+
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.storage.mode", mode.name());
+
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(new NullPublisher(), new KeyValueServiceSettings(props));
+
+        for (int i = 0; i < ENTRIES; i++) {
+            call(service, KeyValue.newBuilder().setKey(key(i)).setValue("value of entry " + i).build(), Envelope.Verb.PUT);
+        }
+
+        KeyValue[] singles = new KeyValue[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            singles[i] = KeyValue.newBuilder().setKey(key(i)).build();
+        }
+
+        KeyValue all = KeyValue.newBuilder().setKey("*").build();
+        KeyValue page = KeyValue.newBuilder().setKey("*").setPageSize(100).setPageToken(key(ENTRIES / 2)).build();
+        int scans = 50;
+        int pages = 500;
+
+        long thread = Thread.currentThread().getId();
+        long[] bytesPerEntry = new long[3];
+
+        // Run every request type a few times first so the measurement doesn't count class loading and compilation
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+
+            long bytes = allocation.getThreadAllocatedBytes(thread);
+            for (KeyValue single : singles) {
+                call(service, single, Envelope.Verb.GET);
+            }
+            bytesPerEntry[0] = (allocation.getThreadAllocatedBytes(thread) - bytes) / ENTRIES;
+
+            bytes = allocation.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < scans; i++) {
+                call(service, all, Envelope.Verb.GET);
+            }
+            bytesPerEntry[1] = (allocation.getThreadAllocatedBytes(thread) - bytes) / scans / ENTRIES;
+
+            bytes = allocation.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < pages; i++) {
+                call(service, page, Envelope.Verb.GET);
+            }
+            bytesPerEntry[2] = (allocation.getThreadAllocatedBytes(thread) - bytes) / pages / 100;
+        }
+
+        service.close();
+        return bytesPerEntry;
+    }
+
+    private static String key(int i) {
+        return "site" + (i % 100) + ".point" + i;
+    }
+
+    private static void call(KeyValueServiceImplementor service, KeyValue request, Envelope.Verb verb) {
+        Envelope.ServiceResponse response = ServiceCalls.call(service, verb, request);
+        assertTrue(response.getErrorMessage(), response.getStatus() == Envelope.Status.OK || response.getStatus() == Envelope.Status.CREATED);
+    }
+}
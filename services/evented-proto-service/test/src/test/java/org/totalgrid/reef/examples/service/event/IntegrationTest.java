@@ -18,9 +18,11 @@
  */
 package org.totalgrid.reef.examples.service.event;
 
+import com.google.protobuf.ByteString;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.totalgrid.reef.client.AddressableDestination;
 import org.totalgrid.reef.client.AnyNodeDestination;
 import org.totalgrid.reef.client.Client;
 import org.totalgrid.reef.client.Connection;
@@ -28,24 +30,41 @@ import org.totalgrid.reef.client.ConnectionFactory;
 import org.totalgrid.reef.client.Subscription;
 import org.totalgrid.reef.client.SubscriptionEvent;
 import org.totalgrid.reef.client.SubscriptionEventAcceptor;
+import org.totalgrid.reef.client.SubscriptionResult;
+import org.totalgrid.reef.client.exception.BadRequestException;
 import org.totalgrid.reef.client.exception.ReefServiceException;
 import org.totalgrid.reef.client.factory.ReefConnectionFactory;
-import org.totalgrid.reef.client.registration.Service;
+import org.totalgrid.reef.client.proto.Envelope;
 import org.totalgrid.reef.client.registration.ServiceRegistration;
 import org.totalgrid.reef.client.service.list.ReefServices;
 import org.totalgrid.reef.client.settings.AmqpSettings;
 import org.totalgrid.reef.client.settings.util.PropertyReader;
+import org.totalgrid.reef.examples.service.event.client.KeyValueChanges;
 import org.totalgrid.reef.examples.service.event.client.KeyValueDescriptor;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePage;
 import org.totalgrid.reef.examples.service.event.client.KeyValueService;
 import org.totalgrid.reef.examples.service.event.client.KeyValueServiceList;
+import org.totalgrid.reef.examples.service.event.client.KeyValueShardRing;
+import org.totalgrid.reef.examples.service.event.client.impl.KeyValueServiceImpl;
 import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.WriteResult;
 import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+import org.totalgrid.reef.examples.service.event.service.KeyValueStatistics;
+import org.totalgrid.reef.examples.service.event.service.replication.LocalReplicationChannel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -54,6 +73,8 @@ public class IntegrationTest {
     static ConnectionFactory connectionFactory = null;
     static Connection connection = null;
     static KeyValueService service = null;
+    static KeyValueServiceImplementor serviceImplementation = null;
+    static Client client = null;
 
     @BeforeClass
     public static void setupConnection() throws Exception{
@@ -75,13 +96,13 @@ public class IntegrationTest {
         // Obtain the service registration interface to perform service provider duties
         ServiceRegistration registration = connection.getServiceRegistration();
 
-        Service serviceImplementation = new KeyValueServiceImplementor(registration.getEventPublisher());
+        serviceImplementation = new KeyValueServiceImplementor(registration.getEventPublisher());
 
         // Bind sample service, routing sample messages to the service implementation
         registration.bindService(serviceImplementation, new KeyValueDescriptor(), new AnyNodeDestination(), true);
 
         // create a client and pretend we logged in by setting a fake auth token
-        Client client = connection.createClient("FAKE_AUTH_TOKEN");
+        client = connection.createClient("FAKE_AUTH_TOKEN");
 
         // get a sample service binding implementation
         service = client.getService(KeyValueService.class);
@@ -156,6 +177,356 @@ public class IntegrationTest {
         }catch(ReefServiceException rse){
             assertNotSame(-1, rse.getMessage().indexOf("UnknownKey"));
         }
+
+        // More keys than fit in one request are fetched in several, and still come back in order
+        Map<String, String> many = new LinkedHashMap<String, String>();
+        for(int i = 0; i < KeyValueServiceImpl.MULTI_GET_KEYS * 2 + 500; i++){
+            many.put("Many" + i, "Val" + i);
+        }
+        service.putValues(many).await();
+
+        List<String> manyKeys = new ArrayList<String>(many.keySet());
+        Collections.reverse(manyKeys);
+        List<KeyValue> manyValues = service.getValues(manyKeys).await();
+        assertEquals(manyKeys.size(), manyValues.size());
+        for(int i = 0; i < manyKeys.size(); i++){
+            assertEquals(manyKeys.get(i), manyValues.get(i).getKey());
+        }
+    }
+
+    @Test
+    public void testPrefixAndRangeGets() throws Exception{
+
+        service.deleteAllValues().await();
+
+        service.putValue("feeder12/a", "Val1").await();
+        service.putValue("feeder12/b", "Val2").await();
+        service.putValue("feeder13/a", "Val3").await();
+
+        List<KeyValue> feeder12 = service.getValuesWithPrefix("feeder12/").await();
+        assertEquals(2, feeder12.size());
+        assertEquals("feeder12/a", feeder12.get(0).getKey());
+        assertEquals("feeder12/b", feeder12.get(1).getKey());
+
+        assertEquals(0, service.getValuesWithPrefix("feeder14/").await().size());
+
+        List<KeyValue> range = service.getValuesInRange("feeder12/b", "feeder13/b").await();
+        assertEquals(2, range.size());
+        assertEquals("feeder12/b", range.get(0).getKey());
+        assertEquals("feeder13/a", range.get(1).getKey());
+
+        assertEquals(0, service.getValuesInRange("feeder13/b", "feeder13/b").await().size());
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testPagedGets() throws Exception{
+
+        service.deleteAllValues().await();
+
+        for(int i = 0; i < 10; i++){
+            service.putValue("Key" + i, "Val" + i).await();
+        }
+
+        KeyValuePage first = service.getValuesPage(null, 4).await();
+        assertEquals(4, first.getValues().size());
+        assertEquals("Key0", first.getValues().get(0).getKey());
+        assertTrue(first.hasNextPage());
+
+        KeyValuePage second = service.getValuesPage(first.getNextPageToken(), 4).await();
+        assertEquals("Key4", second.getValues().get(0).getKey());
+
+        KeyValuePage third = service.getValuesPage(second.getNextPageToken(), 4).await();
+        assertEquals(2, third.getValues().size());
+        assertFalse(third.hasNextPage());
+
+        List<KeyValue> iterated = new ArrayList<KeyValue>();
+        Iterator<KeyValue> iterator = service.iterateAllValues(3);
+        while(iterator.hasNext()){
+            iterated.add(iterator.next());
+        }
+        assertEquals(service.getAllValues().await(), iterated);
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testBatchPut() throws Exception{
+
+        service.deleteAllValues().await();
+
+        service.putValue("Key1", "Val1").await();
+
+        Map<String, String> batch = new LinkedHashMap<String, String>();
+        batch.put("Key1", "NewVal1");
+        batch.put("Key2", "Val2");
+
+        List<KeyValue> results = service.putValues(batch).await();
+        assertEquals(2, results.size());
+        assertEquals(WriteResult.UPDATED, results.get(0).getWriteResult());
+        assertEquals(WriteResult.CREATED, results.get(1).getWriteResult());
+
+        assertEquals("NewVal1", service.getValue("Key1").await().getValue());
+        assertEquals("Val2", service.getValue("Key2").await().getValue());
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testBinaryValues() throws Exception{
+
+        service.deleteAllValues().await();
+
+        byte[] raw = new byte[256];
+        for(int i = 0; i < raw.length; i++){
+            raw[i] = (byte) i;
+        }
+        ByteString blob = ByteString.copyFrom(raw);
+
+        KeyValue put = service.putBinaryValue("Blob", blob).await();
+        assertEquals(blob, put.getBinaryValue());
+        assertFalse(put.hasValue());
+
+        assertEquals(blob, service.getBinaryValue("Blob").await());
+
+        // String values read as bytes come back UTF-8 encoded
+        service.putValue("Text", "Val1").await();
+        assertEquals(ByteString.copyFromUtf8("Val1"), service.getBinaryValue("Text").await());
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testCompareAndSet() throws Exception{
+
+        service.deleteAllValues().await();
+
+        KeyValue created = service.putValueIfRevision("Key1", "Val1", 0).await();
+        assertTrue(created.getRevision() > 0);
+
+        KeyValue updated = service.putValueIfRevision("Key1", "Val2", created.getRevision()).await();
+        assertTrue(updated.getRevision() > created.getRevision());
+
+        try {
+            // Stale revision, must not overwrite
+            service.putValueIfRevision("Key1", "Val3", created.getRevision()).await();
+            fail("Expected a revision mismatch");
+        } catch (BadRequestException ex) {
+        }
+        assertEquals("Val2", service.getValue("Key1").await().getValue());
+
+        try {
+            service.deleteValueIfRevision("Key1", created.getRevision()).await();
+            fail("Expected a revision mismatch");
+        } catch (BadRequestException ex) {
+        }
+
+        service.deleteValueIfRevision("Key1", updated.getRevision()).await();
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testChangesSince() throws Exception{
+
+        service.deleteAllValues().await();
+
+        service.putValue("Key1", "Val1").await();
+        service.putValue("Key2", "Val2").await();
+
+        // Without a token every pair comes back
+        KeyValueChanges first = service.getChangesSince(null).await();
+        assertTrue(first.isSnapshot());
+        Map<String, KeyValue> copy = new HashMap<String, KeyValue>();
+        first.applyTo(copy);
+        assertEquals(2, copy.size());
+
+        service.putValue("Key1", "Val3").await();
+        service.deleteValue("Key2").await();
+        service.putValue("Key3", "Val4").await();
+
+        // After that only the changes, which bring the copy up to date
+        KeyValueChanges next = service.getChangesSince(first.getToken()).await();
+        assertFalse(next.isSnapshot());
+        assertEquals(3, next.getChanges().size());
+        next.applyTo(copy);
+        assertEquals(2, copy.size());
+        assertEquals("Val3", copy.get("Key1").getValue());
+        assertEquals("Val4", copy.get("Key3").getValue());
+
+        assertTrue(service.getChangesSince(next.getToken()).await().getChanges().isEmpty());
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testTtlExpiry() throws Exception{
+
+        service.deleteAllValues().await();
+
+        KeyValue session = service.putValueWithTtl("Session", "Val", 200).await();
+        assertTrue(session.hasExpiresAt());
+        service.putValue("Permanent", "Val").await();
+
+        // Expiry happens on the service's next wheel tick after the TTL
+        long deadline = System.currentTimeMillis() + 5000;
+        while(service.getAllValues().await().size() > 1 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50);
+        }
+
+        List<KeyValue> remaining = service.getAllValues().await();
+        assertEquals(1, remaining.size());
+        assertEquals("Permanent", remaining.get(0).getKey());
+
+        service.deleteAllValues().await();
+    }
+
+    @Test
+    public void testStatistics() throws Exception{
+
+        service.deleteAllValues().await();
+
+        service.putValue("Key1", "Val1").await();
+
+        KeyValueStatistics before = serviceImplementation.getStatistics();
+        assertEquals(1, before.getEntries());
+        assertTrue(before.getMemoryBytes() > 0);
+
+        service.getValue("Key1").await();
+        try {
+            service.getValue("UnknownKey").await();
+            fail("Expected unknown key");
+        } catch (BadRequestException ex) {
+        }
+
+        KeyValueStatistics after = serviceImplementation.getStatistics();
+        assertEquals(before.getHits() + 1, after.getHits());
+        assertEquals(before.getMisses() + 1, after.getMisses());
+        assertEquals(0, after.getEvictions());
+
+        service.deleteAllValues().await();
+        assertEquals(0, serviceImplementation.getStatistics().getMemoryBytes());
+    }
+
+    @Test
+    public void testShardedDeployment() throws Exception{
+
+        int shardCount = 3;
+        ServiceRegistration registration = connection.getServiceRegistration();
+
+        // Run every shard as a separate service instance in this process, each bound to its own destination
+        List<KeyValueServiceImplementor> shards = new ArrayList<KeyValueServiceImplementor>();
+        for(int i = 0; i < shardCount; i++){
+            Properties props = new Properties();
+            props.setProperty("org.totalgrid.reef.examples.keyvalue.shard.count", Integer.toString(shardCount));
+            props.setProperty("org.totalgrid.reef.examples.keyvalue.shard.index", Integer.toString(i));
+
+            KeyValueServiceImplementor shard = new KeyValueServiceImplementor(registration.getEventPublisher(), new KeyValueServiceSettings(props));
+            registration.bindService(shard, new KeyValueDescriptor(), new AddressableDestination(KeyValueShardRing.destination(i)), true);
+            shards.add(shard);
+        }
+
+        KeyValueService sharded = new KeyValueServiceImpl(client, new KeyValueShardRing(shardCount));
+
+        for(int i = 0; i < 30; i++){
+            sharded.putValue("Key" + (char)('a' + i % 26) + i, "Val" + i).await();
+        }
+
+        // Every shard got some of the keys and none of them got a key twice
+        long total = 0;
+        for(KeyValueServiceImplementor shard : shards){
+            assertTrue(shard.getStatistics().getEntries() > 0);
+            total += shard.getStatistics().getEntries();
+        }
+        assertEquals(30, total);
+
+        // Queries across all keys are merged back into key order
+        List<KeyValue> all = sharded.getAllValues().await();
+        assertEquals(30, all.size());
+        for(int i = 1; i < all.size(); i++){
+            assertTrue(all.get(i - 1).getKey().compareTo(all.get(i).getKey()) < 0);
+        }
+
+        List<KeyValue> iterated = new ArrayList<KeyValue>();
+        Iterator<KeyValue> iterator = sharded.iterateAllValues(4);
+        while(iterator.hasNext()){
+            iterated.add(iterator.next());
+        }
+        assertEquals(all, iterated);
+
+        assertEquals(2, sharded.getValuesWithPrefix("Keyb").await().size());
+
+        List<KeyValue> some = sharded.getValues(Arrays.asList("Keyz25", "Keya0", "Keyc2")).await();
+        assertEquals("Keyz25", some.get(0).getKey());
+        assertEquals("Keya0", some.get(1).getKey());
+        assertEquals("Keyc2", some.get(2).getKey());
+
+        Map<String, String> batch = new LinkedHashMap<String, String>();
+        batch.put("Keya0", "NewVal0");
+        batch.put("Other", "Val");
+        List<KeyValue> results = sharded.putValues(batch).await();
+        assertEquals(WriteResult.UPDATED, results.get(0).getWriteResult());
+        assertEquals(WriteResult.CREATED, results.get(1).getWriteResult());
+
+        // A shard rejects keys it doesn't own
+        int wrongShard = (new KeyValueShardRing(shardCount).shardFor("Keya0") + 1) % shardCount;
+        Client misrouted = client.spawn();
+        misrouted.setHeaders(misrouted.getHeaders().setDestination(new AddressableDestination(KeyValueShardRing.destination(wrongShard))));
+        try {
+            new KeyValueServiceImpl(misrouted).getValue("Keya0").await();
+            fail("Expected the key to be rejected by a shard that doesn't own it");
+        } catch (BadRequestException ex) {
+        }
+
+        assertEquals(31, sharded.deleteAllValues().await().size());
+        assertEquals(0, sharded.getAllValues().await().size());
+    }
+
+    @Test
+    public void testHotStandby() throws Exception{
+
+        service.deleteAllValues().await();
+        service.putValue("Key1", "Val1").await();
+
+        // The standby runs in this process, fed by the primary through an in-memory channel
+        ServiceRegistration registration = connection.getServiceRegistration();
+        KeyValueServiceImplementor standby = new KeyValueServiceImplementor(registration.getEventPublisher());
+        LocalReplicationChannel channel = new LocalReplicationChannel();
+        standby.followPrimary(channel);
+        serviceImplementation.attachReplica(channel);
+
+        registration.bindService(standby, new KeyValueDescriptor(), new AddressableDestination("key-value-standby"), true);
+        Client standbyClient = client.spawn();
+        standbyClient.setHeaders(standbyClient.getHeaders().setDestination(new AddressableDestination("key-value-standby")));
+        KeyValueService standbyService = new KeyValueServiceImpl(standbyClient);
+
+        service.putValue("Key2", "Val2").await();
+        service.deleteValue("Key1").await();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(standby.getReplicationStatus().getSequence() < serviceImplementation.getReplicationStatus().getSequence() && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertEquals(0, standby.getReplicationStatus().getPendingRecords());
+        assertEquals(service.getAllValues().await(), standbyService.getAllValues().await());
+
+        try {
+            standbyService.putValue("Key3", "Val3").await();
+            fail("Expected the standby to reject writes");
+        } catch (BadRequestException ex) {
+        }
+
+        // The primary goes away, the standby takes over with everything it had replicated
+        serviceImplementation.detachReplica(channel);
+        standby.promote();
+
+        assertFalse(standby.getReplicationStatus().isStandby());
+        assertEquals("Val2", standbyService.getValue("Key2").await().getValue());
+        standbyService.putValue("Key3", "Val3").await();
+        assertEquals(2, standbyService.getAllValues().await().size());
+
+        service.deleteAllValues().await();
     }
 
     class SubscriptionListener implements SubscriptionEventAcceptor<KeyValue>{
@@ -167,6 +538,82 @@ public class IntegrationTest {
         }
     }
 
+    @Test
+    public void testCoalescedEvents() throws Exception{
+
+        // A separate instance that holds MODIFIED events back for a second
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.events.coalesceWindowMs", "1000");
+
+        ServiceRegistration registration = connection.getServiceRegistration();
+        KeyValueServiceImplementor coalescing = new KeyValueServiceImplementor(registration.getEventPublisher(), new KeyValueServiceSettings(props));
+        registration.bindService(coalescing, new KeyValueDescriptor(), new AddressableDestination("key-value-coalescing"), true);
+
+        Client coalescingClient = client.spawn();
+        coalescingClient.setHeaders(coalescingClient.getHeaders().setDestination(new AddressableDestination("key-value-coalescing")));
+        KeyValueService coalescingService = new KeyValueServiceImpl(coalescingClient);
+
+        SubscriptionListener listener = new SubscriptionListener();
+        coalescingService.putValue("Coalesced", "Val0").await();
+        Subscription<KeyValue> sub = coalescingService.subscribeToKeyValues("Coalesced").await().getSubscription().start(listener);
+
+        for(int i = 1; i <= 20; i++){
+            coalescingService.putValue("Coalesced", "Val" + i).await();
+        }
+        coalescingService.deleteValue("Coalesced").await();
+
+        // Only the latest value of each window is published, the last one just ahead of the removal
+        List<SubscriptionEvent<KeyValue>> modified = new ArrayList<SubscriptionEvent<KeyValue>>();
+        SubscriptionEvent<KeyValue> event = listener.queue.poll(5, TimeUnit.SECONDS);
+        while(event != null && event.getEventType() == Envelope.SubscriptionEventType.MODIFIED){
+            modified.add(event);
+            event = listener.queue.poll(5, TimeUnit.SECONDS);
+        }
+        assertEquals(Envelope.SubscriptionEventType.REMOVED, event.getEventType());
+        assertEquals("Val20", modified.get(modified.size() - 1).getValue().getValue());
+        assertTrue(modified.size() < 20);
+        assertEquals(20 - modified.size(), coalescing.getStatistics().getCoalescedEvents());
+
+        sub.cancel();
+        coalescing.close();
+    }
+
+    @Test
+    public void testQueuedEvents() throws Exception{
+
+        // A separate instance that publishes its events from a queue rather than before responding
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.events.queueCapacity", "100");
+
+        ServiceRegistration registration = connection.getServiceRegistration();
+        KeyValueServiceImplementor queued = new KeyValueServiceImplementor(registration.getEventPublisher(), new KeyValueServiceSettings(props));
+        registration.bindService(queued, new KeyValueDescriptor(), new AddressableDestination("key-value-queued"), true);
+
+        Client queuedClient = client.spawn();
+        queuedClient.setHeaders(queuedClient.getHeaders().setDestination(new AddressableDestination("key-value-queued")));
+        KeyValueService queuedService = new KeyValueServiceImpl(queuedClient);
+
+        SubscriptionListener listener = new SubscriptionListener();
+        Subscription<KeyValue> sub = queuedService.subscribeToKeyValues("Queued").await().getSubscription().start(listener);
+
+        for(int i = 0; i < 20; i++){
+            queuedService.putValue("Queued", "Val" + i).await();
+        }
+        queuedService.deleteValue("Queued").await();
+
+        // The events may arrive after the responses, but in the order of the changes
+        assertEquals(Envelope.SubscriptionEventType.ADDED, listener.queue.poll(5, TimeUnit.SECONDS).getEventType());
+        for(int i = 1; i < 20; i++){
+            assertEquals("Val" + i, listener.queue.poll(5, TimeUnit.SECONDS).getValue().getValue());
+        }
+        assertEquals(Envelope.SubscriptionEventType.REMOVED, listener.queue.poll(5, TimeUnit.SECONDS).getEventType());
+
+        sub.cancel();
+        queued.close();
+
+        assertEquals(21, queued.getPublishQueueStatus().getPublished());
+    }
+
     @Test
     public void testSubscription() throws Exception{
 
@@ -195,4 +642,69 @@ public class IntegrationTest {
         sub1.cancel();
         sub2.cancel();
     }
+
+    @Test
+    public void testPrefixSubscription() throws Exception{
+
+        service.deleteAllValues().await();
+
+        service.putValue("Site3.Pressure", "Val1").await();
+        service.putValue("Site4.Pressure", "Val2").await();
+
+        SubscriptionListener listener = new SubscriptionListener();
+        SubscriptionResult<List<KeyValue>, KeyValue> result = service.subscribeToMatchingKeyValues("Site3.*").await();
+        Subscription<KeyValue> sub = result.getSubscription().start(listener);
+
+        assertEquals(1, result.getResult().size());
+        assertEquals("Site3.Pressure", result.getResult().get(0).getKey());
+
+        // Only keys under the prefix, at any depth, reach the subscriber
+        service.putValue("Site3.Pressure", "ChangedVal1").await();
+        service.putValue("Site4.Pressure", "ChangedVal2").await();
+        service.putValue("Site3.Pump1.Speed", "Val3").await();
+        service.putValue("Site3", "Val4").await();
+
+        assertEquals("Site3.Pressure", listener.queue.poll(5, TimeUnit.SECONDS).getValue().getKey());
+        assertEquals("Site3.Pump1.Speed", listener.queue.poll(5, TimeUnit.SECONDS).getValue().getKey());
+        assertNull(listener.queue.poll(500, TimeUnit.MILLISECONDS));
+
+        sub.cancel();
+    }
+
+    @Test
+    public void testSubscriptionLinesUpWithValues() throws Exception{
+
+        service.deleteAllValues().await();
+
+        // Changes end up either in the values read when subscribing or in events, never both
+        SubscriptionListener listener = new SubscriptionListener();
+        Map<String, KeyValue> mirror = new HashMap<String, KeyValue>();
+        Subscription<KeyValue> sub = null;
+        for(int i = 0; i < 50; i++){
+            service.putValue("Line" + (i % 5), "Val" + i).await();
+            if(i == 25){
+                SubscriptionResult<List<KeyValue>, KeyValue> result = service.subscribeToAllKeyValues().await();
+                for(KeyValue value : result.getResult()){
+                    mirror.put(value.getKey(), value);
+                }
+                sub = result.getSubscription().start(listener);
+            }
+        }
+        service.putValue("Done", "Val").await();
+
+        long lastRevision = 0;
+        while(!mirror.containsKey("Done")){
+            KeyValue value = listener.queue.poll(5, TimeUnit.SECONDS).getValue();
+            assertFalse(mirror.containsKey(value.getKey()) && mirror.get(value.getKey()).getRevision() >= value.getRevision());
+            assertTrue(value.getRevision() > lastRevision);
+            lastRevision = value.getRevision();
+            mirror.put(value.getKey(), value);
+        }
+
+        for(KeyValue value : service.getAllValues().await()){
+            assertEquals(value.getValue(), mirror.get(value.getKey()).getValue());
+        }
+
+        sub.cancel();
+    }
 }
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event;
+
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.client.registration.EventPublisher;
+
+/**
+ * Drops every event and binding, for tests of a service instance that don't look at its events.
+ */
+public class NullPublisher implements EventPublisher {
+
+    @Override
+    public <T> void publishEvent(Envelope.SubscriptionEventType eventType, T eventMessage, String routingKey) {
+    }
+
+    @Override
+    public <T> void bindQueueByClass(String subQueue, String key, Class<T> klass) {
+    }
+}
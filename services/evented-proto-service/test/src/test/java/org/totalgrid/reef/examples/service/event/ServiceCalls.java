@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event;
+
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.client.registration.ServiceResponseCallback;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls a key-value service instance directly, with no broker in between, and waits for its response,
+ * which comes from a worker thread if the service has any.
+ */
+public final class ServiceCalls {
+
+    // Far longer than any request takes, so a lost response fails the test instead of hanging it
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private ServiceCalls() {}
+
+    /**
+     * @return The service's response to a request without headers.
+     */
+    public static Envelope.ServiceResponse call(KeyValueServiceImplementor service, Envelope.Verb verb, KeyValue payload) {
+        return call(service, verb, payload, new HashMap<String, List<String>>());
+    }
+
+    /**
+     * @return The service's response to a request.
+     * @throws IllegalStateException If the service doesn't respond in time.
+     */
+    public static Envelope.ServiceResponse call(KeyValueServiceImplementor service, Envelope.Verb verb, KeyValue payload, Map<String, List<String>> headers) {
+
+        final Envelope.ServiceResponse[] response = new Envelope.ServiceResponse[1];
+        final CountDownLatch responded = new CountDownLatch(1);
+
+        Envelope.ServiceRequest request = Envelope.ServiceRequest.newBuilder().setVerb(verb).setId("id").setPayload(payload.toByteString()).build();
+        service.respond(request, headers, new ServiceResponseCallback() {
+            @Override
+            public void onResponse(Envelope.ServiceResponse r) {
+                response[0] = r;
+                responded.countDown();
+            }
+        });
+
+        try {
+            if (!responded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("No response to " + verb + " of key: " + payload.getKey());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+
+        return response[0];
+    }
+}
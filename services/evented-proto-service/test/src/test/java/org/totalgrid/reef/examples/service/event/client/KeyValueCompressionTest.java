@@ -0,0 +1,146 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.client;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.NullPublisher;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.Compression;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.totalgrid.reef.examples.service.event.ServiceCalls.call;
+
+public class KeyValueCompressionTest {
+
+    private static final int THRESHOLD = 100;
+
+    @Test
+    public void testStringBelowThresholdIsLeftAlone() {
+
+        KeyValue pair = text("a", repeat("x", THRESHOLD - 1));
+
+        assertSame(pair, KeyValueCompression.compress(pair, THRESHOLD, 1));
+        assertFalse(KeyValueCompression.isCompressed(pair));
+        assertEquals(pair.getValue(), KeyValueCompression.getValue(pair));
+        assertEquals(ByteString.copyFromUtf8(pair.getValue()), KeyValueCompression.getBinaryValue(pair));
+        assertSame(pair, KeyValueCompression.decompress(pair));
+    }
+
+    @Test
+    public void testStringAboveThresholdRoundTrips() {
+
+        // Multi-byte characters, so the threshold is checked against the UTF-8 length
+        String value = repeat("temp\u00e9rature ", 50);
+        KeyValue compressed = KeyValueCompression.compress(text("a", value), THRESHOLD, 6);
+
+        assertTrue(KeyValueCompression.isCompressed(compressed));
+        assertEquals(Compression.DEFLATED_TEXT, compressed.getCompression());
+        assertFalse(compressed.hasValue());
+        assertTrue(compressed.getBinaryValue().size() < value.length());
+
+        assertEquals(value, KeyValueCompression.getValue(compressed));
+        assertEquals(ByteString.copyFromUtf8(value), KeyValueCompression.getBinaryValue(compressed));
+        assertEquals(text("a", value), KeyValueCompression.decompress(compressed));
+    }
+
+    @Test
+    public void testBinaryAroundThreshold() {
+
+        KeyValue small = binary("b", new byte[THRESHOLD - 1]);
+        assertSame(small, KeyValueCompression.compress(small, THRESHOLD, 1));
+        assertEquals(small.getBinaryValue(), KeyValueCompression.getBinaryValue(small));
+
+        KeyValue large = binary("b", new byte[THRESHOLD * 10]);
+        KeyValue compressed = KeyValueCompression.compress(large, THRESHOLD, 1);
+        assertEquals(Compression.DEFLATED_BINARY, compressed.getCompression());
+        assertEquals(large.getBinaryValue(), KeyValueCompression.getBinaryValue(compressed));
+        assertEquals(large, KeyValueCompression.decompress(compressed));
+    }
+
+    @Test
+    public void testIncompressibleValueIsLeftAlone() {
+
+        byte[] random = new byte[THRESHOLD * 10];
+        new Random(1).nextBytes(random);
+
+        KeyValue pair = binary("r", random);
+        assertSame(pair, KeyValueCompression.compress(pair, THRESHOLD, 9));
+    }
+
+    @Test
+    public void testServiceStoresValuesAboveThresholdCompressed() throws Exception {
+
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.compression.thresholdBytes", "" + THRESHOLD);
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(new NullPublisher(), new KeyValueServiceSettings(props));
+
+        String smallValue = repeat("s", THRESHOLD - 1);
+        String largeValue = repeat("l", THRESHOLD * 10);
+
+        put(service, text("small", smallValue));
+        put(service, text("large", largeValue));
+        put(service, binary("bytes", largeValue.getBytes("UTF-8")));
+
+        KeyValue small = get(service, "small");
+        assertFalse(KeyValueCompression.isCompressed(small));
+        assertEquals(smallValue, small.getValue());
+
+        KeyValue large = get(service, "large");
+        assertTrue(KeyValueCompression.isCompressed(large));
+        assertEquals(largeValue, KeyValueCompression.getValue(large));
+
+        KeyValue bytes = get(service, "bytes");
+        assertEquals(Compression.DEFLATED_BINARY, bytes.getCompression());
+        assertEquals(ByteString.copyFromUtf8(largeValue), KeyValueCompression.getBinaryValue(bytes));
+    }
+
+    private static void put(KeyValueServiceImplementor service, KeyValue pair) {
+        assertEquals(Envelope.Status.CREATED, call(service, Envelope.Verb.PUT, pair).getStatus());
+    }
+
+    private static KeyValue get(KeyValueServiceImplementor service, String key) throws IOException {
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.GET, KeyValue.newBuilder().setKey(key).build());
+        assertEquals(Envelope.Status.OK, response.getStatus());
+        return KeyValue.parseFrom(response.getPayload(0));
+    }
+
+    private static KeyValue text(String key, String value) {
+        return KeyValue.newBuilder().setKey(key).setValue(value).build();
+    }
+
+    private static KeyValue binary(String key, byte[] value) {
+        return KeyValue.newBuilder().setKey(key).setBinaryValue(ByteString.copyFrom(value)).build();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
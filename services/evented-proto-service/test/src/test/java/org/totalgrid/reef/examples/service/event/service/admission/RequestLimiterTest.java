@@ -0,0 +1,230 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.admission;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.client.registration.EventPublisher;
+import org.totalgrid.reef.client.registration.ServiceResponseCallback;
+import org.totalgrid.reef.examples.service.event.ServiceCalls;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class RequestLimiterTest {
+
+    @Test
+    public void testShedsBeyondLimit() {
+
+        RequestLimiter limiter = new RequestLimiter(2);
+
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        assertEquals(2, limiter.getStatus().getInFlight());
+        assertEquals(1, limiter.getStatus().getShed());
+
+        limiter.release();
+        assertTrue(limiter.acquire());
+
+        limiter.release();
+        limiter.release();
+        assertEquals(0, limiter.getStatus().getInFlight());
+        assertEquals(2, limiter.getStatus().getMaxInFlightSeen());
+        assertEquals(3, limiter.getStatus().getAdmitted());
+    }
+
+    @Test
+    public void testShedsWithoutBlockingDeliveringThread() throws Exception {
+
+        GatedPublisher publisher = new GatedPublisher();
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, settings(1, 1, 10));
+
+        // The first request holds the only slot while its worker waits to publish
+        List<Envelope.ServiceResponse> responses = new ArrayList<Envelope.ServiceResponse>();
+        respond(service, put("a"), responses);
+
+        // The next one is answered before respond returns, instead of waiting for the slot
+        respond(service, put("b"), responses);
+        assertEquals(1, responses.size());
+        assertEquals(Envelope.Status.BUS_UNAVAILABLE, responses.get(0).getStatus());
+        assertEquals(1, service.getRequestLimiterStatus().getShed());
+
+        publisher.open();
+        service.close();
+        assertEquals(2, responses.size());
+        assertEquals(0, service.getRequestLimiterStatus().getInFlight());
+    }
+
+    @Test
+    public void testReleasesSlotWhenPayloadDoesNotParse() throws Exception {
+
+        GatedPublisher publisher = new GatedPublisher();
+        publisher.open();
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, settings(1, 0, 0));
+
+        List<Envelope.ServiceResponse> responses = new ArrayList<Envelope.ServiceResponse>();
+        respond(service, ByteString.copyFrom(new byte[]{(byte) 0xff, (byte) 0xff}), responses);
+
+        assertEquals(Envelope.Status.INTERNAL_ERROR, responses.get(0).getStatus());
+        assertEquals(0, service.getRequestLimiterStatus().getInFlight());
+        assertEquals(Envelope.Status.CREATED, ServiceCalls.call(service, Envelope.Verb.PUT, KeyValue.newBuilder().setKey("a").setValue("value").build()).getStatus());
+    }
+
+    @Test
+    public void testReleasesSlotWhenHandlingThrows() throws Exception {
+
+        GatedPublisher publisher = new GatedPublisher();
+        publisher.open();
+        publisher.failing = true;
+
+        // Inline and on a worker thread
+        for (int workers = 0; workers < 2; workers++) {
+
+            KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, settings(1, workers, 10));
+
+            List<Envelope.ServiceResponse> responses = new ArrayList<Envelope.ServiceResponse>();
+            respond(service, put("a"), responses);
+            service.close();
+
+            assertEquals(Envelope.Status.INTERNAL_ERROR, responses.get(0).getStatus());
+            assertEquals(0, service.getRequestLimiterStatus().getInFlight());
+        }
+    }
+
+    @Test
+    public void testReleasesSlotWhenWorkerQueueIsFull() throws Exception {
+
+        GatedPublisher publisher = new GatedPublisher();
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, settings(10, 1, 1));
+
+        // One request running on the worker, one queued behind it, and the third finds the queue full
+        List<Envelope.ServiceResponse> responses = new ArrayList<Envelope.ServiceResponse>();
+        respond(service, put("a"), responses);
+        publisher.awaitBlocked();
+        respond(service, put("a"), responses);
+        respond(service, put("a"), responses);
+
+        assertEquals(1, responses.size());
+        assertEquals(Envelope.Status.BUS_UNAVAILABLE, responses.get(0).getStatus());
+        assertEquals(2, service.getRequestLimiterStatus().getInFlight());
+        assertEquals(0, service.getRequestLimiterStatus().getShed());
+        assertEquals(1, service.getRequestLimiterStatus().getQueued());
+        assertEquals(1, service.getRequestLimiterStatus().getQueueShed());
+
+        publisher.open();
+        service.close();
+        assertEquals(3, responses.size());
+        assertEquals(0, service.getRequestLimiterStatus().getInFlight());
+        assertEquals(0, service.getRequestLimiterStatus().getQueued());
+    }
+
+    @Test
+    public void testCountsWorkerQueueSheddingWithoutLimit() throws Exception {
+
+        GatedPublisher publisher = new GatedPublisher();
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, settings(0, 1, 1));
+
+        List<Envelope.ServiceResponse> responses = new ArrayList<Envelope.ServiceResponse>();
+        respond(service, put("a"), responses);
+        publisher.awaitBlocked();
+        respond(service, put("a"), responses);
+        respond(service, put("a"), responses);
+
+        assertEquals(Envelope.Status.BUS_UNAVAILABLE, responses.get(0).getStatus());
+        assertEquals(1, service.getRequestLimiterStatus().getQueued());
+        assertEquals(1, service.getRequestLimiterStatus().getQueueShed());
+
+        publisher.open();
+        service.close();
+    }
+
+    private static KeyValueServiceSettings settings(int maxInFlight, int workerThreads, int workerQueueCapacity) {
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.requests.maxInFlight", "" + maxInFlight);
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.requests.workerThreads", "" + workerThreads);
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.requests.workerQueueCapacity", "" + workerQueueCapacity);
+        return new KeyValueServiceSettings(props);
+    }
+
+    private static ByteString put(String key) {
+        return KeyValue.newBuilder().setKey(key).setValue("value").build().toByteString();
+    }
+
+    /**
+     * Sends a PUT without waiting for its response, which is added to the responses whenever it comes.
+     */
+    private static void respond(KeyValueServiceImplementor service, ByteString payload, final List<Envelope.ServiceResponse> responses) {
+
+        Envelope.ServiceRequest request = Envelope.ServiceRequest.newBuilder().setVerb(Envelope.Verb.PUT).setId("id").setPayload(payload).build();
+
+        service.respond(request, new HashMap<String, List<String>>(), new ServiceResponseCallback() {
+            @Override
+            public void onResponse(Envelope.ServiceResponse response) {
+                synchronized (responses) {
+                    responses.add(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * Holds every event until opened, so requests stay in flight; fails them instead if asked to.
+     */
+    private static class GatedPublisher implements EventPublisher {
+
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private volatile boolean failing = false;
+
+        void open() {
+            gate.countDown();
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            blocked.await();
+        }
+
+        @Override
+        public <T> void publishEvent(Envelope.SubscriptionEventType eventType, T eventMessage, String routingKey) {
+            if (failing) {
+                throw new IllegalStateException("Broker unavailable");
+            }
+            blocked.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public <T> void bindQueueByClass(String subQueue, String key, Class<T> klass) {
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.client.registration.EventPublisher;
+import org.totalgrid.reef.examples.service.event.ServiceCalls;
+import org.totalgrid.reef.examples.service.event.client.KeyValuePattern;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batched events of bulk changes reach subscribers of single keys, prefixes and all keys, each
+ * pair exactly once. Events are delivered to the bindings as a topic exchange would.
+ */
+public class BatchedEventsTest {
+
+    private static final String PREFIX = "org.totalgrid.reef.examples.keyvalue.";
+
+    private static final String[] KEYS = { "a.b.c", "a.b.d", "a.b.e.f", "a.x", "top", "other" };
+
+    @Test
+    public void testBulkDeleteReachesEverySubscriber() throws Exception {
+
+        RecordingPublisher publisher = new RecordingPublisher();
+        KeyValueServiceImplementor service = open(publisher);
+
+        subscribe(service, "exact", "a.b.c");
+        subscribe(service, "top", "top");
+        subscribe(service, "prefix", "a.b.*");
+        subscribe(service, "outer", "a.*");
+        subscribe(service, "all", "*");
+
+        for (String key : KEYS) {
+            call(service, Envelope.Verb.PUT, KeyValue.newBuilder().setKey(key).setValue("v").build());
+        }
+        publisher.clear();
+
+        call(service, Envelope.Verb.DELETE, KeyValue.newBuilder().setKey("*").build());
+
+        assertEquals(Arrays.asList("a.b.c"), publisher.received("exact", Envelope.SubscriptionEventType.REMOVED));
+        assertEquals(Arrays.asList("top"), publisher.received("top", Envelope.SubscriptionEventType.REMOVED));
+        assertEquals(Arrays.asList("a.b.c", "a.b.d", "a.b.e.f"), publisher.received("prefix", Envelope.SubscriptionEventType.REMOVED));
+        assertEquals(Arrays.asList("a.b.c", "a.b.d", "a.b.e.f", "a.x"), publisher.received("outer", Envelope.SubscriptionEventType.REMOVED));
+        assertEquals(sorted(KEYS), publisher.received("all", Envelope.SubscriptionEventType.REMOVED));
+
+        // Subscribed keys went out on their own, the rest in one batch per parent pattern
+        assertEquals(Arrays.asList("a.b.c", "top", "a.b.*", "a.b.e.*", "a.*", "*"), publisher.routingKeys());
+    }
+
+    @Test
+    public void testBatchWriteReachesEverySubscriber() throws Exception {
+
+        RecordingPublisher publisher = new RecordingPublisher();
+        KeyValueServiceImplementor service = open(publisher);
+
+        subscribe(service, "exact", "a.b.c");
+        subscribe(service, "prefix", "a.b.*");
+        subscribe(service, "all", "*");
+
+        KeyValue.Builder batch = KeyValue.newBuilder().setKey("*");
+        for (String key : KEYS) {
+            batch.addEntries(KeyValue.newBuilder().setKey(key).setValue("v"));
+        }
+        call(service, Envelope.Verb.POST, batch.build());
+
+        assertEquals(Arrays.asList("a.b.c"), publisher.received("exact", Envelope.SubscriptionEventType.ADDED));
+        assertEquals(Arrays.asList("a.b.c", "a.b.d", "a.b.e.f"), publisher.received("prefix", Envelope.SubscriptionEventType.ADDED));
+        assertEquals(sorted(KEYS), publisher.received("all", Envelope.SubscriptionEventType.ADDED));
+    }
+
+    @Test
+    public void testBindingsFromBeforeRestartGetEveryPair() throws Exception {
+
+        // Queues bound by an earlier run of the service, which this one never saw subscribe
+        RecordingPublisher publisher = new RecordingPublisher();
+        publisher.bindQueueByClass("exact", "a.x", KeyValue.class);
+        publisher.bindQueueByClass("all", "#", KeyValue.class);
+        KeyValueServiceImplementor service = open(publisher);
+
+        for (String key : KEYS) {
+            call(service, Envelope.Verb.PUT, KeyValue.newBuilder().setKey(key).setValue("v").build());
+        }
+        publisher.clear();
+
+        // A pattern subscribed to since the start lets its pairs go in batches again
+        subscribe(service, "prefix", "a.b.*");
+        call(service, Envelope.Verb.DELETE, KeyValue.newBuilder().setKey("*").build());
+
+        assertEquals(Arrays.asList("a.x"), publisher.received("exact", Envelope.SubscriptionEventType.REMOVED));
+        assertEquals(Arrays.asList("a.b.c", "a.b.d", "a.b.e.f"), publisher.received("prefix", Envelope.SubscriptionEventType.REMOVED));
+        assertEquals(sorted(KEYS), publisher.received("all", Envelope.SubscriptionEventType.REMOVED));
+
+        // Pairs no pattern seen since the start covers went out on their own
+        assertEquals(Arrays.asList("a.x", "other", "top", "a.b.*", "a.b.e.*"), publisher.routingKeys());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchSizeBelowOneRejected() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(PREFIX + "events.bulkBatchSize", "0");
+        new KeyValueServiceSettings(props);
+    }
+
+    @Test
+    public void testTopicMatching() {
+        assertTrue(matches("#", "a.b.*"));
+        assertTrue(matches("a.b.*.#", "a.b.*"));
+        assertTrue(matches("a.*.#", "a.b.*"));
+        assertFalse(matches("a.b.c", "a.b.*"));
+        assertFalse(matches("a.b.*.#", "a.*"));
+        assertFalse(matches("a.*.#", "*"));
+        assertTrue(matches("a.b.c", "a.b.c"));
+    }
+
+    private static KeyValueServiceImplementor open(EventPublisher publisher) throws Exception {
+        Properties props = new Properties();
+        props.setProperty(PREFIX + "events.bulk", "BATCHED");
+        props.setProperty(PREFIX + "events.bulkBatchSize", "2");
+        return new KeyValueServiceImplementor(publisher, new KeyValueServiceSettings(props));
+    }
+
+    private static void subscribe(KeyValueServiceImplementor service, String queue, String pattern) {
+
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put("SUB_QUEUE_NAME", Arrays.asList(queue));
+
+        // A GET subscribes whether or not the key has an entry yet
+        ServiceCalls.call(service, Envelope.Verb.GET, KeyValue.newBuilder().setKey(pattern).build(), headers);
+    }
+
+    private static void call(KeyValueServiceImplementor service, Envelope.Verb verb, KeyValue payload) {
+        Envelope.ServiceResponse response = ServiceCalls.call(service, verb, payload);
+        assertFalse(response.getErrorMessage(), response.hasErrorMessage());
+    }
+
+    private static List<String> sorted(String... keys) {
+        List<String> list = new ArrayList<String>(Arrays.asList(keys));
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * AMQP topic matching: "*" matches one word, "#" zero or more.
+     */
+    private static boolean matches(String binding, String routingKey) {
+        return matches(binding.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+    }
+
+    private static boolean matches(String[] binding, int b, String[] words, int w) {
+
+        if (b == binding.length) {
+            return w == words.length;
+        }
+
+        if (binding[b].equals("#")) {
+            for (int skip = w; skip <= words.length; skip++) {
+                if (matches(binding, b + 1, words, skip)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return w < words.length && (binding[b].equals("*") || binding[b].equals(words[w])) && matches(binding, b + 1, words, w + 1);
+    }
+
+    private static class RecordingPublisher implements EventPublisher {
+
+        private final Map<String, String> bindings = new HashMap<String, String>();
+        private final List<Envelope.SubscriptionEventType> types = new ArrayList<Envelope.SubscriptionEventType>();
+        private final List<KeyValue> events = new ArrayList<KeyValue>();
+        private final List<String> routes = new ArrayList<String>();
+
+        @Override
+        public <T> void publishEvent(Envelope.SubscriptionEventType eventType, T eventMessage, String routingKey) {
+            types.add(eventType);
+            events.add((KeyValue) eventMessage);
+            routes.add(routingKey);
+        }
+
+        @Override
+        public <T> void bindQueueByClass(String subQueue, String key, Class<T> klass) {
+            bindings.put(subQueue, key);
+        }
+
+        void clear() {
+            types.clear();
+            events.clear();
+            routes.clear();
+        }
+
+        List<String> routingKeys() {
+            return routes;
+        }
+
+        /**
+         * @return Keys of the pairs of a type delivered to a queue, sorted, counting every delivery.
+         */
+        List<String> received(String queue, Envelope.SubscriptionEventType eventType) {
+
+            List<String> keys = new ArrayList<String>();
+
+            for (int i = 0; i < events.size(); i++) {
+
+                if (types.get(i) != eventType || !matches(bindings.get(queue), routes.get(i))) {
+                    continue;
+                }
+
+                KeyValue event = events.get(i);
+                if (KeyValuePattern.isPattern(event.getKey())) {
+                    for (KeyValue entry : event.getEntriesList()) {
+                        keys.add(entry.getKey());
+                    }
+                } else {
+                    keys.add(event.getKey());
+                }
+            }
+
+            Collections.sort(keys);
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.events;
+
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.client.registration.EventPublisher;
+import org.totalgrid.reef.examples.service.event.ServiceCalls;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Skipped binds, and bindings forgotten when their queue closes, goes idle or is pushed out.
+ */
+public class BindingCacheTest {
+
+    @Test
+    public void testRepeatedBindingSkipped() {
+
+        BindingCache cache = new BindingCache(10, 60000);
+        assertTrue(cache.needsBind("q", "a"));
+        cache.bound("q", "a");
+
+        assertFalse(cache.needsBind("q", "a"));
+        assertFalse(cache.needsBind("q", "a"));
+        assertEquals(2, cache.getSkipped());
+
+        // Other keys and queues are bindings of their own
+        assertTrue(cache.needsBind("q", "b"));
+        assertTrue(cache.needsBind("q2", "a"));
+    }
+
+    @Test
+    public void testClosedQueueBoundAgain() {
+
+        BindingCache cache = new BindingCache(10, 60000);
+        cache.bound("q", "a");
+        cache.bound("q", "b.*.#");
+        cache.bound("q2", "a");
+
+        // A queue whose name starts with the closed one's is left alone
+        cache.bound("q.x", "a");
+
+        assertEquals(2, cache.forgetQueue("q"));
+        assertTrue(cache.needsBind("q", "a"));
+        assertTrue(cache.needsBind("q", "b.*.#"));
+        assertFalse(cache.needsBind("q2", "a"));
+        assertFalse(cache.needsBind("q.x", "a"));
+        assertEquals(0, cache.forgetQueue("q"));
+    }
+
+    @Test
+    public void testIdleBindingForgotten() throws Exception {
+
+        BindingCache cache = new BindingCache(10, 20);
+        cache.bound("q", "a");
+        Thread.sleep(50);
+
+        assertTrue(cache.needsBind("q", "a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBoundedByLeastRecentlySeen() {
+
+        BindingCache cache = new BindingCache(3, 60000);
+        cache.bound("q", "a");
+        cache.bound("q", "b");
+        cache.bound("q", "c");
+
+        // Seeing a keeps it, so b is the one pushed out
+        assertFalse(cache.needsBind("q", "a"));
+        cache.bound("q", "d");
+
+        assertEquals(3, cache.size());
+        assertTrue(cache.needsBind("q", "b"));
+        assertFalse(cache.needsBind("q", "a"));
+    }
+
+    @Test
+    public void testServiceBindsRecreatedQueue() throws Exception {
+
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.subscriptions.bindingCacheSize", "100");
+
+        RecordingPublisher publisher = new RecordingPublisher();
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, new KeyValueServiceSettings(props));
+
+        subscribe(service, "q", "a");
+        subscribe(service, "q", "a");
+        assertEquals(Arrays.asList("q a"), publisher.binds);
+        assertEquals(1, service.getStatistics().getSkippedBinds());
+
+        // The queue goes away and a new one is declared with the same name
+        service.subscriptionQueueClosed("q");
+        subscribe(service, "q", "a");
+        assertEquals(Arrays.asList("q a", "q a"), publisher.binds);
+    }
+
+    @Test
+    public void testBindsEveryTimeByDefault() throws Exception {
+
+        RecordingPublisher publisher = new RecordingPublisher();
+        KeyValueServiceImplementor service = new KeyValueServiceImplementor(publisher, new KeyValueServiceSettings(new Properties()));
+
+        subscribe(service, "q", "a");
+        subscribe(service, "q", "a");
+        assertEquals(Arrays.asList("q a", "q a"), publisher.binds);
+        assertEquals(0, service.getStatistics().getSkippedBinds());
+    }
+
+    private static void subscribe(KeyValueServiceImplementor service, String queue, String key) {
+
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put("SUB_QUEUE_NAME", Arrays.asList(queue));
+
+        // A GET for a key that doesn't exist still subscribes
+        ServiceCalls.call(service, Envelope.Verb.GET, KeyValue.newBuilder().setKey(key).build(), headers);
+    }
+
+    private static class RecordingPublisher implements EventPublisher {
+
+        private final List<String> binds = new ArrayList<String>();
+
+        @Override
+        public <T> void publishEvent(Envelope.SubscriptionEventType eventType, T eventMessage, String routingKey) {
+        }
+
+        @Override
+        public <T> void bindQueueByClass(String subQueue, String key, Class<T> klass) {
+            binds.add(subQueue + " " + key);
+        }
+    }
+}
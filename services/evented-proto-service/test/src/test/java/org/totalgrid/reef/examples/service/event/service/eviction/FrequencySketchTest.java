@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counting and aging of the TinyLFU frequency sketch.
+ */
+public class FrequencySketchTest {
+
+    @Test
+    public void testCountsUpToMaximum() {
+
+        FrequencySketch sketch = new FrequencySketch(1000);
+        assertEquals(0, sketch.frequency("a"));
+
+        for (int i = 0; i < 3; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(3, sketch.frequency("a"));
+        assertEquals(0, sketch.frequency("b"));
+
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test
+    public void testAgingHalvesCounts() {
+
+        // 1024 counters per row, so the counts are halved on the 10240th increment
+        FrequencySketch sketch = new FrequencySketch(1000);
+
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+        for (int i = 0; i < 6; i++) {
+            sketch.increment("c");
+        }
+        for (int i = 0; i < 10240 - 26 - 1; i++) {
+            sketch.increment("b");
+        }
+        assertEquals(15, sketch.frequency("a"));
+        assertEquals(6, sketch.frequency("c"));
+
+        sketch.increment("b");
+        assertEquals(7, sketch.frequency("a"));
+        assertEquals(3, sketch.frequency("c"));
+        assertEquals(7, sketch.frequency("b"));
+
+        // The sample count was halved too, so the next aging comes after another half sample
+        for (int i = 0; i < 5120 - 1; i++) {
+            sketch.increment("b");
+        }
+        assertEquals(3, sketch.frequency("c"));
+        sketch.increment("b");
+        assertEquals(1, sketch.frequency("c"));
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Victim order of the LRU policy.
+ */
+public class LruEvictionPolicyTest {
+
+    @Test
+    public void testLeastRecentlyUsedFirst() {
+
+        LruEvictionPolicy policy = new LruEvictionPolicy();
+        policy.recordWrite("a", 10);
+        policy.recordWrite("b", 10);
+        policy.recordWrite("c", 10);
+
+        // Reading a makes b the oldest, rewriting b makes c the oldest
+        policy.recordAccess("a");
+        policy.recordWrite("b", 20);
+
+        assertEquals("c", policy.victim());
+        assertEquals("a", policy.victim());
+        assertEquals("b", policy.victim());
+        assertNull(policy.victim());
+    }
+
+    @Test
+    public void testRemovedKeysAreNotVictims() {
+
+        LruEvictionPolicy policy = new LruEvictionPolicy();
+        policy.recordWrite("a", 10);
+        policy.recordWrite("b", 10);
+        policy.recordRemoval("a");
+
+        // Reading a key the policy doesn't track doesn't add it
+        policy.recordAccess("missing");
+
+        assertEquals("b", policy.victim());
+        assertNull(policy.victim());
+
+        policy.recordWrite("c", 10);
+        policy.clear();
+        assertNull(policy.victim());
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.eviction;
+
+import org.junit.Test;
+import org.totalgrid.reef.examples.service.event.service.eviction.TinyLfuEvictionPolicy.Segment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Movement of entries between the window, probation and protected segments, and admission of
+ * window entries against probation. A budget of 10000 gives a window of 100, a main space of 9900
+ * and a protected share of 7920.
+ */
+public class TinyLfuEvictionPolicyTest {
+
+    private static final long BUDGET = 10000;
+
+    @Test
+    public void testWindowOverflowMovesToProbation() {
+
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(BUDGET);
+        policy.recordWrite("a", 60);
+        assertEquals(Segment.WINDOW, policy.segmentOf("a"));
+
+        policy.recordWrite("b", 60);
+        assertEquals(Segment.PROBATION, policy.segmentOf("a"));
+        assertEquals(Segment.WINDOW, policy.segmentOf("b"));
+    }
+
+    @Test
+    public void testUseOnProbationPromotesToProtected() {
+
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(BUDGET);
+        policy.recordWrite("a", 60);
+        policy.recordWrite("b", 60);
+        policy.recordWrite("c", 60);
+        assertEquals(Segment.PROBATION, policy.segmentOf("a"));
+        assertEquals(Segment.PROBATION, policy.segmentOf("b"));
+
+        // Read or rewritten on probation, either way promoted
+        policy.recordAccess("a");
+        policy.recordWrite("b", 70);
+        assertEquals(Segment.PROTECTED, policy.segmentOf("a"));
+        assertEquals(Segment.PROTECTED, policy.segmentOf("b"));
+
+        // Reads in the window leave entries there
+        policy.recordAccess("c");
+        assertEquals(Segment.WINDOW, policy.segmentOf("c"));
+
+        policy.recordRemoval("a");
+        assertNull(policy.segmentOf("a"));
+    }
+
+    @Test
+    public void testProtectedOverflowDemotesOldest() {
+
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(BUDGET);
+        for (String key : new String[] { "p1", "p2", "p3", "p4" }) {
+            policy.recordWrite(key, 3000);
+        }
+        policy.recordAccess("p1");
+        policy.recordAccess("p2");
+        assertEquals(Segment.PROTECTED, policy.segmentOf("p1"));
+        assertEquals(Segment.PROTECTED, policy.segmentOf("p2"));
+
+        // A third takes protected to 9000, over its 7920, so the least recently used goes back
+        policy.recordAccess("p3");
+        assertEquals(Segment.PROBATION, policy.segmentOf("p1"));
+        assertEquals(Segment.PROTECTED, policy.segmentOf("p2"));
+        assertEquals(Segment.PROTECTED, policy.segmentOf("p3"));
+        assertEquals(Segment.WINDOW, policy.segmentOf("p4"));
+    }
+
+    @Test
+    public void testWindowCandidateCompetesWithProbation() {
+
+        TinyLfuEvictionPolicy policy = fullPolicy();
+
+        // The main space is full, so the window's overflow stays there until a victim is asked for
+        policy.recordWrite("hot", 100);
+        assertEquals(Segment.WINDOW, policy.segmentOf("m100"));
+        assertEquals(Segment.WINDOW, policy.segmentOf("hot"));
+
+        // A candidate used no more often than probation's oldest entry is evicted itself
+        assertEquals("m100", policy.victim());
+        assertEquals(Segment.PROBATION, policy.segmentOf("m1"));
+
+        // A candidate used more often takes the place of probation's oldest entry
+        for (int i = 0; i < 5; i++) {
+            policy.recordAccess("hot");
+        }
+        policy.recordWrite("new", 100);
+        assertEquals("m1", policy.victim());
+        assertEquals(Segment.PROBATION, policy.segmentOf("hot"));
+        assertEquals(Segment.WINDOW, policy.segmentOf("new"));
+    }
+
+    @Test
+    public void testVictimsOnceWindowFits() {
+
+        TinyLfuEvictionPolicy policy = fullPolicy();
+
+        // The window is within its share, so probation's oldest entries go first
+        assertEquals("m1", policy.victim());
+        assertEquals("m2", policy.victim());
+
+        // Protected entries are demoted once probation runs out
+        TinyLfuEvictionPolicy small = new TinyLfuEvictionPolicy(BUDGET);
+        small.recordWrite("a", 60);
+        small.recordWrite("b", 60);
+        small.recordAccess("a");
+        assertEquals(Segment.PROTECTED, small.segmentOf("a"));
+        assertEquals("a", small.victim());
+        assertEquals("b", small.victim());
+        assertNull(small.victim());
+    }
+
+    /**
+     * @return A policy with m1 to m99 on probation (oldest first), filling the main space, and m100
+     *         in the window.
+     */
+    private static TinyLfuEvictionPolicy fullPolicy() {
+
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(BUDGET);
+        for (int i = 1; i <= 100; i++) {
+            policy.recordWrite("m" + i, 100);
+        }
+
+        assertEquals(Segment.PROBATION, policy.segmentOf("m99"));
+        assertEquals(Segment.WINDOW, policy.segmentOf("m100"));
+        return policy;
+    }
+}
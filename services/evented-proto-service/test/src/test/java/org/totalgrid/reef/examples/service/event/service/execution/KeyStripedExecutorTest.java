@@ -0,0 +1,174 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.execution;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class KeyStripedExecutorTest {
+
+    @Test
+    public void testOrderPerKeyAndBarriers() throws Exception {
+
+        int keys = 16;
+        KeyStripedExecutor executor = new KeyStripedExecutor(4, 10000);
+
+        final AtomicLong clock = new AtomicLong();
+        final AtomicInteger running = new AtomicInteger();
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+        // Tick each task started and finished at, by submission order
+        final long[] started = new long[3000];
+        final long[] finished = new long[3000];
+        final List<Integer> barriers = new ArrayList<Integer>();
+        final List<List<Integer>> ranPerKey = new ArrayList<List<Integer>>();
+        for (int k = 0; k < keys; k++) {
+            ranPerKey.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        final Random random = new Random(42);
+        for (int i = 0; i < started.length; i++) {
+
+            final int task = i;
+
+            if (i % 250 == 125) {
+
+                // A multi-key task, which must have every stripe to itself
+                barriers.add(task);
+                assertTrue(executor.execute(null, new Runnable() {
+                    @Override
+                    public void run() {
+                        started[task] = clock.incrementAndGet();
+                        if (running.get() != 0) {
+                            errors.add("barrier " + task + " ran alongside " + running.get() + " tasks");
+                        }
+                        sleep(2);
+                        if (running.get() != 0) {
+                            errors.add("task started during barrier " + task);
+                        }
+                        finished[task] = clock.incrementAndGet();
+                    }
+                }));
+
+            } else {
+
+                final int key = random.nextInt(keys);
+                final boolean slow = random.nextInt(20) == 0;
+                assertTrue(executor.execute("key" + key, new Runnable() {
+                    @Override
+                    public void run() {
+                        running.incrementAndGet();
+                        started[task] = clock.incrementAndGet();
+                        ranPerKey.get(key).add(task);
+                        if (slow) {
+                            sleep(1);
+                        }
+                        finished[task] = clock.incrementAndGet();
+                        running.decrementAndGet();
+                    }
+                }));
+            }
+        }
+
+        executor.close();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        // Tasks of a key run one at a time, in the order they were submitted
+        for (List<Integer> ran : ranPerKey) {
+            for (int i = 1; i < ran.size(); i++) {
+                assertTrue(ran.get(i - 1) < ran.get(i));
+                assertTrue(finished[ran.get(i - 1)] < started[ran.get(i)]);
+            }
+        }
+
+        // Everything submitted before a barrier finished before it started, everything after started after it finished
+        for (int barrier : barriers) {
+            for (int task = 0; task < started.length; task++) {
+                if (task < barrier) {
+                    assertTrue("task " + task + " before barrier " + barrier, finished[task] < started[barrier]);
+                } else if (task > barrier) {
+                    assertTrue("task " + task + " after barrier " + barrier, started[task] > finished[barrier]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsWhenStripeIsFull() throws Exception {
+
+        KeyStripedExecutor executor = new KeyStripedExecutor(2, 1);
+
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+
+        Runnable count = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+
+        // One task running on the key's stripe and one queued behind it fill that stripe
+        assertTrue(executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.incrementAndGet();
+            }
+        }));
+        running.await();
+        assertTrue(executor.execute("a", count));
+
+        assertFalse(executor.execute("a", count));
+        assertEquals(1, executor.getQueued());
+
+        // A barrier needs room on every stripe, so it is refused too, without taking room on the others
+        assertFalse(executor.execute(null, count));
+        assertEquals(1, executor.getQueued());
+        assertEquals(2, executor.getRejected());
+
+        gate.countDown();
+        executor.close();
+        assertEquals(2, ran.get());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
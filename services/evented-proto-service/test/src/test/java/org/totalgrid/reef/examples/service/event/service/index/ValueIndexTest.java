@@ -0,0 +1,248 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.index;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.NullPublisher;
+import org.totalgrid.reef.examples.service.event.client.KeyValueCompression;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+import static org.totalgrid.reef.examples.service.event.ServiceCalls.call;
+
+/**
+ * The value index on its own, and through the service as entries are written, replaced, deleted,
+ * expired and evicted.
+ */
+public class ValueIndexTest {
+
+    private static final String PREFIX = "org.totalgrid.reef.examples.keyvalue.";
+
+    @Test
+    public void testPutAndLookup() {
+
+        ValueIndex index = new ValueIndex();
+        put(index, pair("b", "x"));
+        put(index, pair("a", "x"));
+        put(index, pair("c", "y"));
+
+        assertEquals(Arrays.asList("a", "b"), index.candidateKeys("x"));
+        assertEquals(Arrays.asList("c"), index.candidateKeys("y"));
+        assertTrue(index.candidateKeys("z").isEmpty());
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testOverwriteDropsOldValue() {
+
+        ValueIndex index = new ValueIndex();
+        put(index, pair("a", "x"));
+        put(index, pair("a", "y"));
+
+        assertTrue(index.candidateKeys("x").isEmpty());
+        assertEquals(Arrays.asList("a"), index.candidateKeys("y"));
+        assertEquals(1, index.size());
+
+        // Replacing a string value with a binary one leaves the key unindexed
+        put(index, KeyValue.newBuilder().setKey("a").setBinaryValue(ByteString.copyFromUtf8("y")).build());
+        assertTrue(index.candidateKeys("y").isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+
+        ValueIndex index = new ValueIndex();
+        put(index, pair("a", "x"));
+        put(index, pair("b", "x"));
+
+        index.remove("a");
+        assertEquals(Arrays.asList("b"), index.candidateKeys("x"));
+
+        // Removing a key that was never indexed is harmless
+        index.remove("missing");
+        assertEquals(1, index.size());
+
+        index.clear();
+        assertTrue(index.candidateKeys("x").isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testCompressedValuesIndexedByText() {
+
+        String text = repeat("compressible text ", 50);
+        KeyValue compressed = KeyValueCompression.compress(pair("a", text), 100, 1);
+        assertTrue(KeyValueCompression.isCompressed(compressed));
+
+        ValueIndex index = new ValueIndex();
+        put(index, compressed);
+        assertEquals(Arrays.asList("a"), index.candidateKeys(text));
+        assertTrue(ValueIndex.holdsValue(compressed, text));
+        assertFalse(ValueIndex.holdsValue(compressed, "other"));
+
+        // Removed by key, without needing the old compressed value
+        index.remove("a");
+        assertTrue(index.candidateKeys(text).isEmpty());
+    }
+
+    @Test
+    public void testServiceLookupAfterOverwriteAndDelete() throws Exception {
+
+        KeyValueServiceImplementor service = open(new Properties());
+        put(service, pair("a", "x"));
+        put(service, pair("b", "x"));
+        put(service, pair("c", "y"));
+        assertEquals(Arrays.asList("a", "b"), keysWithValue(service, "x"));
+
+        put(service, pair("a", "y"));
+        assertEquals(Arrays.asList("b"), keysWithValue(service, "x"));
+        assertEquals(Arrays.asList("a", "c"), keysWithValue(service, "y"));
+
+        delete(service, "c");
+        assertEquals(Arrays.asList("a"), keysWithValue(service, "y"));
+    }
+
+    @Test
+    public void testServiceIndexesCompressedValues() throws Exception {
+
+        Properties props = new Properties();
+        props.setProperty(PREFIX + "compression.thresholdBytes", "100");
+        KeyValueServiceImplementor service = open(props);
+
+        String text = repeat("compressible text ", 50);
+        put(service, pair("big", text));
+        put(service, pair("small", "short"));
+
+        assertEquals(Arrays.asList("big"), keysWithValue(service, text));
+        assertEquals(Arrays.asList("small"), keysWithValue(service, "short"));
+
+        // Batch entries, and values the client compressed itself, are indexed by their text too
+        KeyValue batch = KeyValue.newBuilder().setKey("*").addEntries(pair("batched", text)).addEntries(KeyValueCompression.compress(pair("sent", text), 100, 9)).build();
+        assertEquals(Envelope.Status.OK, call(service, Envelope.Verb.POST, batch).getStatus());
+        assertEquals(Arrays.asList("batched", "big", "sent"), keysWithValue(service, text));
+    }
+
+    @Test
+    public void testServiceDropsExpiredKeys() throws Exception {
+
+        Properties props = new Properties();
+        props.setProperty(PREFIX + "ttl.tickMs", "10");
+        KeyValueServiceImplementor service = open(props);
+
+        put(service, KeyValue.newBuilder().setKey("a").setValue("x").setTtlMs(50).build());
+        put(service, pair("b", "x"));
+        assertEquals(Arrays.asList("a", "b"), keysWithValue(service, "x"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (get(service, "a") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(get(service, "a"));
+        assertEquals(Arrays.asList("b"), keysWithValue(service, "x"));
+    }
+
+    @Test
+    public void testServiceDropsEvictedKeys() throws Exception {
+
+        Properties props = new Properties();
+        props.setProperty(PREFIX + "memory.budgetBytes", "4000");
+        props.setProperty(PREFIX + "memory.evictionPolicy", "LRU");
+        KeyValueServiceImplementor service = open(props);
+
+        for (int i = 0; i < 200; i++) {
+            put(service, pair(String.format("k%03d", i), "x"));
+        }
+        assertTrue(service.getStatistics().getEvictions() > 0);
+
+        // Exactly the keys still stored are found by their value
+        List<String> stored = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            String key = String.format("k%03d", i);
+            if (get(service, key)) {
+                stored.add(key);
+            }
+        }
+        assertFalse(stored.isEmpty());
+        assertEquals(stored, keysWithValue(service, "x"));
+    }
+
+    private static KeyValueServiceImplementor open(Properties props) throws IOException {
+        props.setProperty(PREFIX + "index.values", "true");
+        return new KeyValueServiceImplementor(new NullPublisher(), new KeyValueServiceSettings(props));
+    }
+
+    private static void put(ValueIndex index, KeyValue entry) {
+        index.put(entry, ValueIndex.hashOf(entry));
+    }
+
+    private static KeyValue pair(String key, String value) {
+        return KeyValue.newBuilder().setKey(key).setValue(value).build();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static void put(KeyValueServiceImplementor service, KeyValue pair) {
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.PUT, pair);
+        assertTrue(response.getErrorMessage(), response.getStatus() == Envelope.Status.CREATED || response.getStatus() == Envelope.Status.UPDATED);
+    }
+
+    private static void delete(KeyValueServiceImplementor service, String key) {
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.DELETE, KeyValue.newBuilder().setKey(key).build());
+        assertEquals(response.getErrorMessage(), Envelope.Status.DELETED, response.getStatus());
+    }
+
+    private static boolean get(KeyValueServiceImplementor service, String key) {
+        return call(service, Envelope.Verb.GET, KeyValue.newBuilder().setKey(key).build()).getStatus() == Envelope.Status.OK;
+    }
+
+    private static List<String> keysWithValue(KeyValueServiceImplementor service, String value) {
+
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.GET, KeyValue.newBuilder().setValue(value).build());
+        assertEquals(response.getErrorMessage(), Envelope.Status.OK, response.getStatus());
+
+        List<String> keys = new ArrayList<String>();
+        try {
+            for (int i = 0; i < response.getPayloadCount(); i++) {
+                keys.add(KeyValue.parseFrom(response.getPayload(i)).getKey());
+            }
+        } catch (InvalidProtocolBufferException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.journal;
+
+import org.junit.Test;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copying changes out of the journal's ring, and compacting them per key.
+ */
+public class ChangeJournalTest {
+
+    @Test
+    public void testChangesAfterAcrossWrap() {
+
+        ChangeJournal journal = new ChangeJournal(4, 0);
+        for (long revision = 1; revision <= 6; revision++) {
+            journal.recordPut(KeyValue.newBuilder().setKey("k" + revision).setValue("v").setRevision(revision).build());
+        }
+
+        // Revisions 1 and 2 were dropped to make room, 3 to 6 wrap around the end of the ring
+        assertEquals(2, journal.getStartRevision());
+        assertNull(journal.changesAfter(1));
+        assertEquals(Arrays.asList(3L, 4L, 5L, 6L), revisions(journal.changesAfter(2)));
+        assertEquals(Arrays.asList(5L, 6L), revisions(journal.changesAfter(4)));
+        assertTrue(journal.changesAfter(6).isEmpty());
+
+        journal.reset(7);
+        assertNull(journal.changesAfter(6));
+        assertTrue(journal.changesAfter(7).isEmpty());
+    }
+
+    @Test
+    public void testCompactKeepsLatestPerKey() {
+
+        ChangeJournal journal = new ChangeJournal(10, 0);
+        journal.recordPut(KeyValue.newBuilder().setKey("a.1").setValue("x").setRevision(1).build());
+        journal.recordPut(KeyValue.newBuilder().setKey("b.1").setValue("x").setRevision(2).build());
+        journal.recordPut(KeyValue.newBuilder().setKey("a.2").setValue("x").setRevision(3).build());
+        journal.recordPut(KeyValue.newBuilder().setKey("a.1").setValue("y").setRevision(4).build());
+        journal.recordRemove("a.2", 5);
+
+        List<KeyValue> changes = journal.changesAfter(0);
+        assertEquals(5, changes.size());
+
+        // Each key's latest change, placed where it was made
+        List<KeyValue> all = ChangeJournal.compact(changes, "");
+        assertEquals(Arrays.asList(2L, 4L, 5L), revisions(all));
+        assertTrue(all.get(2).getMissing());
+
+        assertEquals(Arrays.asList(4L, 5L), revisions(ChangeJournal.compact(changes, "a.")));
+        assertEquals(Arrays.asList(4L), revisions(ChangeJournal.compact(journal.changesAfter(3), "a.1")));
+    }
+
+    private static List<Long> revisions(List<KeyValue> changes) {
+        List<Long> revisions = new ArrayList<Long>();
+        for (KeyValue change : changes) {
+            revisions.add(change.getRevision());
+        }
+        return revisions;
+    }
+}
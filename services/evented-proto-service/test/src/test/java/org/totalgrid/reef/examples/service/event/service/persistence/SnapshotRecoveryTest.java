@@ -0,0 +1,278 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.NullPublisher;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+import static org.totalgrid.reef.examples.service.event.ServiceCalls.call;
+
+/**
+ * Restarts of a service with a write-ahead log, including crashes part way through a snapshot. The
+ * services are never closed, as after a crash; every write is forced to disk before it returns.
+ */
+public class SnapshotRecoveryTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = WriteAheadLogTest.createTempDirectory();
+    }
+
+    @After
+    public void deleteDirectory() {
+        WriteAheadLogTest.delete(directory);
+    }
+
+    @Test
+    public void testRestartReplaysLogAfterSnapshot() throws Exception {
+
+        KeyValueServiceImplementor service = open();
+        put(service, "a", "1");
+        put(service, "b", "2");
+        put(service, "c", "3");
+        delete(service, "c");
+        service.snapshot();
+        put(service, "a", "5");
+        put(service, "d", "4");
+        long lastRevision = get(service, "d").getRevision();
+
+        // The log the snapshot covers is kept until the next snapshot, and the file is no longer
+        // than what it holds
+        File[] snapshots = files(".snap");
+        assertEquals(1, snapshots.length);
+        assertEquals(2, files(".log").length);
+        assertTrue("length: " + snapshots[0].length(), snapshots[0].length() < 1024);
+
+        KeyValueServiceImplementor restarted = open();
+        assertState(restarted);
+        assertTrue(put(restarted, "e", "6").getRevision() > lastRevision);
+    }
+
+    @Test
+    public void testCrashLosesSnapshotRename() throws Exception {
+
+        KeyValueServiceImplementor service = open();
+        put(service, "a", "1");
+        put(service, "b", "2");
+        service.snapshot();
+        put(service, "c", "3");
+        delete(service, "c");
+        service.snapshot();
+        put(service, "a", "5");
+        put(service, "d", "4");
+
+        // The second snapshot replaced what the first covered, but kept the first and the log after it
+        File[] snapshots = files(".snap");
+        assertEquals(2, snapshots.length);
+
+        // Roll back the rename of the second snapshot, as a crash before it was flushed could
+        assertTrue(snapshots[1].renameTo(new File(directory, snapshots[1].getName() + ".tmp")));
+
+        assertState(open());
+    }
+
+    @Test
+    public void testCrashBeforeCoveredLogIsDeleted() throws Exception {
+
+        KeyValueServiceImplementor service = open();
+        put(service, "a", "1");
+        put(service, "b", "2");
+        put(service, "c", "3");
+        delete(service, "c");
+        File[] covered = files(".log");
+        File backup = copyOf(covered[0]);
+
+        service.snapshot();
+        put(service, "a", "5");
+        put(service, "d", "4");
+
+        // Put back the segment the snapshot covers, cut short, as if the crash came before it was deleted.
+        // Reading it would fail, so the restart only succeeds if it replays the tail alone.
+        copy(backup, covered[0]);
+        truncate(covered[0], covered[0].length() / 2);
+
+        assertState(open());
+    }
+
+    @Test
+    public void testCrashWhileWritingSnapshot() throws Exception {
+
+        KeyValueServiceImplementor service = open();
+        put(service, "a", "1");
+        put(service, "b", "2");
+        put(service, "c", "3");
+        delete(service, "c");
+        File[] segments = files(".log");
+        File backup = copyOf(segments[0]);
+
+        // The log is rotated and the snapshot written, then the next change goes in the new segment
+        service.snapshot();
+        put(service, "a", "5");
+        put(service, "d", "4");
+
+        // Roll back to just after the rotation: the old segment is still there and the snapshot is only
+        // a partly written temporary file
+        File[] snapshots = files(".snap");
+        assertEquals(1, snapshots.length);
+        File temp = new File(directory, snapshots[0].getName() + ".tmp");
+        copy(snapshots[0], temp);
+        truncate(temp, temp.length() / 2);
+        assertTrue(snapshots[0].delete());
+        copy(backup, segments[0]);
+
+        KeyValueServiceImplementor restarted = open();
+        assertState(restarted);
+
+        // The next snapshot clears away the abandoned temporary file
+        put(restarted, "e", "6");
+        restarted.snapshot();
+        assertEquals(0, files(".tmp").length);
+        assertState(open());
+    }
+
+    @Test
+    public void testVersionOneSnapshotRejected() throws Exception {
+
+        KeyValueServiceImplementor service = open();
+        put(service, "a", "1");
+        service.snapshot();
+
+        // Rewrite the snapshot in the version 1 layout, without the revision after the sequence
+        File snapshot = files(".snap")[0];
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            raf.seek(4);
+            raf.writeInt(1);
+            raf.seek(16);
+            raf.write(bytes, 24, bytes.length - 24);
+            raf.setLength(bytes.length - 8);
+        } finally {
+            raf.close();
+        }
+
+        // Starting from it would restart the revisions clients have seen
+        try {
+            open();
+            fail("Opened a version 1 snapshot");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Not a valid snapshot"));
+        }
+    }
+
+    private void assertState(KeyValueServiceImplementor service) {
+        assertEquals("5", get(service, "a").getValue());
+        assertEquals("2", get(service, "b").getValue());
+        assertNull(get(service, "c"));
+        assertEquals("4", get(service, "d").getValue());
+    }
+
+    private KeyValueServiceImplementor open() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.log.directory", directory.getPath());
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.log.durability", DurabilityMode.SYNC.name());
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.snapshot.intervalSeconds", "0");
+        return new KeyValueServiceImplementor(new NullPublisher(), new KeyValueServiceSettings(props));
+    }
+
+    private File[] files(final String suffix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static KeyValue put(KeyValueServiceImplementor service, String key, String value) {
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.PUT, KeyValue.newBuilder().setKey(key).setValue(value).build());
+        assertTrue(response.getErrorMessage(), response.getStatus() == Envelope.Status.CREATED || response.getStatus() == Envelope.Status.UPDATED);
+        return parse(response);
+    }
+
+    private static void delete(KeyValueServiceImplementor service, String key) {
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.DELETE, KeyValue.newBuilder().setKey(key).build());
+        assertEquals(response.getErrorMessage(), Envelope.Status.DELETED, response.getStatus());
+    }
+
+    private static KeyValue get(KeyValueServiceImplementor service, String key) {
+        Envelope.ServiceResponse response = call(service, Envelope.Verb.GET, KeyValue.newBuilder().setKey(key).build());
+        return response.getStatus() == Envelope.Status.OK ? parse(response) : null;
+    }
+
+    private static KeyValue parse(Envelope.ServiceResponse response) {
+        try {
+            return KeyValue.parseFrom(response.getPayload(0));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static File copyOf(File file) throws IOException {
+        File backup = File.createTempFile("keyvalue-backup", "");
+        backup.deleteOnExit();
+        copy(file, backup);
+        return backup;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = createTempDirectory();
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(directory);
+    }
+
+    @Test
+    public void testReplaysAppendedRecords() throws Exception {
+
+        WriteAheadLog log = open(directory, DurabilityMode.SYNC, new ArrayList<String>());
+        assertEquals(1, log.append(WriteAheadLog.Operation.PUT, kv("a", "1")));
+        assertEquals(2, log.append(WriteAheadLog.Operation.PUT, kv("b", "2")));
+        assertEquals(3, log.append(WriteAheadLog.Operation.DELETE, kv("a", null)));
+        log.close();
+
+        List<String> replayed = new ArrayList<String>();
+        log = open(directory, DurabilityMode.SYNC, replayed);
+        assertEquals(3, log.getLastSequence());
+        log.close();
+
+        assertEquals(list("PUT a=1", "PUT b=2", "DELETE a"), replayed);
+    }
+
+    @Test
+    public void testTruncatesTornTailRecord() throws Exception {
+
+        WriteAheadLog log = open(directory, DurabilityMode.SYNC, new ArrayList<String>());
+        log.append(WriteAheadLog.Operation.PUT, kv("a", "1"));
+        log.append(WriteAheadLog.Operation.PUT, kv("b", "2"));
+        log.close();
+
+        // A crash part way through writing the last record
+        File segment = onlySegment(directory);
+        long goodLength = segment.length();
+        log = open(directory, DurabilityMode.SYNC, new ArrayList<String>());
+        log.append(WriteAheadLog.Operation.PUT, kv("c", "3"));
+        log.close();
+        truncate(segment, segment.length() - 3);
+
+        List<String> replayed = new ArrayList<String>();
+        log = open(directory, DurabilityMode.SYNC, replayed);
+        assertEquals(list("PUT a=1", "PUT b=2"), replayed);
+        assertEquals(goodLength, segment.length());
+
+        // Appends carry on from the last intact record
+        assertEquals(3, log.append(WriteAheadLog.Operation.PUT, kv("d", "4")));
+        log.close();
+
+        replayed.clear();
+        open(directory, DurabilityMode.SYNC, replayed).close();
+        assertEquals(list("PUT a=1", "PUT b=2", "PUT d=4"), replayed);
+    }
+
+    @Test
+    public void testTruncatesCorruptTailRecord() throws Exception {
+
+        WriteAheadLog log = open(directory, DurabilityMode.SYNC, new ArrayList<String>());
+        log.append(WriteAheadLog.Operation.PUT, kv("a", "1"));
+        log.append(WriteAheadLog.Operation.PUT, kv("b", "2"));
+        log.close();
+
+        // Flip a byte of the last record's value so its checksum no longer matches
+        File segment = onlySegment(directory);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long position = segment.length() - 5;
+        file.seek(position);
+        int b = file.read();
+        file.seek(position);
+        file.write(b ^ 0xff);
+        file.close();
+
+        List<String> replayed = new ArrayList<String>();
+        log = open(directory, DurabilityMode.SYNC, replayed);
+        assertEquals(list("PUT a=1"), replayed);
+        assertEquals(2, log.append(WriteAheadLog.Operation.PUT, kv("c", "3")));
+        log.close();
+
+        replayed.clear();
+        open(directory, DurabilityMode.SYNC, replayed).close();
+        assertEquals(list("PUT a=1", "PUT c=3"), replayed);
+    }
+
+    @Test
+    public void testGroupCommitRecordIsOnDiskAfterAwaitDurable() throws Exception {
+
+        final WriteAheadLog log = open(directory, DurabilityMode.GROUP_COMMIT, new ArrayList<String>());
+
+        // Writers appending together share forces, but each one's record is written once it is acknowledged
+        int writers = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < writers; i++) {
+            final String key = "w" + i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 50; j++) {
+                            log.awaitDurable(log.append(WriteAheadLog.Operation.PUT, kv(key, "" + j)));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        long sequence = log.append(WriteAheadLog.Operation.PUT, kv("last", "x"));
+        log.awaitDurable(sequence);
+
+        // Copy the log while it is still open, as a crash would leave it
+        File crashed = createTempDirectory();
+        try {
+            copy(onlySegment(directory), new File(crashed, onlySegment(directory).getName()));
+
+            List<String> replayed = new ArrayList<String>();
+            WriteAheadLog recovered = open(crashed, DurabilityMode.SYNC, replayed);
+            assertEquals(sequence, recovered.getLastSequence());
+            assertEquals(writers * 50 + 1, replayed.size());
+            assertEquals("PUT last=x", replayed.get(replayed.size() - 1));
+            recovered.close();
+        } finally {
+            delete(crashed);
+        }
+
+        log.close();
+    }
+
+    @Test
+    public void testReplaySkipsRecordsCoveredBySnapshot() throws Exception {
+
+        WriteAheadLog log = open(directory, DurabilityMode.GROUP_COMMIT, new ArrayList<String>());
+        log.append(WriteAheadLog.Operation.PUT, kv("a", "1"));
+        log.append(WriteAheadLog.Operation.PUT, kv("b", "2"));
+        long snapshotSequence = log.rotate();
+        log.awaitDurable(log.append(WriteAheadLog.Operation.PUT, kv("c", "3")));
+        log.close();
+
+        assertEquals(2, snapshotSequence);
+        assertEquals(2, directory.listFiles().length);
+
+        List<String> replayed = new ArrayList<String>();
+        open(directory, DurabilityMode.SYNC, replayed, snapshotSequence).close();
+        assertEquals(list("PUT c=3"), replayed);
+
+        log = open(directory, DurabilityMode.SYNC, new ArrayList<String>(), snapshotSequence);
+        log.deleteSegmentsThrough(snapshotSequence);
+        log.close();
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    private static WriteAheadLog open(File directory, DurabilityMode mode, List<String> replayed) throws IOException {
+        return open(directory, mode, replayed, 0);
+    }
+
+    private static WriteAheadLog open(File directory, DurabilityMode mode, final List<String> replayed, long afterSequence) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(directory, mode, 10);
+        log.replay(new WriteAheadLog.RecordHandler() {
+            @Override
+            public void onRecord(WriteAheadLog.Operation operation, KeyValue record) {
+                replayed.add(operation + " " + record.getKey() + (record.hasValue() ? "=" + record.getValue() : ""));
+            }
+        }, afterSequence);
+        return log;
+    }
+
+    private static KeyValue kv(String key, String value) {
+        KeyValue.Builder b = KeyValue.newBuilder().setKey(key);
+        if (value != null) {
+            b.setValue(value);
+        }
+        return b.build();
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static File onlySegment(File directory) {
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("keyvalue-test", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create temporary directory: " + directory);
+        }
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
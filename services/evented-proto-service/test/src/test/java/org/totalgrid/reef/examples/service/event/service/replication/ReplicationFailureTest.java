@@ -0,0 +1,82 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.replication;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.totalgrid.reef.client.proto.Envelope;
+import org.totalgrid.reef.examples.service.event.NullPublisher;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.Compression;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceImplementor;
+import org.totalgrid.reef.examples.service.event.service.KeyValueServiceSettings;
+import org.totalgrid.reef.examples.service.event.service.persistence.WriteAheadLog;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * A standby that can't apply one of its primary's changes stops following, reports itself failed
+ * and refuses to be promoted, instead of skipping the change.
+ */
+public class ReplicationFailureTest {
+
+    @Test
+    public void testStandbyStopsOnFailedChange() throws Exception {
+
+        // Indexing values makes the standby inflate compressed ones, which fails for corrupt bytes
+        Properties props = new Properties();
+        props.setProperty("org.totalgrid.reef.examples.keyvalue.index.values", "true");
+        KeyValueServiceImplementor standby = new KeyValueServiceImplementor(new NullPublisher(), new KeyValueServiceSettings(props));
+
+        LocalReplicationChannel channel = new LocalReplicationChannel();
+        channel.send(put(1, KeyValue.newBuilder().setKey("a").setValue("1").setRevision(1).build()));
+        channel.send(put(2, KeyValue.newBuilder().setKey("b").setBinaryValue(ByteString.copyFromUtf8("not deflated")).setCompression(Compression.DEFLATED_TEXT).setRevision(2).build()));
+        channel.send(put(3, KeyValue.newBuilder().setKey("c").setValue("3").setRevision(3).build()));
+
+        standby.followPrimary(channel);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!standby.getReplicationStatus().isFailed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Stopped at the change it couldn't apply, leaving the rest unapplied
+        ReplicationStatus status = standby.getReplicationStatus();
+        assertTrue(status.toString(), status.isFailed());
+        assertEquals(1, status.getSequence());
+        assertEquals(1, status.getPendingRecords());
+        assertEquals(1, standby.getStatistics().getEntries());
+        assertEquals(1, standby.getStatistics().getBackgroundFailures());
+        assertNotNull(standby.getStatistics().getLastBackgroundFailure());
+
+        try {
+            standby.promote();
+            fail("A standby missing changes was promoted");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        assertTrue(standby.getReplicationStatus().isStandby());
+    }
+
+    private static ReplicationRecord put(long sequence, KeyValue entry) {
+        return new ReplicationRecord(sequence, System.currentTimeMillis(), WriteAheadLog.Operation.PUT, entry);
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2011 Green Energy Corp.
+ *
+ * Licensed to Green Energy Corp (www.greenenergycorp.com) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. Green Energy
+ * Corp licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.totalgrid.reef.examples.service.event.service.storage;
+
+import org.junit.Test;
+import org.totalgrid.reef.examples.service.event.client.proto.RestEvented.KeyValue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class OffHeapEntryStoreTest {
+
+    @Test
+    public void testInsertOverwriteAndDelete() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(4096);
+
+        assertNull(store.put(kv("a", "1")));
+        assertNull(store.put(kv("b", "2")));
+        assertEquals(2, store.size());
+        assertEquals("1", store.get("a").getValue());
+        assertEquals(kv("b", "2").toByteString(), store.getSerialized("b"));
+
+        assertEquals("1", store.put(kv("a", "3")).getValue());
+        assertEquals("3", store.get("a").getValue());
+        assertEquals(2, store.size());
+
+        assertEquals("3", store.remove("a").getValue());
+        assertNull(store.get("a"));
+        assertNull(store.remove("a"));
+        assertEquals(1, store.size());
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get("b"));
+        assertFalse(store.all().hasNext());
+    }
+
+    @Test
+    public void testCollisionChains() {
+
+        // Keys landing on the same slot of the initial index, probed one after another
+        List<String> colliding = collidingKeys(4);
+
+        OffHeapEntryStore store = new OffHeapEntryStore(4096);
+        for (String key : colliding) {
+            store.put(kv(key, "v" + key));
+        }
+
+        // Removing from the middle of the chain must not cut off the keys after it
+        assertNotNull(store.remove(colliding.get(1)));
+        assertNull(store.get(colliding.get(1)));
+        assertEquals("v" + colliding.get(2), store.get(colliding.get(2)).getValue());
+        assertEquals("v" + colliding.get(3), store.get(colliding.get(3)).getValue());
+
+        // Overwriting past the deleted slot updates the existing entry rather than adding a second one
+        assertEquals("v" + colliding.get(3), store.put(kv(colliding.get(3), "new")).getValue());
+        assertEquals(3, store.size());
+
+        store.put(kv(colliding.get(1), "back"));
+        assertEquals("back", store.get(colliding.get(1)).getValue());
+        assertEquals("new", store.get(colliding.get(3)).getValue());
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void testResize() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(64 * 1024);
+
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            store.put(kv("key" + i, "value" + i));
+        }
+        for (int i = 0; i < count; i += 2) {
+            store.remove("key" + i);
+        }
+
+        assertEquals(count / 2, store.size());
+        for (int i = 0; i < count; i++) {
+            KeyValue entry = store.get("key" + i);
+            if (i % 2 == 0) {
+                assertNull(entry);
+            } else {
+                assertEquals("value" + i, entry.getValue());
+            }
+        }
+
+        Set<String> seen = new HashSet<String>();
+        for (Iterator<KeyValue> it = store.all(); it.hasNext(); ) {
+            seen.add(it.next().getKey());
+        }
+        assertEquals(count / 2, seen.size());
+    }
+
+    @Test
+    public void testSlabReuse() {
+
+        // Slabs of a few records each, so overwrites fill and release slabs quickly
+        OffHeapEntryStore store = new OffHeapEntryStore(512);
+        String value = "0123456789012345678901234567890123456789";
+
+        for (int i = 0; i < 10000; i++) {
+            store.put(kv("k" + (i % 3), value + i));
+        }
+
+        // Compacted slabs are taken again instead of allocating new ones
+        assertTrue("slabs: " + store.getSlabCount(), store.getSlabCount() <= 4);
+        assertEquals(value + 9999, store.get("k0").getValue());
+        assertEquals(value + 9998, store.get("k2").getValue());
+        assertEquals(value + 9997, store.get("k1").getValue());
+
+        // A record larger than a slab gets a slab of its own, and survives compaction of the others
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append(value);
+        }
+        store.put(kv("large", large.toString()));
+        for (int i = 0; i < 1000; i++) {
+            store.put(kv("k" + (i % 3), value + i));
+        }
+        assertEquals(large.toString(), store.get("large").getValue());
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void testRangesInKeyOrder() {
+
+        OffHeapEntryStore store = new OffHeapEntryStore(4096);
+        for (String key : new String[]{"b/2", "a/1", "b/1", "c", "b/3", "a/2"}) {
+            store.put(kv(key, key));
+        }
+        store.remove("b/2");
+
+        assertEquals("a/1,a/2,b/1,b/3,c", keys(store.range(null, true, null, Integer.MAX_VALUE)));
+        assertEquals("b/1,b/3", keys(store.range("b/", true, "b0", Integer.MAX_VALUE)));
+        assertEquals("a/2,b/1", keys(store.range("a/1", false, null, 2)));
+        assertEquals("a/1,a/2", keys(store.range(null, true, "b", Integer.MAX_VALUE)));
+        assertEquals("", keys(store.range("c", true, "a", Integer.MAX_VALUE)));
+
+        List<String> serialized = new ArrayList<String>();
+        for (Iterator<SerializedEntry> it = store.rangeSerialized("b/1", true, null, 10); it.hasNext(); ) {
+            serialized.add(it.next().getKey());
+        }
+        assertEquals("[b/1, b/3, c]", serialized.toString());
+    }
+
+    @Test
+    public void testSortedIndexMatchesSortedSet() {
+
+        // Small slabs so overwrites keep compacting and moving records under the sorted index
+        OffHeapEntryStore store = new OffHeapEntryStore(2048);
+        TreeSet<String> expected = new TreeSet<String>();
+        Random random = new Random(42);
+
+        // Enough keys to split chunks of the sorted index, then enough removes to drop some
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + random.nextInt(5000);
+            if (random.nextInt(4) == 0) {
+                store.remove(key);
+                expected.remove(key);
+            } else {
+                store.put(kv(key, "v" + i));
+                expected.add(key);
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+        assertEquals(join(expected), keys(store.range(null, true, null, Integer.MAX_VALUE)));
+        assertEquals(join(expected.subSet("k2", false, "k3", false)), keys(store.range("k2", false, "k3", Integer.MAX_VALUE)));
+        assertEquals(join(expected.tailSet("k4999", true)), keys(store.range("k4999", true, null, Integer.MAX_VALUE)));
+
+        String first = expected.first();
+        assertEquals(first, keys(store.range(null, true, null, 1)));
+        assertEquals(join(expected.subSet(first, false, "k1", false)), keys(store.range(first, false, "k1", Integer.MAX_VALUE)));
+
+        // Removing everything empties the index
+        for (String key : expected) {
+            store.remove(key);
+        }
+        assertEquals("", keys(store.range(null, true, null, Integer.MAX_VALUE)));
+    }
+
+    private static String join(Set<String> keys) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(key);
+        }
+        return sb.toString();
+    }
+
+    private static List<String> collidingKeys(int count) {
+
+        List<String> keys = new ArrayList<String>();
+        int slot = -1;
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "c" + i;
+            int keySlot = OffHeapEntryStore.hash(utf8(key)) & 1023;
+            if (slot < 0) {
+                slot = keySlot;
+            }
+            if (keySlot == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static String keys(Iterator<KeyValue> entries) {
+        StringBuilder sb = new StringBuilder();
+        while (entries.hasNext()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entries.next().getKey());
+        }
+        return sb.toString();
+    }
+
+    private static KeyValue kv(String key, String value) {
+        return KeyValue.newBuilder().setKey(key).setValue(value).build();
+    }
+
+    private static byte[] utf8(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}